@@ -14,6 +14,7 @@ import java.util.ArrayList;
 
 import Engine.Engine;
 import Engine.Session.*;
+import Networking.NetworkHandler;
 import Resources.ResourceManager;
 import SimpleUI.Wrappers.ImageLabel;
 //testing
@@ -232,8 +233,11 @@ public class MainDisplay extends JFrame {
             public void actionPerformed(ActionEvent e) {
                try{
                 String ip = ipField.getText();
-                int port = Integer.parseInt(portField.getText());
-                joinLobby(ip, port,connectButton);
+                // "port/match" joins a match on a dedicated server
+                String[] address = portField.getText().split("/");
+                int port = Integer.parseInt(address[0]);
+                int matchId = address.length > 1 ? Integer.parseInt(address[1]) : NetworkHandler.NO_MATCH;
+                joinLobby(ip, port, matchId, connectButton);
                }    
                catch(Exception e1){
                 JOptionPane.showMessageDialog(mainPanel, "Invalid IP or Port");
@@ -395,10 +399,11 @@ public class MainDisplay extends JFrame {
      * the server is running. This port number is used to establish a network connection between the
      * client (your application) and the server. It is essential for communication between the client
      * and the server to occur over
+     * @param matchId The match to join on a dedicated server, or {@link NetworkHandler#NO_MATCH} for a hosted lobby.
      * @param joinLobbyLabel The `joinLobbyLabel` parameter is a JButton object that represents the
      * button used to join a lobby in the user interface.
      */
-    private void joinLobby(String ip, int port, JButton joinLobbyLabel) {
+    private void joinLobby(String ip, int port, int matchId, JButton joinLobbyLabel) {
         if (!canClick) {
             return;
         }
@@ -411,6 +416,7 @@ public class MainDisplay extends JFrame {
         });
         sessionManager.setTargetIpAddress(ip);
         sessionManager.setPort(port);
+        sessionManager.setMatchId(matchId);
         joiningThread = new Thread(new Runnable() {
             @Override
             public void run() {
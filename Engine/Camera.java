@@ -124,4 +124,17 @@ public class Camera {
             return Position;
         }
     }
+
+    /**
+     * Returns the position of the camera where the frame being drawn is, between the last two simulation steps.
+     * @return The position of the camera.
+     */
+    public Vector2 getRenderPosition() {
+        if (Mode != CameraMode.Custom && Subject != null) {
+            return Subject.getRenderCenter();
+        }
+        else {
+            return Position;
+        }
+    }
 }
\ No newline at end of file
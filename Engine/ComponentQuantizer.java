@@ -0,0 +1,250 @@
+package Engine;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import MathLib.Vector2;
+import Networking.Codecs;
+import Networking.WireBuffer;
+
+/**
+ * Encodes the replicated position, angle, velocity and size components as fixed point numbers.
+ * Vectors are two 16 bit values with {@link #VECTOR_FRACTION_BITS} fraction bits, 1/256 of a tile,
+ * which covers maps of up to 127 tiles. Angles are whole degrees stored in {@link #ANGLE_BITS} bits,
+ * written as a short. Values that do not fit are written with a short escape marker followed by their tagged value,
+ * so nothing is ever clamped. Every other component is written tagged with {@link Codecs#writeTagged}.
+ * The precision is part of the protocol, so the host and the clients always read the same format:
+ * changing it means every side has to be built with the new constants.
+ * @author haotian
+ */
+public final class ComponentQuantizer {
+
+    public static final int POSITION = 0;
+    public static final int ANGLE = 1;
+    public static final int VELOCITY = 2;
+    public static final int SIZE = 11;
+
+    /** The bits after the point of the position, velocity and size components, 8 for 1/256 of a tile, at most 14. */
+    public static final int VECTOR_FRACTION_BITS = 8;
+
+    /** The bits per angle, 9 bits or more keep whole degrees exact, at most 15. */
+    public static final int ANGLE_BITS = 10;
+
+    /** Marks a value that did not fit, its tagged value follows. */
+    private static final short ESCAPE = Short.MIN_VALUE;
+
+    private ComponentQuantizer() {
+    }
+
+    /**
+     * Checks whether a component is quantized.
+     *
+     * @param key the component's key, its ID minus 128
+     * @return true if the component is written as fixed point
+     */
+    public static boolean isQuantized(byte key) {
+        int id = key + 128;
+        return id == POSITION || id == ANGLE || id == VELOCITY || id == SIZE;
+    }
+
+    /**
+     * Writes a component value.
+     *
+     * @param out the buffer to write to
+     * @param key the component's key, its ID minus 128
+     * @param value the value
+     * @throws IOException if the value falls back to java serialization and fails
+     */
+    public static void write(WireBuffer out, byte key, Serializable value) throws IOException {
+        write(out, key, value, VECTOR_FRACTION_BITS, ANGLE_BITS);
+    }
+
+    private static void write(WireBuffer out, byte key, Serializable value, int fractionBits, int angleBits) throws IOException {
+        if (!isQuantized(key)) {
+            Codecs.writeTagged(out, value);
+            return;
+        }
+        if (key + 128 == ANGLE) {
+            if (value instanceof Integer) {
+                out.writeShort(encodeAngle((Integer) value, angleBits));
+                return;
+            }
+        } else if (value instanceof Vector2) {
+            Vector2 v = (Vector2) value;
+            int x = encode(v.X, fractionBits);
+            int y = encode(v.Y, fractionBits);
+            if (x != ESCAPE && y != ESCAPE) {
+                out.writeShort(x);
+                out.writeShort(y);
+                return;
+            }
+        }
+        out.writeShort(ESCAPE);
+        Codecs.writeTagged(out, value);
+    }
+
+    /**
+     * Reads a component value written by {@link #write(WireBuffer, byte, Serializable)}.
+     *
+     * @param in the buffer to read from
+     * @param key the component's key, its ID minus 128
+     * @return the value
+     * @throws IOException if the value can not be read
+     */
+    public static Serializable read(WireBuffer in, byte key) throws IOException {
+        return read(in, key, VECTOR_FRACTION_BITS, ANGLE_BITS);
+    }
+
+    private static Serializable read(WireBuffer in, byte key, int fractionBits, int angleBits) throws IOException {
+        if (!isQuantized(key)) {
+            return Codecs.readTagged(in);
+        }
+        short first = in.readShort();
+        if (first == ESCAPE) {
+            return Codecs.readTagged(in);
+        }
+        if (key + 128 == ANGLE) {
+            return decodeAngle(first, angleBits);
+        }
+        return new Vector2(decode(first, fractionBits), decode(in.readShort(), fractionBits));
+    }
+
+    /**
+     * Rounds a component value to the precision it is sent with, so the host only sends changes the clients can see.
+     *
+     * @param key the component's key, its ID minus 128
+     * @param value the value
+     * @return the value the clients will read
+     */
+    public static Serializable quantize(byte key, Serializable value) {
+        return quantize(key, value, VECTOR_FRACTION_BITS, ANGLE_BITS);
+    }
+
+    private static Serializable quantize(byte key, Serializable value, int fractionBits, int angleBits) {
+        if (!isQuantized(key)) {
+            return value;
+        }
+        if (key + 128 == ANGLE) {
+            return value instanceof Integer ? decodeAngle(encodeAngle((Integer) value, angleBits), angleBits) : value;
+        }
+        if (!(value instanceof Vector2)) {
+            return value;
+        }
+        Vector2 v = (Vector2) value;
+        int x = encode(v.X, fractionBits);
+        int y = encode(v.Y, fractionBits);
+        if (x == ESCAPE || y == ESCAPE) {
+            return value;
+        }
+        return new Vector2(decode(x, fractionBits), decode(y, fractionBits));
+    }
+
+    private static int encode(float value, int fractionBits) {
+        if (Float.isNaN(value)) {
+            return ESCAPE;
+        }
+        long q = Math.round((double) value * (1 << fractionBits));
+        if (q <= ESCAPE || q > Short.MAX_VALUE) {
+            return ESCAPE;
+        }
+        return (int) q;
+    }
+
+    private static float decode(int q, int fractionBits) {
+        return q / (float) (1 << fractionBits);
+    }
+
+    private static int encodeAngle(int degrees, int angleBits) {
+        int steps = 1 << angleBits;
+        return (int) Math.floorMod(Math.round(degrees * (double) steps / 360), (long) steps);
+    }
+
+    private static int decodeAngle(int q, int angleBits) {
+        int steps = 1 << angleBits;
+        return (int) (Math.round(q * 360.0 / steps) % 360);
+    }
+
+    /**
+     * Checks that quantized values survive a round trip through a buffer, at every vector precision and angle size,
+     * including the edges of the vector range. Exits with 1 if any round trip failed.
+     *
+     * @param args the command-line arguments
+     * @throws IOException if a value can not be encoded
+     */
+    public static void main(String[] args) throws IOException {
+        int failed = 0;
+        for (int bits = 0; bits <= 14; bits++) {
+            failed += checkVectors(bits);
+        }
+        for (int bits = 1; bits <= 15; bits++) {
+            failed += checkAngles(bits);
+        }
+
+        byte health = (byte) (25 - 128);
+        if (!Float.valueOf(42.5f).equals(roundTrip(health, 42.5f, VECTOR_FRACTION_BITS, ANGLE_BITS))) {
+            failed++;
+            System.out.println("Tagged component did not round trip");
+        }
+
+        WireBuffer tagged = new WireBuffer();
+        Codecs.writeTagged(tagged, new Vector2(12.5f, 40.25f));
+        WireBuffer fixed = new WireBuffer();
+        write(fixed, (byte) (POSITION - 128), new Vector2(12.5f, 40.25f));
+        System.out.println("Position: " + tagged.position() + " bytes tagged, " + fixed.position() + " bytes quantized");
+        System.out.println(failed == 0 ? "All round trips passed" : failed + " round trips failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static int checkVectors(int bits) throws IOException {
+        byte position = (byte) (POSITION - 128);
+        float step = decode(1, bits);
+        float max = decode(Short.MAX_VALUE, bits);
+        float min = decode(ESCAPE + 1, bits);
+        int failed = 0;
+
+        Vector2[] vectors = {
+            Vector2.ZERO, new Vector2(0.5f, 0.5f), new Vector2(99.99f, 0.01f), new Vector2(-3.3f, 100.9f),
+            new Vector2(step * 1234, -step * 77), new Vector2(max, min), new Vector2(max + step, 0),
+            new Vector2(0, min - step), new Vector2(max + step * 0.4f, min - step * 0.4f),
+            new Vector2(Float.MAX_VALUE, Float.NEGATIVE_INFINITY), new Vector2(Float.NaN, 1)
+        };
+        for (Vector2 v : vectors) {
+            Vector2 back = (Vector2) roundTrip(position, v, bits, ANGLE_BITS);
+            boolean escaped = encode(v.X, bits) == ESCAPE || encode(v.Y, bits) == ESCAPE;
+            boolean ok = escaped ? v.equals(back) || (Float.isNaN(v.X) && Float.isNaN(back.X))
+                    : Math.abs(back.X - v.X) <= step / 2 && Math.abs(back.Y - v.Y) <= step / 2;
+            ok &= escaped || back.equals(quantize(position, v, bits, ANGLE_BITS));
+            // values inside the range must never escape
+            ok &= escaped != (v.X >= min - step / 2 && v.X < max + step / 2 && v.Y >= min - step / 2 && v.Y < max + step / 2);
+            if (!ok) {
+                failed++;
+                System.out.println("Vector " + v + " came back as " + back + " with " + bits + " fraction bits");
+            }
+        }
+        return failed;
+    }
+
+    private static int checkAngles(int bits) throws IOException {
+        byte angle = (byte) (ANGLE - 128);
+        double step = 360.0 / (1 << bits);
+        int failed = 0;
+        for (int degrees = -360; degrees < 720; degrees++) {
+            int back = (Integer) roundTrip(angle, degrees, VECTOR_FRACTION_BITS, bits);
+            double error = Math.abs(back - Math.floorMod(degrees, 360));
+            error = Math.min(error, 360 - error);
+            // whole degrees are exact from 9 bits, below that an angle is off by half a step at most
+            boolean ok = bits >= 9 ? error == 0 : error <= step / 2 + 0.5;
+            if (!ok) {
+                failed++;
+                System.out.println("Angle " + degrees + " came back as " + back + " with " + bits + " bits");
+            }
+        }
+        return failed;
+    }
+
+    private static Serializable roundTrip(byte key, Serializable value, int fractionBits, int angleBits) throws IOException {
+        WireBuffer out = new WireBuffer();
+        write(out, key, value, fractionBits, angleBits);
+        return read(WireBuffer.wrap(out.flip()), key, fractionBits, angleBits);
+    }
+}
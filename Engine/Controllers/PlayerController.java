@@ -45,6 +45,8 @@ public class PlayerController extends Controller {
     
     /**
      * Updates the player's position and velocity based on user input.
+     * On a client the input is also sent to the host, the brawler is moved right away and corrected
+     * when the host's position arrives.
      * 
      * @param dt The time elapsed since the last update.
      */
@@ -69,7 +71,9 @@ public class PlayerController extends Controller {
         Vector2 camera =    engine.camera.getRelativeMouseLoc();
         entity.setAngle((int)(entity.getCenter().angleTo(camera)));
 
-
+        if (entity.isLocal) {
+            engine.replicator.sendInput(velocity, entity.Angle, dt);
+        }
         entity.setVelocity(velocity.mul(entity.getSpeed()));
 
     }
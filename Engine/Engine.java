@@ -57,6 +57,7 @@ public class Engine extends JPanel {
     private JTextPane fpsLabel;
     private double phyTime = 0;
     private double renderTime = 0;
+    private double renderAlpha = 1;
     
 
     protected UUID primaryEntity = null;
@@ -97,7 +98,7 @@ public class Engine extends JPanel {
         fpsLabel.setOpaque(false);
         fpsLabel.setLocation(0, 0);
         
-        taskScheduler = new TaskScheduler(this,FPS);
+        taskScheduler = new TaskScheduler(this,FPS,session.getWorkers());
 
         setSize( 800, 600);
         setBackground(new Color(252,193,100));
@@ -164,12 +165,26 @@ public class Engine extends JPanel {
     }
 
     /**
-     * Called when the engine needs to render the game.
+     * Gets how far the frame being drawn is past the last simulation step, see {@link TaskScheduler#getAlpha()}.
+     * @return The fraction of a step, from 0 to 1.
+     */
+    public double getRenderAlpha(){
+        return renderAlpha;
+    }
+
+    /**
+     * Called when the engine needs to render the game. Matches on a dedicated server are never shown, so they are not rendered.
      * @param dt The time since the last frame in seconds.
      */
     protected void onRender(double dt)  {
+        if (session.isDedicated()){
+            return;
+        }
 
-        fpsLabel.setText(String.format("Render TIME: %.3f (ms)  \nPhysics TIME: %.3f (ms)", renderTime, phyTime));
+        fpsLabel.setText(String.format("Render TIME: %.3f (ms)  \nPhysics TIME: %.3f (ms)  \nTick: %s, %d overrun %d missed %d dropped  \nLate: %s  \nNet: %d msgs %d bytes / tick",
+                renderTime, phyTime, taskScheduler.getTickTimes(), taskScheduler.getOverrunCount(),
+                taskScheduler.getMissedCount(), taskScheduler.getDroppedCount(), taskScheduler.getSleepErrors(),
+                replicator.getLastTickMessages(), replicator.getLastTickBytes()));
 
         repaint();
 
@@ -178,9 +193,19 @@ public class Engine extends JPanel {
         
     }
 
+    /**
+     * Called at the end of every scheduler iteration, after the simulation and the scheduled tasks.
+     * Sends everything replicated during the tick.
+     */
+    protected void onTickEnd() {
+        if (replicator != null){
+            replicator.flush();
+        }
+    }
+
     /**
      * Called when the engine needs to update the game logic.
-     * @param dt The time since the last frame in seconds.
+     * @param dt The length of a simulation step in seconds, always 1 / {@link #FPS}.
      */
     protected void onUpdate(double dt) {
         if (Loading < 110){
@@ -190,7 +215,6 @@ public class Engine extends JPanel {
 
        try {
         entityHandler.update(dt);
-        scaledCameraLoc = camera.getPosition().mul(GRID_SCALE);
        } catch (Exception e) {
            e.printStackTrace();
        }
@@ -372,6 +396,9 @@ public class Engine extends JPanel {
         }
         
 
+        renderAlpha = taskScheduler.getAlpha();
+        scaledCameraLoc = camera.getRenderPosition().mul(GRID_SCALE);
+
         Vector2 center = calculateCenter();
         AffineTransform originalTransform = g2.getTransform();
 
@@ -109,6 +109,7 @@ public class Entity {
     }
 
     public AABB HitBox;
+    private Vector2 previousPosition;
     public int Angle = 0;
     public double Scale = 1;
 
@@ -160,13 +161,8 @@ public class Entity {
      * @return The created Entity object.
      */
     public static Entity fromComponentData(Engine engine, ComponentData data) {
-        Class<?> c = entityMap.get(data.entityType);
-
-        Entity entity;
-        try {
-            entity = (Entity) c.getConstructor(Engine.class).newInstance(engine);
-        } catch (Exception e) {
-            e.printStackTrace();
+        Entity entity = create(engine, data.entityType);
+        if (entity == null) {
             return null;
         }
 
@@ -178,6 +174,27 @@ public class Entity {
         return entity;
     }
 
+    /**
+     * Constructs an entity of a registered class without adding it to the engine.
+     * 
+     * @param engine  The game engine.
+     * @param classId The class ID.
+     * @return The new entity, or null if the class can not be constructed.
+     */
+    public static Entity create(Engine engine, byte classId) {
+        Class<?> c = entityMap.get(classId);
+        if (c == null) {
+            System.out.println("[Entity] No entity class with ID " + classId);
+            return null;
+        }
+        try {
+            return (Entity) c.getConstructor(Engine.class).newInstance(engine);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * Gets the class ID of the entity.
      * 
@@ -456,6 +473,28 @@ public class Entity {
         return HitBox.Position;
     }
 
+    /**
+     * Remembers where the entity is before a simulation step, so it can be drawn between the last two steps.
+     */
+    public void savePosition() {
+        previousPosition = HitBox.Position;
+    }
+
+    /**
+     * Gets the center of the entity where the frame being drawn is, between where it was before the last
+     * simulation step and where it is now.
+     * 
+     * @return The center vector.
+     */
+    public Vector2 getRenderCenter() {
+        Vector2 center = HitBox.getCenter();
+        if (previousPosition == null) {
+            return center;
+        }
+        float alpha = (float) engine.getRenderAlpha();
+        return center.add(previousPosition.sub(HitBox.Position).mul(1 - alpha));
+    }
+
     /**
      * Gets the velocity of the entity.
      * 
@@ -521,7 +560,7 @@ public class Entity {
      * @return The display coordinates.
      */
     public Vector2 getDisplayCoords(Vector2 center) {
-        return HitBox.getCenter().sub(new Vector2(((float) Scale - 1) * .5f, ((float) Scale - 1) * .5f))
+        return getRenderCenter().sub(new Vector2(((float) Scale - 1) * .5f, ((float) Scale - 1) * .5f))
                 .mul(Grid_Scale).relativeTo(engine.scaledCameraLoc).add(center);
     }
 
@@ -27,14 +27,52 @@ import MathLib.Vector2;
  * Represents a projectile entity in the game.
  * Projectiles are fired by Brawlers and inflict damage to other entities.
  * They are destroyed upon collision with other entities.
+ * <p>
+ * A projectile flies in a straight line, so when {@link Replicator#isSimulated(Entity) simulated} the host only sends
+ * where and when it was fired and clients fly it themselves with {@link #simulate(int)}. Hits and despawns stay on the host.
  * @author haotian
  */
 public class Projectile extends Entity {
 
+    /**
+     * The component with the host time, in milliseconds, at which a simulated projectile was at the position it was spawned with.
+     */
+    public static final int SPAWN_TIME = 33;
+
+    /**
+     * The component with the seconds a simulated projectile had left to live at its spawn time, negative if it lives until it hits something.
+     */
+    public static final int LIFETIME = 34;
+
     public final Brawler brawler;
     public long timecreated=System.currentTimeMillis();
     public float damage = 5;;
 
+    // Host: when the projectile is destroyed by destroyAfter, in System.nanoTime
+    private long expiresAt = -1;
+
+    // Client: the host time the projectile was spawned at and flown to, -1 if it is not simulated, and how long it lives
+    private int simulatedTime = -1;
+    private int spawnTime = -1;
+    private int lifetime = -1;
+
+    static {
+        EntityHandler.registerMethod(SPAWN_TIME, (entity, value) -> {
+            if (entity instanceof Projectile) {
+                Projectile p = (Projectile) entity;
+                p.spawnTime = (int) value;
+                p.simulatedTime = p.spawnTime;
+            }
+        });
+        EntityHandler.registerMethod(LIFETIME, (entity, value) -> {
+            if (entity instanceof Projectile) {
+                Projectile p = (Projectile) entity;
+                float seconds = (float) value;
+                p.lifetime = seconds < 0 ? -1 : Math.round(seconds * 1000);
+            }
+        });
+    }
+
     /**
      * Constructs a new Projectile object with the specified engine and parent Brawler.
      * 
@@ -94,6 +132,10 @@ public class Projectile extends Entity {
      */
     public boolean onCollision(Object o) {
         if (super.onCollision(o)) {
+            if (!engine.isHost) {
+                // clients only stop a simulated projectile at walls, the host decides what it hits
+                return !(o instanceof WaterTile);
+            }
             if (o instanceof Damageable) {
                 doDamage((Damageable) o);
             }
@@ -133,6 +175,55 @@ public class Projectile extends Entity {
         super.update(delta);
     }
 
+    /**
+     * Destroys the projectile after a specified time, which is sent to clients that simulate it.
+     * 
+     * @param t The time delay.
+     */
+    public void destroyAfter(double t) {
+        expiresAt = System.nanoTime() + (long) (t * 1e9);
+        super.destroyAfter(t);
+    }
+
+    /**
+     * Gets how long the projectile has left before {@link #destroyAfter(double)} removes it.
+     * 
+     * @return the time left in seconds, or -1 if it is not destroyed after a time
+     */
+    public float getRemainingLifetime() {
+        if (expiresAt < 0) {
+            return -1;
+        }
+        return Math.max(0, (expiresAt - System.nanoTime()) / 1e9f);
+    }
+
+    /**
+     * Returns whether the projectile is flown by this client instead of following the host's snapshots.
+     * 
+     * @return true if the projectile was spawned with a {@link #SPAWN_TIME}
+     */
+    public boolean isSimulated() {
+        return spawnTime >= 0;
+    }
+
+    /**
+     * Flies a simulated projectile on a client to where it is at a host time, stopping at walls.
+     * It is hidden while the time is before it was fired or after its lifetime, the host removes it.
+     * 
+     * @param time the host time in milliseconds, usually the interpolator's render time
+     */
+    public void simulate(int time) {
+        if (!isSimulated()) {
+            return;
+        }
+        isVisible = time >= spawnTime && (lifetime < 0 || time < spawnTime + lifetime);
+        if (time <= simulatedTime) {
+            return;
+        }
+        setPosition(engine.collisionHandler.entityVsTile(this, (time - simulatedTime) / 1000.0));
+        simulatedTime = time;
+    }
+
     /**
      * Gets the image path for the projectile variant.
      * 
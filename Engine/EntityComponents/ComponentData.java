@@ -39,6 +39,19 @@ public class ComponentData implements Serializable {
         this.entityUUID = entity.ID;
     }
 
+    /**
+     * Constructs a ComponentData object received from the network, it has no entity yet.
+     * @param entityId The entity's ID.
+     * @param entityType The entity's class ID.
+     * @param entityUUID The entity's UUID.
+     */
+    public ComponentData(short entityId, byte entityType, UUID entityUUID) {
+        this.entity = null;
+        this.entityId = entityId;
+        this.entityType = entityType;
+        this.entityUUID = entityUUID;
+    }
+
     /**
      * Sets the value of a component with the specified ID.
      * @param id The ID of the component.
@@ -1,6 +1,8 @@
 package Engine.EntityComponents.Components;
 
 import Engine.EntityComponents.AbstractComponent;
+import Engine.EntityComponents.ComponentData;
+import Engine.EntityComponents.SerializableComponent;
 import MathLib.Vector2;
 import Engine.Engine;
 import Engine.EntityHandler;
@@ -13,7 +15,7 @@ import java.awt.image.BufferedImage;
  * It keeps track of the current ammo, maximum ammo, and the rate at which ammo is consumed and replenished.
  * @author haotian
  */
-public class Ammo extends AbstractComponent {
+public class Ammo extends AbstractComponent implements SerializableComponent {
 
     /**
      * The rate at which ammo is replenished per second.
@@ -95,6 +97,15 @@ public class Ammo extends AbstractComponent {
         setAmmo(current + (float) (rate * delta));
     }
 
+    /**
+     * Replicates the ammo component data to the specified ComponentData object.
+     *
+     * @param data the ComponentData object to replicate the data to
+     */
+    public void replicateEntity(ComponentData data) {
+        data.setComponent(30, current);
+    }
+
     public void draw(Graphics2D g, Vector2 center, Vector2 displayCoords) {
         int Size = entity.getDisplaySize();
         int SizeX = Size;
@@ -38,8 +38,9 @@ public class EntityHandler {
      * The ComponentMap class represents a map of components in the EntityHandler class.
      * It stores the data in a HashMap where the keys are of type Short and the values are HashMaps
      * with keys of type Byte and values of type Serializable.
+     * The host builds snapshots from it, see {@link Snapshot#next}.
      */
-    protected class ComponentMap implements Serializable {
+    protected static class ComponentMap implements Serializable {
         private static final long serialVersionUID = 1L;
         public HashMap<Short, HashMap<Byte, Serializable>> data = new HashMap<>();
 
@@ -70,46 +71,6 @@ public class EntityHandler {
             data.clear();
         }
 
-        private void writeObject(ObjectOutputStream oos) throws IOException {
-            if (data == null) {
-                throw new NullPointerException("data cannot be null");
-            }
-
-            oos.writeInt(data.size());
-            for (HashMap.Entry<Short, HashMap<Byte, Serializable>> entry : data.entrySet()) {
-                oos.writeShort(entry.getKey());
-                oos.writeInt(entry.getValue().size());
-                for (HashMap.Entry<Byte, Serializable> innerEntry : entry.getValue().entrySet()) {
-                    oos.writeByte(innerEntry.getKey());
-                    oos.writeObject(innerEntry.getValue());
-                }
-            }
-        }
-
-        private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
-            int size = ois.readInt();
-            if (size < 0) {
-                throw new StreamCorruptedException("Invalid size of ComponentMap: " + size);
-            }
-
-            data = new HashMap<>(size);
-            for (int i = 0; i < size; i++) {
-                short key = ois.readShort();
-                int innerSize = ois.readInt();
-                if (innerSize < 0) {
-                    throw new StreamCorruptedException("Invalid size of inner map in ComponentMap: " + innerSize);
-                }
-
-                HashMap<Byte, Serializable> innerMap = new HashMap<>(innerSize);
-                for (int j = 0; j < innerSize; j++) {
-                    byte innerKey = ois.readByte();
-                    Serializable value = (Serializable) ois.readObject();
-                    innerMap.put(innerKey, value);
-                }
-                data.put(key, innerMap);
-            }
-        }
-
         /**
          * Returns a string representation of the component map.
          *
@@ -151,6 +112,9 @@ public class EntityHandler {
     // Current component data map
     private ComponentMap currentComponentData = new ComponentMap();
 
+    // Components up to this ID (position, angle and velocity) are an entity's motion
+    public static final int MOTION_COMPONENTS = 2;
+
     // Reference to the engine
     public final Engine engine;
 
@@ -202,7 +166,7 @@ public class EntityHandler {
 
     /**
      * Parses the data in the given ComponentMap and updates the corresponding entities.
-     * If an entity does not exist, the data is stored in a delayedData map for future processing.
+     * If an entity does not exist, its data is stored in a delayedData map for future processing.
      *
      * @param map The ComponentMap containing the data to be parsed.
      */
@@ -210,13 +174,24 @@ public class EntityHandler {
         for (HashMap.Entry<Short, HashMap<Byte, Serializable>> entry : map.data.entrySet()) {
             Entity entity = entitiesById.get(entry.getKey());
             if (entity == null) {
-                delayedData.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(map);
+                ComponentMap delayed = new ComponentMap();
+                delayed.data.put(entry.getKey(), entry.getValue());
+                delayedData.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(delayed);
                 continue;
             }
             parseDataFor(entity, entry.getValue());
         }
     }
 
+    /**
+     * Drops the data stored for an entity that has not been added yet, because it is no longer replicated.
+     *
+     * @param id The entity ID.
+     */
+    synchronized protected void dropDelayedData(short id) {
+        delayedData.remove(id);
+    }
+
     /**
      * Parses data for a specific entity.
      *
@@ -243,18 +218,21 @@ public class EntityHandler {
     }
 
     /**
-     * Sets a component value for an entity.
+     * Sets a component value for an entity, to be replicated with the tick's snapshot.
+     * Only the host replicates components, clients send their inputs instead.
      *
      * @param entity The entity to update.
      * @param id The ID of the component.
      * @param value The value to set.
      */
     synchronized public void setComponent(Entity entity, int id, Serializable value) {
-        if (!entities.containsKey(entity.ID)  || (!engine.isHost && !entity.isLocal) || (!engine.isHost && entity.isLocal && id > 10)) {
+        if (!entities.containsKey(entity.ID) || !engine.isHost) {
+            return;
+        }
+        if (id <= MOTION_COMPONENTS && engine.replicator != null && engine.replicator.isSimulated(entity)) {
             return;
         }
-        id += 128;
-        currentComponentData.put(entity.EntityID, (byte) id, value);
+        currentComponentData.put(entity.EntityID, (byte) (id + 128), value);
     }
 
     /**
@@ -455,10 +433,16 @@ public class EntityHandler {
     /**
      * Updates the state of all entities managed by the handler.
      *
-     * @param dt The delta time since the last update.
+     * @param dt The length of a simulation step.
      */
     synchronized protected void update(double dt) {
+        for (Entity e : new ArrayList<>(entities.values())) {
+            if (e != null) {
+                e.savePosition();
+            }
+        }
         if (engine.session.isHost) {
+            engine.replicator.applyInputs(dt);
             for (Entity e : new ArrayList<>(entities.values())) {
                 if (e != null && !e.Destroyed) {
                     long start = System.nanoTime();
@@ -469,13 +453,14 @@ public class EntityHandler {
                     }
                 }
             }
-        } else if (engine.getPrimary() != null) {
-            engine.getPrimary().update(dt);
-        }
-
-        if (!currentComponentData.isEmpty()) {
-            engine.replicator.sendEntityData(currentComponentData);
+            engine.replicator.sendSnapshot(currentComponentData);
             currentComponentData = new ComponentMap();
+        } else {
+            engine.replicator.reconcile();
+            if (engine.getPrimary() != null) {
+                engine.getPrimary().update(dt);
+            }
+            engine.replicator.interpolate();
         }
     }
 
@@ -0,0 +1,54 @@
+package Engine;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import Engine.Entities.Entity;
+import Engine.EntityComponents.ComponentData;
+
+/**
+ * The default components of every entity class, used to send a spawned entity as only the components it changed.
+ * The template of a class is the replication data of an entity of that class right after it is constructed.
+ * A client spawns an entity by constructing it the same way before it sets the received components,
+ * so a component left out because it equals the template already has the template's value on the client.
+ * @author haotian
+ */
+public class EntityTemplates {
+
+    private static final ConcurrentHashMap<Byte, HashMap<Byte, Serializable>> templates = new ConcurrentHashMap<>();
+
+    private EntityTemplates() {
+    }
+
+    /**
+     * Gets the template of an entity class, constructing an entity of it the first time.
+     * @param engine The engine to construct the entity with, it is not added to it.
+     * @param classId The class ID.
+     * @return The components of a new entity of the class, empty if the class can not be constructed.
+     */
+    public static HashMap<Byte, Serializable> get(Engine engine, byte classId) {
+        return templates.computeIfAbsent(classId, id -> {
+            Entity entity = Entity.create(engine, id);
+            return entity == null ? new HashMap<>() : entity.getReplicationData().components;
+        });
+    }
+
+    /**
+     * Leaves out the components of a spawned entity that equal its class's template.
+     * @param engine The engine.
+     * @param data The replication data of the entity.
+     * @return A copy of the data with only the components that differ from the template.
+     */
+    public static ComponentData diff(Engine engine, ComponentData data) {
+        HashMap<Byte, Serializable> template = get(engine, data.entityType);
+        ComponentData changed = new ComponentData(data.entityId, data.entityType, data.entityUUID);
+        for (HashMap.Entry<Byte, Serializable> entry : data.components.entrySet()) {
+            if (!template.containsKey(entry.getKey()) || !Objects.equals(template.get(entry.getKey()), entry.getValue())) {
+                changed.components.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changed;
+    }
+}
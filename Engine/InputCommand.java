@@ -0,0 +1,125 @@
+package Engine;
+
+import MathLib.Vector2;
+
+/**
+ * The input the local player gave during one tick, sent to the host instead of the brawler's position.
+ * The host moves the brawler with it and acknowledges its sequence number in the snapshots it sends back,
+ * so the client knows which inputs the host's position already includes.
+ * It is sent over the network with the codec registered by {@link Replicator#registerCodecs}, which packs the
+ * movement and buttons into one byte, the angle into one byte and the time step into two, so commands are
+ * {@link #quantize quantized} before they are used on the client too.
+ * @author haotian
+ */
+public class InputCommand {
+
+    /**
+     * The angle steps in a full turn.
+     */
+    public static final int ANGLE_STEPS = 256;
+
+    /**
+     * The time step steps in a second.
+     */
+    public static final int DT_STEPS = 10000;
+
+    /**
+     * The input's number, increasing by one every tick.
+     */
+    public final int sequence;
+
+    /**
+     * The direction the player is moving in, each axis -1, 0 or 1.
+     */
+    public final Vector2 move;
+
+    /**
+     * The angle the brawler is facing in degrees.
+     */
+    public final int angle;
+
+    /**
+     * How long the input was held in seconds.
+     */
+    public final float dt;
+
+    /**
+     * Whether the primary weapon was fired during the tick.
+     */
+    public final boolean fire;
+
+    /**
+     * Whether the super ability was activated during the tick.
+     */
+    public final boolean useSuper;
+
+    /**
+     * Constructs an InputCommand.
+     * @param sequence The input's number.
+     * @param move The direction the player is moving in, each axis -1, 0 or 1.
+     * @param angle The angle the brawler is facing in degrees.
+     * @param dt How long the input was held in seconds.
+     * @param fire Whether the primary weapon was fired.
+     * @param useSuper Whether the super ability was activated.
+     */
+    public InputCommand(int sequence, Vector2 move, int angle, float dt, boolean fire, boolean useSuper) {
+        this.sequence = sequence;
+        this.move = move;
+        this.angle = angle;
+        this.dt = dt;
+        this.fire = fire;
+        this.useSuper = useSuper;
+    }
+
+    /**
+     * Constructs an InputCommand with the values rounded the same way they are sent, so the client predicts
+     * with exactly the input the host receives.
+     * @param sequence The input's number.
+     * @param move The direction the player is moving in.
+     * @param angle The angle the brawler is facing in degrees.
+     * @param dt How long the input was held in seconds.
+     * @param fire Whether the primary weapon was fired.
+     * @param useSuper Whether the super ability was activated.
+     * @return The quantized input.
+     */
+    public static InputCommand quantize(int sequence, Vector2 move, int angle, double dt, boolean fire, boolean useSuper) {
+        Vector2 direction = new Vector2(Math.signum(move.X), Math.signum(move.Y));
+        return new InputCommand(sequence, direction, toAngle(toAngleStep(angle)), toDt(toDtStep(dt)), fire, useSuper);
+    }
+
+    /**
+     * Rounds an angle to the nearest step.
+     * @param angle The angle in degrees.
+     * @return The step in range [0,{@link #ANGLE_STEPS}).
+     */
+    public static int toAngleStep(int angle) {
+        return Math.round(Math.floorMod(angle, 360) * ANGLE_STEPS / 360f) % ANGLE_STEPS;
+    }
+
+    /**
+     * Gets the angle of a step.
+     * @param step The step.
+     * @return The angle in degrees.
+     */
+    public static int toAngle(int step) {
+        return Math.round(step * 360f / ANGLE_STEPS) % 360;
+    }
+
+    /**
+     * Rounds a time step to the nearest step, at most 0xFFFF.
+     * @param dt The time step in seconds.
+     * @return The step.
+     */
+    public static int toDtStep(double dt) {
+        return (int) Math.max(0, Math.min(Math.round(dt * DT_STEPS), 0xFFFF));
+    }
+
+    /**
+     * Gets the time step of a step.
+     * @param step The step.
+     * @return The time step in seconds.
+     */
+    public static float toDt(int step) {
+        return step / (float) DT_STEPS;
+    }
+}
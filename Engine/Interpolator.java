@@ -0,0 +1,196 @@
+package Engine;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import MathLib.Vector2;
+
+/**
+ * Buffers the positions of remote entities received in snapshots and plays them back {@link #getDelay()} milliseconds
+ * behind the host, so entities move smoothly between two snapshots instead of jumping whenever a packet arrives.
+ * When no newer snapshot has arrived the last movement is extrapolated for at most {@link #MAX_EXTRAPOLATION} milliseconds.
+ * Times are the host's snapshot times in milliseconds, the host clock is estimated from when snapshots arrive.
+ * @author haotian
+ */
+public class Interpolator {
+
+    /**
+     * How far behind the host entities are shown at least, long enough to usually have a snapshot on both sides.
+     */
+    public static final int DELAY = 100;
+
+    /**
+     * How many snapshot intervals behind the host entities are shown when the host sends snapshots slowly,
+     * so one lost snapshot does not leave nothing to interpolate to.
+     */
+    public static final int DELAY_INTERVALS = 2;
+
+    /**
+     * How long the last movement is continued when snapshots stop arriving.
+     */
+    public static final int MAX_EXTRAPOLATION = 150;
+
+    /**
+     * Entities that move further than this many tiles between two snapshots are moved there directly.
+     */
+    public static final float TELEPORT_DISTANCE = 3;
+
+    private static final int CAPACITY = 32;
+
+    private static class Sample {
+        private final int time;
+        private final Vector2 position;
+
+        private Sample(int time, Vector2 position) {
+            this.time = time;
+            this.position = position;
+        }
+    }
+
+    private final HashMap<Short, ArrayDeque<Sample>> samples = new HashMap<>();
+
+    private double offset;
+    private boolean synced = false;
+
+    // The host time of the newest snapshot and the smoothed time between snapshots
+    private int lastObserved;
+    private double interval = 0;
+
+    /**
+     * Updates the estimate of the host clock when a snapshot arrives.
+     * Snapshots that arrive late only move the estimate slowly, snapshots that arrive early move it right away.
+     * @param hostTime The host time of the snapshot.
+     */
+    synchronized public void observe(int hostTime) {
+        if (synced && hostTime > lastObserved) {
+            int gap = hostTime - lastObserved;
+            interval = interval == 0 ? gap : interval + (gap - interval) * 0.1;
+        }
+        if (!synced || hostTime > lastObserved) {
+            lastObserved = hostTime;
+        }
+        double sample = hostTime - now();
+        if (!synced || sample > offset) {
+            offset = sample;
+            synced = true;
+        } else {
+            offset += (sample - offset) * 0.05;
+        }
+    }
+
+    /**
+     * Adds the position an entity had at a host time. Samples older than the newest one are ignored.
+     * @param id The entity ID.
+     * @param hostTime The host time of the snapshot.
+     * @param position The entity's position.
+     */
+    synchronized public void add(short id, int hostTime, Vector2 position) {
+        ArrayDeque<Sample> buffer = samples.computeIfAbsent(id, k -> new ArrayDeque<>());
+        Sample last = buffer.peekLast();
+        if (last != null && hostTime <= last.time) {
+            return;
+        }
+        buffer.addLast(new Sample(hostTime, position));
+        if (buffer.size() > CAPACITY) {
+            buffer.removeFirst();
+        }
+    }
+
+    /**
+     * Forgets an entity.
+     * @param id The entity ID.
+     */
+    synchronized public void remove(short id) {
+        samples.remove(id);
+    }
+
+    /**
+     * Forgets every entity.
+     */
+    synchronized public void clear() {
+        samples.clear();
+        synced = false;
+        interval = 0;
+    }
+
+    /**
+     * Gets the IDs of the entities that have samples.
+     * @return A copy of the IDs.
+     */
+    synchronized public Set<Short> getEntities() {
+        return new HashSet<>(samples.keySet());
+    }
+
+    /**
+     * Gets the host time entities are currently shown at.
+     * @return The render time.
+     */
+    synchronized public int getRenderTime() {
+        return (int) (now() + offset) - getDelay();
+    }
+
+    /**
+     * Gets how far behind the host entities are shown, {@link #DELAY} or {@link #DELAY_INTERVALS} times the time
+     * between two snapshots when the host sends them less often.
+     * @return The delay in milliseconds.
+     */
+    synchronized public int getDelay() {
+        return Math.max(DELAY, (int) Math.ceil(interval * DELAY_INTERVALS));
+    }
+
+    /**
+     * Gets the position of an entity at a host time, dropping the samples that are no longer needed.
+     * @param id The entity ID.
+     * @param time The host time, usually {@link #getRenderTime()}.
+     * @return The position, or null if the entity has no samples.
+     */
+    synchronized public Vector2 sample(short id, int time) {
+        ArrayDeque<Sample> buffer = samples.get(id);
+        if (buffer == null || buffer.isEmpty()) {
+            return null;
+        }
+        Sample before = null;
+        Sample after = null;
+        Sample previous = null;
+        Iterator<Sample> iterator = buffer.iterator();
+        while (iterator.hasNext()) {
+            Sample sample = iterator.next();
+            if (sample.time <= time) {
+                previous = before;
+                before = sample;
+            } else {
+                after = sample;
+                break;
+            }
+        }
+
+        if (before == null) {
+            return after.position;
+        }
+        Sample keep = previous != null ? previous : before;
+        while (buffer.peekFirst() != keep) {
+            buffer.removeFirst();
+        }
+        if (after != null) {
+            if (before.position.distanceTo(after.position) > TELEPORT_DISTANCE) {
+                return before.position;
+            }
+            float alpha = (float) (time - before.time) / (after.time - before.time);
+            return before.position.add(after.position.sub(before.position).mul(alpha));
+        }
+
+        if (previous == null || before.position.distanceTo(previous.position) > TELEPORT_DISTANCE) {
+            return before.position;
+        }
+        int ahead = Math.min(time - before.time, MAX_EXTRAPOLATION);
+        Vector2 velocity = before.position.sub(previous.position).div(before.time - previous.time);
+        return before.position.add(velocity.mul(ahead));
+    }
+
+    private static double now() {
+        return System.nanoTime() / 1e6;
+    }
+}
@@ -1,7 +1,15 @@
 package Engine;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Scanner;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import Resources.ResourceManager;
 
@@ -105,6 +113,108 @@ public class Map {
         return charMap[0].length;
     }
 
+    /**
+     * The most cells a decompressed map may have, so a corrupt or hostile packet can not make a client allocate too much.
+     */
+    public static final int MAX_CELLS = 1 << 20;
+
+    /**
+     * Writes the map's size followed by every character row by row.
+     *
+     * @return the uncompressed bytes of the map
+     */
+    private byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + height() * width() * 2);
+        buffer.putInt(height());
+        buffer.putInt(width());
+        for (char[] row : charMap) {
+            for (char c : row) {
+                buffer.putChar(c);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns a hash of the map's size and characters, equal for maps with the same content.
+     * It is the first 8 bytes of the SHA-256 digest, used to tell if a client already has a map.
+     *
+     * @return the content hash of the map
+     */
+    public long getHash() {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(toBytes())).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compresses the map with deflate. Maps are mostly rows of the same few characters so they shrink a lot.
+     *
+     * @return the compressed map
+     */
+    public byte[] compress() {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(toBytes());
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Constructs a Map from the bytes made by {@link #compress()}.
+     *
+     * @param bytes the compressed map
+     * @return the map
+     * @throws IOException if the bytes are not a valid compressed map
+     */
+    public static Map decompress(byte[] bytes) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(bytes);
+        try {
+            byte[] header = new byte[8];
+            if (inflater.inflate(header) != header.length) {
+                throw new IOException("Map is too short");
+            }
+            ByteBuffer size = ByteBuffer.wrap(header);
+            int rows = size.getInt();
+            int cols = size.getInt();
+            if (rows <= 0 || cols <= 0 || (long) rows * cols > MAX_CELLS) {
+                throw new IOException("Invalid map size " + cols + "x" + rows);
+            }
+            byte[] cells = new byte[rows * cols * 2];
+            int read = 0;
+            while (read < cells.length && !inflater.finished()) {
+                int n = inflater.inflate(cells, read, cells.length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != cells.length) {
+                throw new IOException("Map is too short");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(cells);
+            char[][] grid = new char[rows][cols];
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < cols; j++) {
+                    grid[i][j] = buffer.getChar();
+                }
+            }
+            return new Map(grid);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     /**
      * Returns a string representation of the map.
      * 
@@ -127,5 +237,14 @@ public class Map {
     public static void main(String[] args) {
         Map m = new Map(ResourceManager.getResource("Maps/BaseMap.txt"));
         System.out.println(m.toString());
+
+        byte[] compressed = m.compress();
+        System.out.println("hash " + Long.toHexString(m.getHash()) + ", " + (m.width() * m.height() * 2) + " bytes compressed to " + compressed.length);
+        try {
+            Map copy = decompress(compressed);
+            System.out.println("round trip " + (copy.getHash() == m.getHash() && copy.toString().equals(m.toString()) ? "ok" : "FAILED"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
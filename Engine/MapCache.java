@@ -0,0 +1,76 @@
+package Engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the maps a client has received, keyed by {@link Map#getHash()}, so a map the host offers again is
+ * loaded locally instead of being sent over the network. Maps are kept in memory and written compressed
+ * to a folder in the temp directory so they are still there the next time the game is started.
+ * @author haotian
+ */
+public class MapCache {
+
+    private static final File DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "BrawlShapes" + File.separator + "maps");
+
+    private static final ConcurrentHashMap<Long, Map> maps = new ConcurrentHashMap<>();
+
+    private MapCache() {
+    }
+
+    private static File getFile(long hash) {
+        return new File(DIRECTORY, String.format("%016x.map", hash));
+    }
+
+    /**
+     * Gets a cached map.
+     * @param hash The content hash of the map.
+     * @return The map, or null if it is not cached or the cached copy does not match the hash.
+     */
+    public static Map get(long hash) {
+        Map map = maps.get(hash);
+        if (map != null) {
+            return map;
+        }
+        File file = getFile(hash);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            map = Map.decompress(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            System.out.println("[MapCache] Failed to read " + file + ": " + e.getMessage());
+            return null;
+        }
+        if (map.getHash() != hash) {
+            System.out.println("[MapCache] Cached map " + file + " does not match its hash");
+            file.delete();
+            return null;
+        }
+        maps.put(hash, map);
+        return map;
+    }
+
+    /**
+     * Adds a map to the cache.
+     * @param hash The content hash of the map.
+     * @param map The map.
+     * @param compressed The map compressed with {@link Map#compress()}, written to disk as is.
+     */
+    public static void put(long hash, Map map, byte[] compressed) {
+        maps.put(hash, map);
+        File file = getFile(hash);
+        try {
+            Files.createDirectories(DIRECTORY.toPath());
+            File temp = new File(DIRECTORY, file.getName() + ".tmp");
+            Files.write(temp.toPath(), compressed);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            System.out.println("[MapCache] Failed to write " + file + ": " + e.getMessage());
+        }
+    }
+}
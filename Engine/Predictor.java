@@ -0,0 +1,132 @@
+package Engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import Engine.Collisions.CollisionHandler;
+import Engine.Entities.Entity;
+import MathLib.Vector2;
+
+/**
+ * Predicts the locally controlled brawler on a client. Every tick's input is numbered, kept in a history and
+ * applied right away, so the brawler moves without waiting a round trip for the host. When a snapshot arrives
+ * the brawler is put back at the host's position and the inputs the host has not processed yet are applied again
+ * with {@link #step}, the same movement the host uses.
+ * @author haotian
+ */
+public class Predictor {
+
+    /**
+     * How many inputs are kept, about two seconds of ticks. Older inputs are dropped even if they were never acknowledged.
+     */
+    public static final int CAPACITY = 128;
+
+    /**
+     * Corrections smaller than this many tiles are ignored, they come from the host's position being rounded.
+     */
+    public static final float CORRECTION_THRESHOLD = 0.01f;
+
+    private final ArrayDeque<InputCommand> history = new ArrayDeque<>();
+    private int sequence = 0;
+
+    private int acknowledged = 0;
+    private Vector2 authoritative = null;
+
+    /**
+     * Moves an entity by one input, setting its velocity and resolving collisions with the tiles.
+     * @param entity The entity to move.
+     * @param command The input.
+     * @param collisionHandler The collision handler of the entity's engine.
+     */
+    public static void step(Entity entity, InputCommand command, CollisionHandler collisionHandler) {
+        entity.setVelocity(command.move.mul(entity.getSpeed()));
+        entity.setPosition(collisionHandler.entityVsTile(entity, command.dt));
+    }
+
+    /**
+     * Numbers the input of a tick, quantizes it and adds it to the history.
+     * @param move The direction the player is moving in.
+     * @param angle The angle the brawler is facing in degrees.
+     * @param dt The time step in seconds.
+     * @param fire Whether the primary weapon was fired.
+     * @param useSuper Whether the super ability was activated.
+     * @return The input as the host receives it.
+     */
+    synchronized public InputCommand record(Vector2 move, int angle, double dt, boolean fire, boolean useSuper) {
+        InputCommand command = InputCommand.quantize(++sequence, move, angle, dt, fire, useSuper);
+        history.addLast(command);
+        if (history.size() > CAPACITY) {
+            history.removeFirst();
+        }
+        return command;
+    }
+
+    /**
+     * Gets the newest inputs the host has not acknowledged yet, sent again with every new input so an input
+     * is only lost if that many datagrams in a row are.
+     * @param count The most inputs to get.
+     * @return The inputs, oldest first.
+     */
+    synchronized public ArrayList<InputCommand> getRecent(int count) {
+        ArrayList<InputCommand> recent = new ArrayList<>(count);
+        Iterator<InputCommand> it = history.descendingIterator();
+        while (it.hasNext() && recent.size() < count) {
+            InputCommand command = it.next();
+            if (command.sequence <= acknowledged) {
+                break;
+            }
+            recent.add(0, command);
+        }
+        return recent;
+    }
+
+    /**
+     * Stores the host's position of the brawler and the last input it processed, applied by the next {@link #reconcile}.
+     * Snapshots that acknowledge older inputs than one already received are ignored.
+     * @param sequence The last input the host processed.
+     * @param position The brawler's position on the host after that input.
+     */
+    synchronized public void acknowledge(int sequence, Vector2 position) {
+        if (sequence < acknowledged || sequence == 0) {
+            return;
+        }
+        acknowledged = sequence;
+        authoritative = position;
+    }
+
+    /**
+     * Puts the brawler at the host's position and applies the inputs the host has not processed yet.
+     * Does nothing if no snapshot arrived since the last call. Called every tick before the brawler is updated.
+     * @param entity The locally controlled brawler.
+     * @param collisionHandler The collision handler of the local engine.
+     */
+    synchronized public void reconcile(Entity entity, CollisionHandler collisionHandler) {
+        if (authoritative == null) {
+            return;
+        }
+        while (!history.isEmpty() && history.peekFirst().sequence <= acknowledged) {
+            history.removeFirst();
+        }
+        Vector2 predicted = entity.getPosition();
+        Vector2 velocity = entity.getVelocity();
+        entity.setPosition(authoritative);
+        for (InputCommand command : history) {
+            step(entity, command, collisionHandler);
+        }
+        if (entity.getPosition().distanceTo(predicted) < CORRECTION_THRESHOLD) {
+            entity.setPosition(predicted);
+        }
+        entity.setVelocity(velocity);
+        authoritative = null;
+    }
+
+    /**
+     * Forgets every input, for when the brawler changes.
+     */
+    synchronized public void clear() {
+        history.clear();
+        authoritative = null;
+        acknowledged = 0;
+    }
+}
@@ -1,6 +1,7 @@
 package Engine;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import Networking.*;
 import Signal.ConnectionContainer;
 import Engine.*;
@@ -27,8 +28,429 @@ public class Replicator {
 
     private HashSet<UUID> toRemove = new HashSet<UUID>();
 
+    private volatile byte[] offeredMap = null;
+    private volatile long offeredHash = 0;
+
+    private Long requestedMap = null;
+    private final ArrayList<PendingTile> pendingTiles = new ArrayList<>();
+
     public final boolean isHost;
 
+    /**
+     * The reliable channel of the game's lifetime and its entities, so an entity is never spawned before the game
+     * started and never given an owner before it is spawned.
+     */
+    public static final int ENTITY_CHANNEL = 0;
+
+    /**
+     * The reliable channel of the map and its tiles, so a lost tile does not hold back entity events and the other way around.
+     */
+    public static final int TILE_CHANNEL = 1;
+
+    /**
+     * Whether projectiles are flown by the clients from their spawn instead of being sent in every snapshot.
+     */
+    private volatile boolean simulateProjectiles = true;
+
+    /**
+     * How many snapshots per second a client is sent at most by default, the {@link SendScheduler} lowers it for clients that fall behind.
+     */
+    public static final int DEFAULT_SNAPSHOT_RATE = 30;
+
+    private volatile int snapshotRate = DEFAULT_SNAPSHOT_RATE;
+
+    /**
+     * The longest time step a single input may move a brawler, in seconds.
+     */
+    private static final float MAX_INPUT_DT = 0.1f;
+
+    /**
+     * How many seconds of input a client may send ahead of the host's clock, to absorb inputs that arrive in bursts.
+     * Inputs beyond it wait for the next tick, so a client can not move faster by sending more of them.
+     */
+    private static final double MAX_INPUT_BUDGET = 0.25;
+
+    /**
+     * How many of the newest unacknowledged inputs a client sends every tick, so an input survives this many lost datagrams in a row.
+     */
+    public static final int INPUT_REDUNDANCY = 4;
+
+    // The bits of an input's first byte
+    private static final int MOVE_LEFT = 1, MOVE_RIGHT = 2, MOVE_UP = 4, MOVE_DOWN = 8, FIRE = 16, USE_SUPER = 32;
+
+    /**
+     * How many snapshots are kept. A client that has not acknowledged a snapshot this recent gets a full one.
+     */
+    private static final int SNAPSHOT_HISTORY = 64;
+
+    /**
+     * Entities closer than this many tiles to a client's brawler are replicated to it, a bit more than the visible area.
+     */
+    private static final float INTEREST_RADIUS = 15;
+
+    /**
+     * How many tiles further an entity has to move before it stops being replicated,
+     * so entities at the edge are not spawned and removed over and over.
+     */
+    private static final float INTEREST_HYSTERESIS = 3;
+
+    /**
+     * How much faster the priority of a brawler's and a projectile's unsent changes grows than that of other entities.
+     */
+    private static final float BRAWLER_WEIGHT = 4;
+    private static final float PROJECTILE_WEIGHT = 2;
+
+    /**
+     * The distance in tiles from a client's brawler at which an entity's weight is halved.
+     */
+    private static final float WEIGHT_FALLOFF = 5;
+
+    /**
+     * A tile change that arrived while the map was being downloaded, applied once the map is loaded.
+     */
+    private static class PendingTile {
+        final TileData data;
+        final boolean removed;
+
+        PendingTile(TileData data, boolean removed){
+            this.data = data;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * What the host replicates to one client: the entities spawned on it, the snapshots it was sent
+     * filtered to those entities and its bandwidth budget.
+     */
+    private static class ClientView {
+        private final HashSet<Short> interest = new HashSet<>();
+        private final Snapshot.History snapshots = new Snapshot.History(SNAPSHOT_HISTORY);
+        private final SendScheduler scheduler = new SendScheduler();
+        private int acknowledged = 0;
+        private int lastSent = 0;
+
+        // Inputs received but not applied yet, the last one applied and how many seconds of input may still be applied
+        private final ArrayDeque<InputCommand> inputs = new ArrayDeque<>();
+        private int lastQueued = 0;
+        private int lastInput = 0;
+        private double inputBudget = 0;
+
+        synchronized private void queue(InputCommand command){
+            if (command.sequence <= lastQueued){
+                return;
+            }
+            lastQueued = command.sequence;
+            inputs.addLast(command);
+            if (inputs.size() > Predictor.CAPACITY){
+                inputs.removeFirst();
+            }
+        }
+
+        synchronized private int getLastInput(){
+            return lastInput;
+        }
+
+        synchronized private void acknowledge(int number){
+            acknowledged = Math.max(acknowledged, number);
+        }
+
+        synchronized private int getAcknowledged(){
+            return acknowledged;
+        }
+    }
+
+    // Host: entities added and removed since the last snapshot, and what every client has
+    private Snapshot lastSnapshot = Snapshot.EMPTY;
+    private final ArrayList<ComponentData> addedEntities = new ArrayList<>();
+    private final ArrayList<Short> removedEntities = new ArrayList<>();
+    private final ConcurrentHashMap<Short, ClientView> views = new ConcurrentHashMap<>();
+
+    // Client: the snapshots received, and the one whose changes were set on the entities last
+    private final Snapshot.History snapshots = new Snapshot.History(SNAPSHOT_HISTORY);
+    private Snapshot appliedSnapshot = Snapshot.EMPTY;
+
+    /**
+     * Client: plays back the positions of remote entities between snapshots.
+     */
+    public final Interpolator interpolator = new Interpolator();
+
+    /**
+     * Client: predicts the locally controlled brawler from its inputs.
+     */
+    public final Predictor predictor = new Predictor();
+
+    // Client: the buttons pressed since the last input was sent
+    private volatile boolean pendingFire = false;
+    private volatile boolean pendingSuper = false;
+
+    // Host: snapshot times are measured from when the replicator was created
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Encodes the newest inputs of a client as the sequence number of the newest, their count, then for every input
+     * oldest first a byte of movement and button {@link #MOVE_LEFT bits}, the angle {@link InputCommand#toAngleStep step}
+     * and the time step {@link InputCommand#toDtStep step} as two bytes. The inputs have consecutive sequence numbers.
+     */
+    private static final PayloadCodec<ArrayList<InputCommand>> INPUT_BATCH_CODEC = new PayloadCodec<ArrayList<InputCommand>>() {
+        public void write(WireBuffer out, ArrayList<InputCommand> commands) {
+            out.writeVarInt(commands.get(commands.size() - 1).sequence);
+            out.writeByte(commands.size());
+            for (InputCommand command : commands) {
+                int bits = (command.move.X < 0 ? MOVE_LEFT : 0) | (command.move.X > 0 ? MOVE_RIGHT : 0)
+                        | (command.move.Y < 0 ? MOVE_UP : 0) | (command.move.Y > 0 ? MOVE_DOWN : 0)
+                        | (command.fire ? FIRE : 0) | (command.useSuper ? USE_SUPER : 0);
+                out.writeByte(bits);
+                out.writeByte(InputCommand.toAngleStep(command.angle));
+                out.writeShort(InputCommand.toDtStep(command.dt));
+            }
+        }
+
+        public ArrayList<InputCommand> read(WireBuffer in) throws IOException {
+            int newest = in.readVarInt();
+            int count = in.readUnsignedByte();
+            if (count < 1 || count > INPUT_REDUNDANCY) {
+                throw new StreamCorruptedException("Invalid input count " + count);
+            }
+            ArrayList<InputCommand> commands = new ArrayList<>(count);
+            for (int i = count - 1; i >= 0; i--) {
+                int bits = in.readUnsignedByte();
+                Vector2 move = new Vector2(((bits & MOVE_RIGHT) != 0 ? 1 : 0) - ((bits & MOVE_LEFT) != 0 ? 1 : 0),
+                        ((bits & MOVE_DOWN) != 0 ? 1 : 0) - ((bits & MOVE_UP) != 0 ? 1 : 0));
+                int angle = InputCommand.toAngle(in.readUnsignedByte());
+                float dt = InputCommand.toDt(in.readUnsignedShort());
+                commands.add(new InputCommand(newest - i, move, angle, dt, (bits & FIRE) != 0, (bits & USE_SUPER) != 0));
+            }
+            return commands;
+        }
+    };
+
+    /**
+     * Encodes the entities spawned on a client during a tick as their count, then for every entity its ID, class ID, UUID
+     * and the components that differ from its class's {@link EntityTemplates template}.
+     */
+    private static final PayloadCodec<ArrayList<ComponentData>> SPAWN_BATCH_CODEC = new PayloadCodec<ArrayList<ComponentData>>() {
+        public void write(WireBuffer out, ArrayList<ComponentData> spawns) throws IOException {
+            out.writeVarInt(spawns.size());
+            for (ComponentData data : spawns) {
+                out.writeShort(data.entityId);
+                out.writeByte(data.entityType);
+                out.writeUUID(data.entityUUID);
+                writeComponents(out, data.components);
+            }
+        }
+
+        public ArrayList<ComponentData> read(WireBuffer in) throws IOException {
+            int size = in.readVarInt();
+            ArrayList<ComponentData> spawns = new ArrayList<>(Math.min(size, 256));
+            for (int i = 0; i < size; i++) {
+                ComponentData data = new ComponentData(in.readShort(), in.readByte(), in.readUUID());
+                readComponents(in, data.components);
+                spawns.add(data);
+            }
+            return spawns;
+        }
+    };
+
+    /**
+     * Encodes a SnapshotDelta as its number, baseline, host time, acknowledged input, removed and deferred entities, then for every changed entity
+     * its ID, a flag byte (1 if it is sent in full), a bit mask of the component IDs that follow and their tagged values
+     * in ascending ID order, written by {@link ComponentQuantizer}. The mask is a word count followed by up to four longs, bit i of word w is component 64w+i.
+     */
+    private static final PayloadCodec<SnapshotDelta> SNAPSHOT_DELTA_CODEC = new PayloadCodec<SnapshotDelta>() {
+        public void write(WireBuffer out, SnapshotDelta delta) throws IOException {
+            out.writeVarInt(delta.number);
+            out.writeVarInt(delta.baseline);
+            out.writeInt(delta.time);
+            out.writeVarInt(delta.input);
+            out.writeVarInt(delta.removed.size());
+            for (Short id : delta.removed) {
+                out.writeShort(id);
+            }
+            out.writeVarInt(delta.deferred.size());
+            for (Short id : delta.deferred) {
+                out.writeShort(id);
+            }
+            out.writeVarInt(delta.changed.size());
+            for (HashMap.Entry<Short, HashMap<Byte, Serializable>> entry : delta.changed.entrySet()) {
+                writeEntity(out, entry.getKey(), delta.full.contains(entry.getKey()), entry.getValue());
+            }
+        }
+
+        public SnapshotDelta read(WireBuffer in) throws IOException {
+            SnapshotDelta delta = new SnapshotDelta(in.readVarInt(), in.readVarInt(), in.readInt());
+            delta.input = in.readVarInt();
+            int removed = in.readVarInt();
+            for (int i = 0; i < removed; i++) {
+                delta.removed.add(in.readShort());
+            }
+            int deferred = in.readVarInt();
+            for (int i = 0; i < deferred; i++) {
+                delta.deferred.add(in.readShort());
+            }
+            int changed = in.readVarInt();
+            for (int i = 0; i < changed; i++) {
+                short entityId = in.readShort();
+                if (in.readByte() == 1) {
+                    delta.full.add(entityId);
+                }
+                int words = in.readUnsignedByte();
+                if (words > 4) {
+                    throw new StreamCorruptedException("Invalid component mask size " + words);
+                }
+                long[] mask = new long[words];
+                for (int w = 0; w < words; w++) {
+                    mask[w] = in.readLong();
+                }
+                HashMap<Byte, Serializable> components = new HashMap<>();
+                for (int w = 0; w < words; w++) {
+                    long bits = mask[w];
+                    while (bits != 0) {
+                        int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        components.put((byte) (id - 128), ComponentQuantizer.read(in, (byte) (id - 128)));
+                    }
+                }
+                delta.changed.put(entityId, components);
+            }
+            return delta;
+        }
+    };
+
+    private static final PayloadCodec<TileData> TILE_DATA_CODEC = new PayloadCodec<TileData>() {
+        public void write(WireBuffer out, TileData data) {
+            out.writeChar(data.tile);
+            out.writeShort(data.x);
+            out.writeShort(data.y);
+        }
+
+        public TileData read(WireBuffer in) {
+            return new TileData(in.readChar(), in.readShort(), in.readShort());
+        }
+    };
+
+    private static void writeEntity(WireBuffer out, short entityId, boolean full, HashMap<Byte, Serializable> components) throws IOException {
+        out.writeShort(entityId);
+        out.writeByte(full ? 1 : 0);
+        long[] mask = new long[4];
+        for (Byte key : components.keySet()) {
+            int id = key + 128;
+            mask[id >> 6] |= 1L << (id & 63);
+        }
+        int words = mask.length;
+        while (words > 0 && mask[words - 1] == 0) {
+            words--;
+        }
+        out.writeByte(words);
+        for (int w = 0; w < words; w++) {
+            out.writeLong(mask[w]);
+        }
+        for (int w = 0; w < words; w++) {
+            long bits = mask[w];
+            while (bits != 0) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                ComponentQuantizer.write(out, (byte) (id - 128), components.get((byte) (id - 128)));
+            }
+        }
+    }
+
+    private static void writeComponents(WireBuffer out, HashMap<Byte, Serializable> components) throws IOException {
+        out.writeVarInt(components.size());
+        for (HashMap.Entry<Byte, Serializable> entry : components.entrySet()) {
+            out.writeByte(entry.getKey());
+            ComponentQuantizer.write(out, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static HashMap<Byte, Serializable> readComponents(WireBuffer in, HashMap<Byte, Serializable> components) throws IOException {
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            byte key = in.readByte();
+            components.put(key, ComponentQuantizer.read(in, key));
+        }
+        return components;
+    }
+
+    /**
+     * Sets whether the host lets clients fly projectiles themselves. When on, a projectile is spawned on a client with
+     * its position, velocity, the host time they were taken at and its lifetime, and its motion is left out of the
+     * snapshots. The host still decides what it hits and when it is removed. Only the host's setting matters,
+     * clients simulate whatever projectiles were spawned with a {@link Projectile#SPAWN_TIME}.
+     * Every match has its own setting.
+     * @param value Whether projectiles are simulated on the clients.
+     */
+    public void setProjectileSimulation(boolean value){
+        simulateProjectiles = value;
+    }
+
+    /**
+     * Sets how many snapshots per second the host sends a client at most. The simulation still runs at {@link Engine#FPS},
+     * a snapshot carries every change since the one the client acknowledged, so changes in between are coalesced.
+     * Every match has its own rate.
+     * @param hz The snapshot rate.
+     */
+    public void setSnapshotRate(int hz){
+        if (hz < 1){
+            throw new IllegalArgumentException("[Replicator] snapshot rate must be at least 1 but was " + hz);
+        }
+        snapshotRate = hz;
+    }
+
+    /**
+     * Gets how many snapshots per second the host sends a client at most.
+     * @return The snapshot rate.
+     */
+    public int getSnapshotRate(){
+        return snapshotRate;
+    }
+
+    /**
+     * Gets how many snapshots per second the host currently sends a client.
+     * @param clientId The client's ID.
+     * @return The client's snapshot rate, or -1 if it was not sent any yet.
+     */
+    public double getClientSnapshotRate(Short clientId){
+        ClientView view = views.get(clientId);
+        return view == null ? -1 : view.scheduler.getRate();
+    }
+
+    /**
+     * Checks whether the host leaves an entity's motion out of the snapshots because the clients simulate it.
+     * @param e The entity.
+     * @return true if it is a projectile and projectiles are simulated on the clients.
+     */
+    public boolean isSimulated(Entity e){
+        return simulateProjectiles && e instanceof Projectile;
+    }
+
+    /**
+     * Registers the codecs and channels for the remotes used by the replicator.
+     * Called by the SessionManager so the host and the clients agree on them before any packets are sent.
+     * @param networkHandler The network handler to register the codecs on.
+     */
+    public static void registerCodecs(NetworkHandler networkHandler){
+        networkHandler.registerCodec("InputCommand", INPUT_BATCH_CODEC);
+        networkHandler.registerCodec("EntitySnapshot", SNAPSHOT_DELTA_CODEC);
+        // a snapshot is encoded against one the client acknowledged, so an unsent one can be replaced by a newer one
+        networkHandler.setCoalescing("EntitySnapshot", true);
+        networkHandler.registerCodec("SnapshotAck", Codecs.INT);
+        networkHandler.registerCodec("EntityAdded", SPAWN_BATCH_CODEC);
+        networkHandler.registerCodec("EntityRemoved", Codecs.UUID);
+        networkHandler.registerCodec("MapOffer", Codecs.LONG);
+        networkHandler.registerCodec("RequestMap", Codecs.LONG);
+        networkHandler.registerCodec("ReplicateMap", Codecs.BYTES);
+        networkHandler.registerCodec("AddTile", TILE_DATA_CODEC);
+        networkHandler.registerCodec("RemoveTile", TILE_DATA_CODEC);
+        networkHandler.registerCodec("SetOwner", Codecs.UUID);
+
+        for (String remote : new String[]{"EntityAdded", "EntityRemoved", "SetOwner"}) {
+            networkHandler.setChannel(remote, ChannelType.RELIABLE_ORDERED, ENTITY_CHANNEL);
+        }
+        for (String remote : new String[]{"MapOffer", "RequestMap", "ReplicateMap", "AddTile", "RemoveTile"}) {
+            networkHandler.setChannel(remote, ChannelType.RELIABLE_ORDERED, TILE_CHANNEL);
+        }
+    }
+
     /**
      * Constructs a Replicator object.
      * @param engine The game engine.
@@ -40,14 +462,21 @@ public class Replicator {
         if (networkHandler == null){
             return;
         }
+        networkHandler.setBatching(true);
 
         if (!engine.session.isHost){
             networkHandler.getRemote("EntityAdded").onMessage.connect(packet -> {
-                ComponentData data = (ComponentData)packet.getPayLoad();
-                Entity entity = Entity.fromComponentData(engine,data);
-                engine.entityHandler.add(entity);
-                if (toRemove.contains(entity.ID) ){
-                    entity.destroy();
+                @SuppressWarnings("unchecked")
+                ArrayList<ComponentData> spawns = (ArrayList<ComponentData>)packet.getPayLoad();
+                for (ComponentData data : spawns){
+                    Entity entity = Entity.fromComponentData(engine,data);
+                    if (entity == null){
+                        continue;
+                    }
+                    engine.entityHandler.add(entity);
+                    if (toRemove.remove(entity.ID) ){
+                        entity.destroy();
+                    }
                 }
             }, connectionContainer);
     
@@ -62,19 +491,42 @@ public class Replicator {
     
             }, connectionContainer);
 
+            networkHandler.getRemote("MapOffer").onMessage.connect(packet -> {
+                long hash = (Long)packet.getPayLoad();
+                Map map = MapCache.get(hash);
+                if (map != null){
+                    requestedMap = null;
+                    pendingTiles.clear();
+                    engine.tileHandler.loadMap(map);
+                    return;
+                }
+                requestedMap = hash;
+                pendingTiles.clear();
+                Packet request = new Packet();
+                request.addToPayLoad(hash);
+                networkHandler.getRemote("RequestMap").fireServer(request);
+            }, connectionContainer);
+
             networkHandler.getRemote("ReplicateMap").onMessage.connect(packet -> {
-                char[][] map = ( char[][] )packet.getPayLoad();
-                engine.tileHandler.loadMap(new Map(map));
+                receiveMap((byte[])packet.getPayLoad());
             }, connectionContainer);
 
             
             networkHandler.getRemote("AddTile").onMessage.connect(packet -> {
                 TileData data = (TileData)packet.getPayLoad();
+                if (requestedMap != null){
+                    pendingTiles.add(new PendingTile(data, false));
+                    return;
+                }
                 engine.tileHandler.addTile(data.x, data.y,data.tile);
             }, connectionContainer);
 
             networkHandler.getRemote("RemoveTile").onMessage.connect(packet -> {
                 TileData data = (TileData)packet.getPayLoad();
+                if (requestedMap != null){
+                    pendingTiles.add(new PendingTile(data, true));
+                    return;
+                }
                 engine.tileHandler.removeTile(data.x, data.y);
             }, connectionContainer);
 
@@ -83,30 +535,45 @@ public class Replicator {
                 System.out.println(engine.session.localPlayer.toString());
                 engine.setOwner(engine.session.localPlayer,id);
             }, connectionContainer);
-            networkHandler.getRemote("EntityComponents").onMessage.connect(packet -> {
-                engine.entityHandler.parseData((EntityHandler.ComponentMap)packet.getPayLoad());
+            networkHandler.getRemote("EntitySnapshot").onMessage.connect(packet -> {
+                receiveSnapshot((SnapshotDelta)packet.getPayLoad());
             }, connectionContainer);
     
         }else{
-            networkHandler.getRemote("EntityComponents").onMessage.connect(packet -> {
-                engine.entityHandler.parseData((EntityHandler.ComponentMap)packet.getPayLoad());
+            networkHandler.getRemote("InputCommand").onMessage.connect(packet -> {
+                // a view is added for every connected client when a snapshot is sent, and removed when it leaves
+                ClientView view = views.get(packet.getClientID());
+                if (view == null){
+                    return;
+                }
+                @SuppressWarnings("unchecked")
+                ArrayList<InputCommand> commands = (ArrayList<InputCommand>)packet.getPayLoad();
+                for (InputCommand command : commands){
+                    view.queue(command);
+                }
             }, connectionContainer);
 
-            networkHandler.getRemote("UseSuper").onMessage.connect(packet -> {
-                Brawler b = (Brawler)engine.entityHandler.get((UUID)packet.getPayLoad());
-                if (b != null){
-                    b.activateSuper();
+            networkHandler.getRemote("SnapshotAck").onMessage.connect(packet -> {
+                ClientView view = views.get(packet.getClientID());
+                if (view != null){
+                    view.acknowledge((Integer)packet.getPayLoad());
                 }
             }, connectionContainer);
+            networkHandler.ClientRemoved.connect(client -> {
+                views.remove(client.getId());
+            }, connectionContainer);
 
-            
-            networkHandler.getRemote("Fire").onMessage.connect(packet -> {
-                Brawler b = (Brawler)engine.entityHandler.get((UUID)packet.getPayLoad());
-                if (b != null){
-                    b.fire();
+            networkHandler.getRemote("RequestMap").onMessage.connect(packet -> {
+                byte[] map = offeredMap;
+                NetworkUser client = networkHandler.getClient(packet);
+                if (map == null || client == null || !((Long)packet.getPayLoad()).equals(offeredHash)){
+                    return;
                 }
+                Packet reply = new Packet();
+                reply.addToPayLoad(map);
+                networkHandler.getRemote("ReplicateMap").fireClient(client, reply);
             }, connectionContainer);
-    
+
         }
 
 
@@ -114,29 +581,17 @@ public class Replicator {
     }
 
     /**
-     * Fires the primary weapon of the player's controlled entity.
+     * Fires the primary weapon of the player's controlled entity with the next input sent to the host.
      */
     public void fire(){
-        if (networkHandler == null){
-            return;
-        }
-
-        Packet packet = new Packet();
-        packet.addToPayLoad(engine.primaryEntity);
-        networkHandler.getRemote("Fire").fireServer(packet);
+        pendingFire = true;
     }
 
     /**
-     * Activates the super ability of the player's controlled entity.
+     * Activates the super ability of the player's controlled entity with the next input sent to the host.
      */
     public void useSuper(){
-        if (networkHandler == null){
-            return;
-        }
-
-        Packet packet = new Packet();
-        packet.addToPayLoad(engine.primaryEntity);
-        networkHandler.getRemote("UseSuper").fireServer(packet);
+        pendingSuper = true;
     }
 
     /**
@@ -180,65 +635,504 @@ public class Replicator {
             return;
         }
         Packet packet = new Packet();
-        packet.addToPayLoad(new TileData('X', x, y));
+        packet.addToPayLoad(new TileData(TileHandler.EMPTY_TILE, x, y));
         networkHandler.getRemote("RemoveTile").fireAllClients(packet);
     }
 
     /**
-     * Sends the game map data to all clients.
-     * @param map The game map data.
+     * Offers the game map to all clients by its content hash. Clients that have the map cached load it right away,
+     * the others request it and are sent it compressed.
+     * @param map The game map.
      */
-    protected void sendMapData(char[][] map){
+    protected void sendMapData(Map map){
         if (networkHandler == null){
             return;
         }
+        offeredMap = map.compress();
+        offeredHash = map.getHash();
         Packet packet = new Packet();
-        packet.addToPayLoad(map);
-        networkHandler.getRemote("ReplicateMap").fireAllClients(packet);
+        packet.addToPayLoad(offeredHash);
+        networkHandler.getRemote("MapOffer").fireAllClients(packet);
     }
 
     /**
-     * Sends the entity component data to all clients or the server.
-     * @param map The entity component data.
+     * Loads a map the host sent after it was requested, then applies the tile changes that arrived while waiting for it.
+     * @param compressed The compressed map.
      */
-    protected void sendEntityData(EntityHandler.ComponentMap map){
+    private void receiveMap(byte[] compressed){
+        Long hash = requestedMap;
+        if (hash == null){
+            return;
+        }
+        Map map;
+        try {
+            map = Map.decompress(compressed);
+        } catch (IOException e) {
+            System.out.println("[Replicator] Received an invalid map: " + e.getMessage());
+            return;
+        }
+        if (map.getHash() != hash){
+            System.out.println("[Replicator] Received map does not match the offered hash");
+            return;
+        }
+        MapCache.put(hash, map, compressed);
+        requestedMap = null;
+        engine.tileHandler.loadMap(map);
+        for (PendingTile pending : pendingTiles){
+            TileData data = pending.data;
+            if (pending.removed){
+                engine.tileHandler.removeTile(data.x, data.y);
+            }else{
+                engine.tileHandler.addTile(data.x, data.y, data.tile);
+            }
+        }
+        pendingTiles.clear();
+    }
+
+    /**
+     * Numbers the local player's input of the tick and sends it to the host together with the last
+     * {@link #INPUT_REDUNDANCY} inputs the host has not acknowledged, the host moves the brawler with them
+     * and fires its weapons when the input says so.
+     * @param move The direction the player is moving in, each axis -1, 0 or 1.
+     * @param angle The angle the brawler is facing in degrees.
+     * @param dt The time step in seconds.
+     */
+    public void sendInput(Vector2 move, int angle, double dt){
+        if (networkHandler == null || isHost){
+            return;
+        }
+        boolean fire = pendingFire, useSuper = pendingSuper;
+        pendingFire = false;
+        pendingSuper = false;
+        predictor.record(move, angle, dt, fire, useSuper);
+        Packet packet = new Packet();
+        packet.addToPayLoad(predictor.getRecent(INPUT_REDUNDANCY));
+        networkHandler.getRemote("InputCommand").fireServer(packet);
+    }
+
+    /**
+     * Moves the brawler of every client with the inputs it sent since the last tick and fires its weapons when an input says so. Every client may apply
+     * as many seconds of input as have passed on the host, so inputs can not make a brawler faster. Called every tick on the host.
+     * @param dt The time step in seconds.
+     */
+    protected void applyInputs(double dt){
         if (networkHandler == null){
             return;
         }
+        HashMap<Short, Brawler> controlled = getControlledBrawlers();
+        for (HashMap.Entry<Short, ClientView> entry : views.entrySet()){
+            ClientView view = entry.getValue();
+            Brawler brawler = controlled.get(entry.getKey());
+            synchronized (view){
+                if (brawler == null){
+                    view.inputs.clear();
+                    view.inputBudget = 0;
+                    continue;
+                }
+                view.inputBudget = Math.min(view.inputBudget + dt, MAX_INPUT_BUDGET);
+                while (!view.inputs.isEmpty() && view.inputBudget > 0){
+                    InputCommand command = view.inputs.removeFirst();
+                    InputCommand clamped = new InputCommand(command.sequence, command.move, command.angle,
+                            clamp(command.dt, 0, MAX_INPUT_DT), command.fire, command.useSuper);
+                    view.inputBudget -= clamped.dt;
+                    brawler.setAngle(clamped.angle);
+                    Predictor.step(brawler, clamped, engine.collisionHandler);
+                    view.lastInput = clamped.sequence;
+                    if (clamped.fire){
+                        brawler.fire();
+                    }
+                    if (clamped.useSuper){
+                        brawler.activateSuper();
+                    }
+                }
+            }
+        }
+    }
+
+    private static float clamp(float value, float min, float max){
+        if (Float.isNaN(value)){
+            return 0;
+        }
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Puts the locally controlled brawler back at the host's position and applies the inputs the host has
+     * not processed yet. Called every tick on clients before the brawler is updated.
+     */
+    protected void reconcile(){
+        if (networkHandler == null || isHost){
+            return;
+        }
+        Entity primary = engine.getPrimary();
+        if (primary != null && primary.isLocal && !primary.Destroyed){
+            predictor.reconcile(primary, engine.collisionHandler);
+        }
+    }
+
+    private HashMap<Short, Brawler> getControlledBrawlers(){
+        HashMap<Short, Brawler> controlled = new HashMap<>();
+        for (Brawler b : engine.entityHandler.getAllBrawlers()){
+            if (!b.Destroyed && b.owner != null && b.owner.clientID != null){
+                controlled.put(b.owner.clientID, b);
+            }
+        }
+        return controlled;
+    }
+
+    /**
+     * Builds the tick's snapshot on the host, updates which entities every client is interested in and sends it
+     * the changes to those entities since the snapshot it acknowledged last. Entities are spawned on a client
+     * when they come within {@link #INTEREST_RADIUS} of its brawler and removed when they move
+     * {@link #INTEREST_HYSTERESIS} further away. Brawlers are always replicated, and so is everything
+     * to clients that do not control a brawler. Every client is sent a snapshot at its own
+     * {@link SendScheduler snapshot rate}, at most {@link #getSnapshotRate()}, with the changes since the snapshot it
+     * acknowledged. Changes that do not fit the client's {@link NetworkUser#getSendRate() send rate} are held back
+     * by {@link #schedule}, the most important first. A snapshot is sent even if nothing changed, clients need its time
+     * to know that the entities stayed where they were. Called every tick.
+     * @param changes The components set during the tick.
+     */
+    protected void sendSnapshot(EntityHandler.ComponentMap changes){
+        if (networkHandler == null){
+            return;
+        }
+        Snapshot snapshot;
+        synchronized (addedEntities){
+            snapshot = lastSnapshot.next(lastSnapshot.number + 1, (int) ((System.nanoTime() - startTime) / 1000000), addedEntities, removedEntities, changes);
+            addedEntities.clear();
+            removedEntities.clear();
+        }
+        double seconds = (snapshot.time - lastSnapshot.time) / 1000.0;
+        lastSnapshot = snapshot;
+
+        HashMap<Short, Brawler> controlled = getControlledBrawlers();
+        Collection<Entity> entities = engine.entityHandler.getAllEntities();
+        HashMap<NetworkUser, ArrayList<Entity>> entering = new HashMap<>();
+        HashMap<Entity, ArrayList<NetworkUser>> leaving = new HashMap<>();
+        ArrayList<NetworkUser> clients = new ArrayList<>();
+
+        for (NetworkUser client : networkHandler.getClients()){
+            if (client.isLocal){
+                continue;
+            }
+            clients.add(client);
+            ClientView view = views.computeIfAbsent(client.getId(), id -> new ClientView());
+            Brawler focus = controlled.get(client.getId());
+            for (Entity e : entities){
+                if (e.Destroyed || snapshot.get(e.EntityID) == null){
+                    continue;
+                }
+                boolean inside = view.interest.contains(e.EntityID);
+                boolean relevant = isRelevant(focus, e, inside);
+                if (relevant && !inside){
+                    view.interest.add(e.EntityID);
+                    entering.computeIfAbsent(client, k -> new ArrayList<>()).add(e);
+                }else if (!relevant && inside){
+                    view.interest.remove(e.EntityID);
+                    leaving.computeIfAbsent(e, k -> new ArrayList<>()).add(client);
+                }
+            }
+        }
+
+        for (HashMap.Entry<Entity, ArrayList<NetworkUser>> entry : leaving.entrySet()){
+            Packet packet = new Packet();
+            packet.addToPayLoad(entry.getKey().ID);
+            networkHandler.getRemote("EntityRemoved").fireClients(entry.getValue(), packet);
+        }
+        // every client gets the entities spawned on it this tick in one packet, each entity diffed against its template once
+        HashMap<Entity, ComponentData> spawned = new HashMap<>();
+        for (HashMap.Entry<NetworkUser, ArrayList<Entity>> entry : entering.entrySet()){
+            ArrayList<ComponentData> spawns = new ArrayList<>(entry.getValue().size());
+            for (Entity e : entry.getValue()){
+                spawns.add(spawned.computeIfAbsent(e, k -> getSpawnData(k, snapshot.time)));
+            }
+            Packet packet = new Packet();
+            packet.addToPayLoad(spawns);
+            networkHandler.getRemote("EntityAdded").fireClient(entry.getKey(), packet);
+        }
+
+        Remote remote = networkHandler.getRemote("EntitySnapshot");
+        WireBuffer scratch = new WireBuffer(1024);
+        int maxRate = snapshotRate;
+        for (NetworkUser client : clients){
+            ClientView view = views.get(client.getId());
+            if (view == null){
+                continue;
+            }
+            view.scheduler.refill(client.getSendRate(), seconds);
+            if (!view.scheduler.isDue(maxRate, seconds)){
+                continue;
+            }
+            Snapshot visible = snapshot.filter(view.interest);
+            Snapshot baseline = view.snapshots.get(view.getAcknowledged());
+            if (baseline == null){
+                baseline = Snapshot.EMPTY;
+            }
+            SnapshotDelta delta = visible.diff(baseline);
+
+            ArrayList<Short> deferred = schedule(view.scheduler, controlled.get(client.getId()), delta, client.getPendingBytes(), scratch);
+            if (!deferred.isEmpty()){
+                Snapshot previous = view.snapshots.get(view.lastSent);
+                visible = visible.defer(previous != null ? previous : baseline, deferred);
+                delta = visible.diff(baseline);
+                delta.deferred.addAll(deferred);
+            }
+            view.snapshots.put(visible);
+            view.lastSent = visible.number;
+            delta.input = view.getLastInput();
+            view.scheduler.spend(measure(scratch, delta));
+            view.scheduler.adapt(maxRate, networkHandler.getMetrics().getRtt(client.getId()), client.getPendingBytes() > 0);
+            Packet packet = new Packet();
+            packet.addToPayLoad(delta);
+            remote.fireClient(client, packet);
+        }
+    }
+
+    /**
+     * Gets what a client is sent to spawn an entity: the components that differ from the entity's template,
+     * and for a simulated projectile the host time its position was taken at and its remaining lifetime.
+     * @param e The entity.
+     * @param time The host time of the snapshot being sent.
+     * @return The spawn data.
+     */
+    private ComponentData getSpawnData(Entity e, int time){
+        ComponentData data = EntityTemplates.diff(engine, e.getReplicationData());
+        if (isSimulated(e)){
+            data.setComponent(Projectile.SPAWN_TIME, time);
+            data.setComponent(Projectile.LIFETIME, ((Projectile) e).getRemainingLifetime());
+        }
+        return data;
+    }
+
+    /**
+     * Chooses the entity updates of a client's delta that fit into its bandwidth budget. Entities the client
+     * does not have yet and its own brawler are always sent, the rest are weighted by type and distance to the
+     * client's brawler and sent by priority.
+     * @param scheduler The client's scheduler.
+     * @param focus The brawler the client controls, or null.
+     * @param delta The client's delta with every change.
+     * @param backlog Bytes still waiting to be sent to the client, taken from the budget.
+     * @param scratch A buffer to measure the updates in.
+     * @return The IDs of the entities whose changes are held back.
+     */
+    private ArrayList<Short> schedule(SendScheduler scheduler, Brawler focus, SnapshotDelta delta, int backlog, WireBuffer scratch){
+        HashMap<Short, Float> weights = new HashMap<>();
+        HashMap<Short, Integer> sizes = new HashMap<>();
+        for (HashMap.Entry<Short, HashMap<Byte, Serializable>> entry : delta.changed.entrySet()){
+            weights.put(entry.getKey(), getWeight(focus, engine.entityHandler.get(entry.getKey())));
+            int start = scratch.position();
+            try {
+                writeEntity(scratch, entry.getKey(), delta.full.contains(entry.getKey()), entry.getValue());
+            } catch (IOException e) {
+                System.out.println("[Replicator] Could not measure entity " + entry.getKey() + ": " + e.getMessage());
+            }
+            sizes.put(entry.getKey(), scratch.position() - start);
+        }
+        ArrayList<Short> required = new ArrayList<>(delta.full);
+        if (focus != null){
+            required.add(focus.EntityID);
+        }
+        HashSet<Short> chosen = scheduler.select(weights, sizes, required, backlog);
+        ArrayList<Short> deferred = new ArrayList<>();
+        for (Short id : weights.keySet()){
+            if (!chosen.contains(id)){
+                deferred.add(id);
+            }
+        }
+        return deferred;
+    }
+
+    /**
+     * Gets how quickly the priority of an entity's unsent changes grows.
+     * Brawlers and projectiles matter most, and entities far from the client's brawler matter less.
+     * @param focus The brawler the client controls, or null.
+     * @param e The entity, or null if it is no longer on the host.
+     * @return The entity's weight.
+     */
+    private static float getWeight(Brawler focus, Entity e){
+        if (e == null){
+            return 1;
+        }
+        float weight = e instanceof Brawler ? BRAWLER_WEIGHT : e instanceof Projectile ? PROJECTILE_WEIGHT : 1;
+        if (focus != null && e != focus){
+            weight /= 1 + focus.getCenter().distanceTo(e.getCenter()) / WEIGHT_FALLOFF;
+        }
+        return weight;
+    }
+
+    private static int measure(WireBuffer scratch, SnapshotDelta delta){
+        int start = scratch.position();
+        try {
+            SNAPSHOT_DELTA_CODEC.write(scratch, delta);
+        } catch (IOException e) {
+            System.out.println("[Replicator] Could not measure snapshot " + delta.number + ": " + e.getMessage());
+        }
+        return scratch.position() - start;
+    }
+
+    /**
+     * Checks whether an entity should be replicated to a client.
+     * @param focus The brawler the client controls, or null.
+     * @param e The entity.
+     * @param inside Whether the entity is already replicated to the client.
+     * @return true if the entity should be replicated.
+     */
+    private static boolean isRelevant(Brawler focus, Entity e, boolean inside){
+        if (focus == null || e instanceof Brawler){
+            return true;
+        }
+        float radius = inside ? INTEREST_RADIUS + INTEREST_HYSTERESIS : INTEREST_RADIUS;
+        return focus.getCenter().distanceTo(e.getCenter()) <= radius;
+    }
+
+    /**
+     * Rebuilds a snapshot from the host's delta on a client, sets the components that changed since the
+     * snapshot applied last and acknowledges it. Positions are not set right away, they are buffered by the
+     * {@link #interpolator} and set by {@link #interpolate()}, except for the local brawler's, which is passed
+     * to the {@link #predictor} with the last input the host processed. Deltas that are older than the applied snapshot,
+     * or whose baseline is no longer known, are dropped.
+     * @param delta The delta received from the host.
+     */
+    synchronized private void receiveSnapshot(SnapshotDelta delta){
+        if (delta.number <= appliedSnapshot.number){
+            return;
+        }
+        Snapshot baseline = snapshots.get(delta.baseline);
+        if (baseline == null){
+            return;
+        }
+        Snapshot snapshot = baseline.apply(delta);
+        snapshots.put(snapshot);
+        for (Short id : snapshot.removedSince(appliedSnapshot)){
+            engine.entityHandler.dropDelayedData(id);
+            interpolator.remove(id);
+        }
+        interpolator.observe(snapshot.time);
+        byte position = (byte) (ComponentQuantizer.POSITION - 128);
+        Entity primary = engine.getPrimary();
+        ComponentData own = primary != null && primary.isLocal ? snapshot.get(primary.EntityID) : null;
+        if (own != null && own.components.get(position) instanceof Vector2){
+            predictor.acknowledge(delta.input, (Vector2) own.components.get(position));
+        }
+        HashSet<Short> deferred = new HashSet<>(delta.deferred);
+        for (ComponentData state : snapshot.getStates()){
+            if (deferred.contains(state.entityId)){
+                continue;
+            }
+            Serializable value = state.components.get(position);
+            if (value instanceof Vector2){
+                interpolator.add(state.entityId, snapshot.time, (Vector2) value);
+            }
+        }
+        EntityHandler.ComponentMap changes = snapshot.changesSince(appliedSnapshot, delta);
+        for (HashMap<Byte, Serializable> components : changes.data.values()){
+            components.remove(position);
+        }
+        appliedSnapshot = snapshot;
+        if (!changes.isEmpty()){
+            engine.entityHandler.parseData(changes);
+        }
+
         Packet packet = new Packet();
-        packet.addToPayLoad(map);
-       if (isHost){
-            networkHandler.getRemote("EntityComponents").fireAllClients(packet);
-       }else{
-            networkHandler.getRemote("EntityComponents").fireServer(packet);
-       }
-    }   
+        packet.addToPayLoad(snapshot.number);
+        networkHandler.getRemote("SnapshotAck").fireServer(packet);
+    }
+
+    /**
+     * Moves every remote entity to where the interpolator places it at the current render time, and flies simulated
+     * projectiles to the same time so they line up with the entities around them. Called every tick on clients.
+     */
+    protected void interpolate(){
+        if (networkHandler == null || isHost){
+            return;
+        }
+        int time = interpolator.getRenderTime();
+        for (Short id : interpolator.getEntities()){
+            Entity entity = engine.entityHandler.get(id);
+            if (entity == null || entity.isLocal || entity.Destroyed){
+                continue;
+            }
+            Vector2 position = interpolator.sample(id, time);
+            if (position != null){
+                entity.setPosition(position);
+            }
+        }
+        for (Entity entity : engine.entityHandler.getAllEntities()){
+            if (entity instanceof Projectile && !entity.Destroyed){
+                ((Projectile) entity).simulate(time);
+            }
+        }
+    }
 
     /**
-     * Sends an entity to all clients.
+     * Adds an entity to the next snapshot. It is spawned on the clients that are interested in it
+     * when the snapshot is sent.
      * @param entity The entity to send.
      */
     protected void sendEntity(Entity  entity){
         if (networkHandler == null){
             return;
         }
-        Packet packet = new Packet();
         ComponentData data = entity.getReplicationData();
-        packet.addToPayLoad(data);
-        networkHandler.getRemote("EntityAdded").fireAllClients(packet);
+        if (isSimulated(entity)){
+            // the clients fly it from its spawn data, so its motion is never part of a snapshot
+            for (int id = 0; id <= EntityHandler.MOTION_COMPONENTS; id++){
+                data.components.remove((byte) (id - 128));
+            }
+        }
+        synchronized (addedEntities){
+            addedEntities.add(data);
+        }
     }
 
     /**
-     * Removes an entity from all clients.
+     * Removes an entity from the clients it was spawned on.
      * @param e The entity to remove.
      */
     protected void removeEntity(Entity e){
         if (networkHandler == null){
             return;
         }
+        synchronized (addedEntities){
+            addedEntities.removeIf(data -> data.entityId == e.EntityID);
+            removedEntities.add(e.EntityID);
+        }
+        ArrayList<NetworkUser> clients = new ArrayList<>();
+        for (HashMap.Entry<Short, ClientView> entry : views.entrySet()){
+            NetworkUser client = networkHandler.getClient(entry.getKey());
+            if (entry.getValue().interest.remove(e.EntityID) && client != null){
+                clients.add(client);
+            }
+        }
         Packet packet = new Packet();
         packet.addToPayLoad(e.ID);
-        networkHandler.getRemote("EntityRemoved").fireAllClients(packet);
+        networkHandler.getRemote("EntityRemoved").fireClients(clients, packet);
+    }
+
+    /**
+     * Sends every packet queued during the tick, one frame per connection.
+     */
+    protected void flush(){
+        if (networkHandler == null){
+            return;
+        }
+        networkHandler.flush();
+    }
+
+    /**
+     * Gets the amount of packets sent during the last tick.
+     * @return The amount of packets, 0 when offline.
+     */
+    public int getLastTickMessages(){
+        return networkHandler == null ? 0 : networkHandler.getLastTickMessages();
+    }
+
+    /**
+     * Gets the amount of bytes sent during the last tick.
+     * @return The amount of bytes, 0 when offline.
+     */
+    public int getLastTickBytes(){
+        return networkHandler == null ? 0 : networkHandler.getLastTickBytes();
     }
 
     /**
@@ -246,5 +1140,8 @@ public class Replicator {
      */
     protected void destroy(){
         connectionContainer.disconnectAll();
+        if (networkHandler != null){
+            networkHandler.setBatching(false);
+        }
     }
 }
@@ -0,0 +1,159 @@
+package Engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Decides when a client is sent a snapshot and which entity updates it contains when they do not all fit into its bandwidth budget.
+ * The budget is a token bucket refilled at the client's send rate. Every snapshot an entity has unsent changes
+ * its weight is added to its priority, so entities that were skipped become more important the longer they wait,
+ * and the updates with the highest priority are sent until the budget is used up. Sending an update resets its priority.
+ * <p>
+ * Snapshots are sent at the highest snapshot rate the client keeps up with: the rate is lowered by a quarter when a snapshot
+ * overspends the budget, data is waiting for the client's socket or the round trip grows {@link #QUEUING_DELAY} past the
+ * shortest one measured, which means packets are queuing on the way, and raised by one per snapshot otherwise.
+ * @author haotian
+ */
+public class SendScheduler {
+
+    /**
+     * How many seconds of the send rate can be saved up while little changes.
+     */
+    public static final double MAX_BURST = 0.25;
+
+    /**
+     * The lowest snapshot rate a client is slowed down to, in snapshots per second.
+     */
+    public static final int MIN_RATE = 10;
+
+    /**
+     * How much longer than the shortest round trip a round trip may be before packets are considered queuing, in milliseconds.
+     */
+    public static final double QUEUING_DELAY = 50;
+
+    private static final double DECREASE = 0.75;
+    private static final double INCREASE = 1;
+
+    private final HashMap<Short, Float> priorities = new HashMap<>();
+    private double budget = 0;
+
+    private double rate = -1;
+    private double sinceSnapshot = 0;
+    private double minRtt = -1;
+
+    /**
+     * Checks whether the client is due a snapshot. The time left over past the interval counts towards the next one,
+     * so the rate is kept on average even when it does not divide the tick rate.
+     * @param maxRate The highest snapshot rate.
+     * @param seconds The time since the last tick.
+     * @return true if a snapshot should be sent this tick.
+     */
+    public boolean isDue(int maxRate, double seconds) {
+        if (rate < 0 || rate > maxRate) {
+            rate = maxRate;
+        }
+        sinceSnapshot += seconds;
+        double interval = 1 / rate;
+        if (sinceSnapshot < interval) {
+            return false;
+        }
+        sinceSnapshot = Math.min(sinceSnapshot - interval, interval);
+        return true;
+    }
+
+    /**
+     * Adapts the snapshot rate after a snapshot was sent.
+     * @param maxRate The highest snapshot rate.
+     * @param rtt The client's smoothed round trip time in milliseconds, negative if it was not measured yet.
+     * @param backlogged Whether data is waiting for the client's socket.
+     */
+    public void adapt(int maxRate, double rtt, boolean backlogged) {
+        if (rtt > 0) {
+            minRtt = minRtt < 0 ? rtt : Math.min(minRtt, rtt);
+        }
+        boolean queuing = rtt > 0 && rtt > minRtt + QUEUING_DELAY;
+        if (backlogged || queuing || budget < 0) {
+            rate = Math.max(Math.min(MIN_RATE, maxRate), rate * DECREASE);
+        } else {
+            rate = Math.min(maxRate, rate + INCREASE);
+        }
+    }
+
+    /**
+     * Gets the snapshot rate.
+     * @return The snapshots per second, negative before the first tick.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Adds the bytes the client may receive since the last tick to the budget.
+     * @param rate The client's send rate in bytes per second.
+     * @param seconds The time since the last tick.
+     */
+    public void refill(int rate, double seconds) {
+        budget = Math.min(budget + rate * seconds, rate * MAX_BURST);
+    }
+
+    /**
+     * Removes the bytes that were sent from the budget. The budget can go below zero when updates that
+     * must be sent do not fit, it is paid back in the following ticks.
+     * @param bytes The amount of bytes sent.
+     */
+    public void spend(int bytes) {
+        budget -= bytes;
+    }
+
+    /**
+     * Gets the bytes that can still be sent this tick.
+     * @return The remaining budget, negative if it was overspent.
+     */
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Chooses the updates to send this tick.
+     * @param weights The weight of every entity with unsent changes. Entities that are not in it are forgotten.
+     * @param sizes The amount of bytes the update of every entity takes.
+     * @param required The entities that are sent whatever the budget, such as ones the client does not have yet.
+     * @param reserved Bytes of the budget already used by other data this tick.
+     * @return The entities to send.
+     */
+    public HashSet<Short> select(Map<Short, Float> weights, Map<Short, Integer> sizes, Collection<Short> required, int reserved) {
+        priorities.keySet().retainAll(weights.keySet());
+        ArrayList<Short> order = new ArrayList<>(weights.size());
+        for (Map.Entry<Short, Float> entry : weights.entrySet()) {
+            priorities.merge(entry.getKey(), entry.getValue(), Float::sum);
+            order.add(entry.getKey());
+        }
+        order.sort((a, b) -> Float.compare(priorities.get(b), priorities.get(a)));
+
+        HashSet<Short> chosen = new HashSet<>();
+        double left = budget - reserved;
+        for (Short id : required) {
+            if (weights.containsKey(id)) {
+                chosen.add(id);
+                left -= sizes.getOrDefault(id, 0);
+            }
+        }
+        for (Short id : order) {
+            if (chosen.contains(id)) {
+                continue;
+            }
+            int size = sizes.getOrDefault(id, 0);
+            if (size <= left) {
+                chosen.add(id);
+                left -= size;
+            }
+        }
+        for (Short id : chosen) {
+            priorities.remove(id);
+        }
+        return chosen;
+    }
+}
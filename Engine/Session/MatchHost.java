@@ -0,0 +1,157 @@
+package Engine.Session;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Engine.Replicator;
+import Engine.TaskScheduler;
+import Networking.MatchRouter;
+import Networking.NetworkHandler;
+
+/**
+ * A dedicated server that runs many matches in one process. Every match has its own session and engine,
+ * clients join one through the {@link MatchRouter} on the server's port with the match's ID, and the engines
+ * of every match are ticked on one pool of workers with a worker per core.
+ * A match starts once enough players joined and is closed when its game ends.
+ * @author haotian
+ */
+public class MatchHost {
+
+    private final MatchRouter router;
+    private final ScheduledExecutorService workers = TaskScheduler.createWorkers();
+    private final int playersPerMatch;
+
+    private final ConcurrentHashMap<Integer, SessionManager> matches = new ConcurrentHashMap<>();
+    private final AtomicInteger lastId = new AtomicInteger(NetworkHandler.NO_MATCH);
+
+    /**
+     * Constructs a MatchHost.
+     * @param port The port clients join every match on.
+     * @param playersPerMatch How many players a match waits for before it starts.
+     */
+    public MatchHost(int port, int playersPerMatch){
+        router = new MatchRouter(port);
+        this.playersPerMatch = playersPerMatch;
+    }
+
+    /**
+     * Starts accepting clients.
+     * @throws IOException if the port can not be bound.
+     */
+    public void start() throws IOException {
+        router.Start();
+    }
+
+    /**
+     * Stops every match and the server.
+     */
+    public void stop(){
+        for (Integer id : matches.keySet()){
+            closeMatch(id);
+        }
+        router.Stop();
+        workers.shutdown();
+    }
+
+    /**
+     * Opens a new match that clients can join, with the default replication settings.
+     * @return The match ID.
+     * @throws IOException if the match can not be started.
+     */
+    public int createMatch() throws IOException {
+        return createMatch(Replicator.DEFAULT_SNAPSHOT_RATE, true);
+    }
+
+    /**
+     * Opens a new match that clients can join. The replication settings only apply to this match.
+     * @param snapshotRate How many snapshots per second the match sends a client at most, see {@link Replicator#setSnapshotRate}.
+     * @param simulateProjectiles Whether the match's clients fly projectiles themselves, see {@link Replicator#setProjectileSimulation}.
+     * @return The match ID.
+     * @throws IOException if the match can not be started.
+     */
+    public int createMatch(int snapshotRate, boolean simulateProjectiles) throws IOException {
+        if (snapshotRate < 1){
+            throw new IllegalArgumentException("[MatchHost] snapshot rate must be at least 1 but was " + snapshotRate);
+        }
+        int id = lastId.incrementAndGet();
+        SessionManager session = new SessionManager(router, id, workers);
+        session.startingGame.connect(engine -> {
+            engine.replicator.setSnapshotRate(snapshotRate);
+            engine.replicator.setProjectileSimulation(simulateProjectiles);
+        });
+        session.playerAdded.connect(player -> {
+            synchronized (session){
+                if (session.engine == null && session.players.size() >= playersPerMatch){
+                    session.startGame();
+                }
+            }
+        });
+        session.endgame.connect(engine -> {
+            // the engine destroys itself after the game ends
+            if (matches.remove(id, session)){
+                session.destroy();
+            }
+        });
+        matches.put(id, session);
+        try {
+            session.startNetwork();
+        } catch (IOException e) {
+            matches.remove(id);
+            throw e;
+        }
+        return id;
+    }
+
+    /**
+     * Closes a match and disconnects its players.
+     * @param id The match ID.
+     */
+    public void closeMatch(int id){
+        SessionManager session = matches.remove(id);
+        if (session == null){
+            return;
+        }
+        if (session.engine != null){
+            session.engine.destroy();
+        }
+        session.destroy();
+    }
+
+    /**
+     * Gets the session of a match.
+     * @param id The match ID.
+     * @return The session, null if there is no such match.
+     */
+    public SessionManager getMatch(int id){
+        return matches.get(id);
+    }
+
+    /**
+     * Gets how many matches are open.
+     * @return The amount of matches.
+     */
+    public int getMatchCount(){
+        return matches.size();
+    }
+
+    /**
+     * Runs a dedicated server. Arguments: port, matches to open, players per match.
+     * @param args The arguments.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 1080;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int players = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+
+        MatchHost host = new MatchHost(port, players);
+        host.start();
+        for (int i = 0; i < count; i++){
+            System.out.println("[MatchHost] Opened match " + host.createMatch() + " on port " + port);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(host::stop));
+        // every thread of the server is a daemon
+        Thread.currentThread().join();
+    }
+}
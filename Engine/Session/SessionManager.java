@@ -3,8 +3,10 @@ package Engine.Session;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
 
 import Engine.Engine;
+import Engine.Replicator;
 import Engine.Entities.Entity;
 import Networking.*;
 import validator.InetAddressValidator;
@@ -46,16 +48,26 @@ public class SessionManager {
     private ConnectionContainer connectionContainer = new ConnectionContainer();
 
     public Engine engine;
+
+    // Dedicated server: the router the match runs on and the workers its engine is ticked on
+    private MatchRouter router;
+    private int matchId = NetworkHandler.NO_MATCH;
+    private ScheduledExecutorService workers;
     
 
     public SessionManager(boolean isHost){ 
         networkHandler = new NetworkHandler(new String[]{
-            "EntityComponents","EntityAdded","EntityRemoved",//ENTITIES
+            "EntityAdded","EntityRemoved",//ENTITIES
             "AddSessionPlayer","RemoveSessionPlayer", "ReplicateAllSessionPlayers","ChangeBrawler",//SESSION
             "StartGame","EndGame",
-            "ReplicateMap", "AddTile","RemoveTile",//TILES
-            "SetOwner", "UseSuper","Fire"
+            "MapOffer","RequestMap","ReplicateMap", "AddTile","RemoveTile",//TILES
+            "SetOwner"
+        }, new String[]{
+            "InputCommand", "EntitySnapshot", "SnapshotAck"
         });
+        Replicator.registerCodecs(networkHandler);
+        networkHandler.setChannel("StartGame", ChannelType.RELIABLE_ORDERED, Replicator.ENTITY_CHANNEL);
+        networkHandler.setChannel("EndGame", ChannelType.RELIABLE_ORDERED, Replicator.ENTITY_CHANNEL);
 
         Remote AddSessionPlayer = networkHandler.getRemote("AddSessionPlayer");
         Remote RemoveSessionPlayer = networkHandler.getRemote("RemoveSessionPlayer");
@@ -152,6 +164,52 @@ public class SessionManager {
 
     }
 
+    /**
+     * Creates the session of one match on a dedicated server. The server has no player of its own,
+     * clients join it through the router with the match ID.
+     * @param router The router the match runs on.
+     * @param matchId The match ID.
+     * @param workers The workers the match's engine is ticked on.
+     */
+    public SessionManager(MatchRouter router, int matchId, ScheduledExecutorService workers){
+        this(true);
+        this.router = router;
+        this.matchId = matchId;
+        this.workers = workers;
+    }
+
+    /**
+     * Checks if the session is a match on a dedicated server.
+     * @return true if the session runs on a {@link MatchRouter}.
+     */
+    public boolean isDedicated(){
+        return router != null;
+    }
+
+    /**
+     * Gets the workers the engine is ticked on.
+     * @return The workers, null if the engine ticks on a thread of its own.
+     */
+    public ScheduledExecutorService getWorkers(){
+        return workers;
+    }
+
+    /**
+     * Gets the match ID of the session.
+     * @return The match ID, {@link NetworkHandler#NO_MATCH} if it is not a match on a dedicated server.
+     */
+    public int getMatchId(){
+        return isDedicated() ? matchId : networkHandler == null ? NetworkHandler.NO_MATCH : networkHandler.getMatchId();
+    }
+
+    /**
+     * Sets the match a client joins on a dedicated server.
+     * @param matchId The match ID, {@link NetworkHandler#NO_MATCH} to join a hosted lobby.
+     */
+    public void setMatchId(int matchId){
+        networkHandler.setMatchId(matchId);
+    }
+
     public void endGame(){
         endingGameSignal.fire(engine);
         //engine = null;
@@ -264,7 +322,9 @@ public class SessionManager {
         if (isOffline){
             return;
         }
-        if (isHost){
+        if (isDedicated()){
+            networkHandler.StartServer(router, matchId);
+        } else if (isHost){
             networkHandler.StartServer();
             SessionPlayer host = new SessionPlayer(this,networkHandler.getLocal());
             host.name = "Host";
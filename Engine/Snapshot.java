@@ -0,0 +1,297 @@
+package Engine;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Objects;
+
+import Engine.EntityComponents.ComponentData;
+
+/**
+ * The replicated state of every entity at the end of a tick, numbered so clients can acknowledge it.
+ * The state of an entity is shared with the previous snapshot until one of its components changes,
+ * so building a snapshot only copies the entities that changed during the tick.
+ * States are never changed once they are part of a snapshot. The host stores values rounded by {@link ComponentQuantizer},
+ * so changes smaller than what the clients can see are not sent.
+ * @author haotian
+ */
+public class Snapshot {
+
+    /**
+     * The snapshot every client starts from.
+     */
+    protected static final Snapshot EMPTY = new Snapshot(0, 0, new HashMap<>());
+
+    /**
+     * The snapshot's number, increasing by one every tick.
+     */
+    public final int number;
+
+    /**
+     * The host's time when the snapshot was taken, in milliseconds.
+     */
+    public final int time;
+
+    private final HashMap<Short, ComponentData> entities;
+
+    private Snapshot(int number, int time, HashMap<Short, ComponentData> entities) {
+        this.number = number;
+        this.time = time;
+        this.entities = entities;
+    }
+
+    /**
+     * Gets the state of an entity.
+     * @param id The entity ID.
+     * @return The entity's state, or null if it is not in the snapshot.
+     */
+    public ComponentData get(short id) {
+        return entities.get(id);
+    }
+
+    /**
+     * Gets the state of every entity.
+     * @return The entity states, which must not be changed.
+     */
+    public Collection<ComponentData> getStates() {
+        return entities.values();
+    }
+
+    /**
+     * Gets the amount of entities in the snapshot.
+     * @return The amount of entities.
+     */
+    public int size() {
+        return entities.size();
+    }
+
+    /**
+     * Keeps only some of the entities, the rest of the snapshot is shared.
+     * @param ids The IDs of the entities to keep.
+     * @return A snapshot with the same number holding only those entities.
+     */
+    protected Snapshot filter(Collection<Short> ids) {
+        HashMap<Short, ComponentData> visible = new HashMap<>(ids.size() * 2);
+        for (Short id : ids) {
+            ComponentData state = entities.get(id);
+            if (state != null) {
+                visible.put(id, state);
+            }
+        }
+        return new Snapshot(number, time, visible);
+    }
+
+    /**
+     * Holds back the changes to some entities, giving them the state they had in a snapshot sent earlier.
+     * @param previous The snapshot sent to the client before this one.
+     * @param deferred The IDs of the entities whose changes are not sent yet.
+     * @return A snapshot with the same number, the rest of it is shared.
+     */
+    protected Snapshot defer(Snapshot previous, Collection<Short> deferred) {
+        HashMap<Short, ComponentData> held = new HashMap<>(entities);
+        for (Short id : deferred) {
+            ComponentData old = previous.entities.get(id);
+            if (old != null) {
+                held.put(id, old);
+            }
+        }
+        return new Snapshot(number, time, held);
+    }
+
+    /**
+     * Finds the entities an older snapshot has that this one does not.
+     * @param older The older snapshot.
+     * @return The IDs of the entities that are no longer in the snapshot.
+     */
+    protected ArrayList<Short> removedSince(Snapshot older) {
+        ArrayList<Short> removed = new ArrayList<>();
+        for (Short id : older.entities.keySet()) {
+            if (!entities.containsKey(id)) {
+                removed.add(id);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Builds the snapshot that follows this one on the host.
+     * @param number The new snapshot's number.
+     * @param time The host's time in milliseconds.
+     * @param added The replication data of the entities added during the tick.
+     * @param removed The IDs of the entities removed during the tick.
+     * @param changes The components set during the tick.
+     * @return The new snapshot.
+     */
+    protected Snapshot next(int number, int time, Collection<ComponentData> added, Collection<Short> removed, EntityHandler.ComponentMap changes) {
+        HashMap<Short, ComponentData> next = new HashMap<>(entities);
+        HashSet<Short> copied = new HashSet<>();
+        for (Short id : removed) {
+            next.remove(id);
+        }
+        for (ComponentData data : added) {
+            ComponentData state = new ComponentData(data.entityId, data.entityType, data.entityUUID);
+            putQuantized(state, data.components);
+            next.put(data.entityId, state);
+            copied.add(data.entityId);
+        }
+        for (HashMap.Entry<Short, HashMap<Byte, Serializable>> entry : changes.data.entrySet()) {
+            ComponentData state = next.get(entry.getKey());
+            if (state == null) {
+                continue;
+            }
+            if (copied.add(entry.getKey())) {
+                state = copy(state);
+                next.put(entry.getKey(), state);
+            }
+            putQuantized(state, entry.getValue());
+        }
+        return new Snapshot(number, time, next);
+    }
+
+    /**
+     * Takes the difference between this snapshot and an older one.
+     * @param baseline The snapshot the client has acknowledged, {@link #EMPTY} if it has none.
+     * @return The components that changed since the baseline.
+     */
+    protected SnapshotDelta diff(Snapshot baseline) {
+        SnapshotDelta delta = new SnapshotDelta(number, baseline.number, time);
+        for (HashMap.Entry<Short, ComponentData> entry : entities.entrySet()) {
+            ComponentData now = entry.getValue();
+            ComponentData old = baseline.entities.get(entry.getKey());
+            if (old == now) {
+                continue;
+            }
+            if (old == null || !Objects.equals(old.entityUUID, now.entityUUID)) {
+                delta.full.add(entry.getKey());
+                delta.changed.put(entry.getKey(), new HashMap<>(now.components));
+                continue;
+            }
+            HashMap<Byte, Serializable> fields = changedFields(old, now);
+            if (fields != null) {
+                delta.changed.put(entry.getKey(), fields);
+            }
+        }
+        delta.removed.addAll(removedSince(baseline));
+        return delta;
+    }
+
+    /**
+     * Rebuilds the snapshot a delta was taken for on a client. This snapshot must be the delta's baseline.
+     * @param delta The delta received from the host.
+     * @return The snapshot the host took the delta for.
+     */
+    protected Snapshot apply(SnapshotDelta delta) {
+        HashMap<Short, ComponentData> next = new HashMap<>(entities);
+        for (Short id : delta.removed) {
+            next.remove(id);
+        }
+        for (HashMap.Entry<Short, HashMap<Byte, Serializable>> entry : delta.changed.entrySet()) {
+            ComponentData state = new ComponentData(entry.getKey(), (byte) 0, null);
+            ComponentData old = delta.full.contains(entry.getKey()) ? null : next.get(entry.getKey());
+            if (old != null) {
+                state.components.putAll(old.components);
+            }
+            state.components.putAll(entry.getValue());
+            next.put(entry.getKey(), state);
+        }
+        return new Snapshot(delta.number, delta.time, next);
+    }
+
+    /**
+     * Finds the components a client has to set to go from the snapshot it applied last to this one.
+     * @param applied The snapshot the client applied last.
+     * @param delta The delta this snapshot was rebuilt from.
+     * @return The components to set.
+     */
+    protected EntityHandler.ComponentMap changesSince(Snapshot applied, SnapshotDelta delta) {
+        EntityHandler.ComponentMap map = new EntityHandler.ComponentMap();
+        for (HashMap.Entry<Short, ComponentData> entry : entities.entrySet()) {
+            ComponentData now = entry.getValue();
+            ComponentData old = applied.entities.get(entry.getKey());
+            if (old == now) {
+                continue;
+            }
+            if (old == null || delta.full.contains(entry.getKey())) {
+                map.data.put(entry.getKey(), new HashMap<>(now.components));
+                continue;
+            }
+            HashMap<Byte, Serializable> fields = changedFields(old, now);
+            if (fields != null) {
+                map.data.put(entry.getKey(), fields);
+            }
+        }
+        return map;
+    }
+
+    private static HashMap<Byte, Serializable> changedFields(ComponentData old, ComponentData now) {
+        HashMap<Byte, Serializable> fields = null;
+        for (HashMap.Entry<Byte, Serializable> component : now.components.entrySet()) {
+            if (old.components.containsKey(component.getKey()) && Objects.equals(old.components.get(component.getKey()), component.getValue())) {
+                continue;
+            }
+            if (fields == null) {
+                fields = new HashMap<>();
+            }
+            fields.put(component.getKey(), component.getValue());
+        }
+        return fields;
+    }
+
+    private static void putQuantized(ComponentData state, HashMap<Byte, Serializable> components) {
+        for (HashMap.Entry<Byte, Serializable> component : components.entrySet()) {
+            state.components.put(component.getKey(), ComponentQuantizer.quantize(component.getKey(), component.getValue()));
+        }
+    }
+
+    private static ComponentData copy(ComponentData data) {
+        ComponentData copy = new ComponentData(data.entityId, data.entityType, data.entityUUID);
+        copy.components.putAll(data.components);
+        return copy;
+    }
+
+    /**
+     * The most recent snapshots, looked up by number when a delta is taken or rebuilt.
+     */
+    protected static class History {
+        private final Snapshot[] snapshots;
+
+        /**
+         * Constructs an empty history.
+         * @param size How many snapshots are kept.
+         */
+        protected History(int size) {
+            snapshots = new Snapshot[size];
+        }
+
+        /**
+         * Adds a snapshot, replacing the oldest one.
+         * @param snapshot The snapshot to add.
+         */
+        protected void put(Snapshot snapshot) {
+            snapshots[snapshot.number % snapshots.length] = snapshot;
+        }
+
+        /**
+         * Gets a snapshot by number.
+         * @param number The snapshot's number, 0 for {@link Snapshot#EMPTY}.
+         * @return The snapshot, or null if it is too old or was never added.
+         */
+        protected Snapshot get(int number) {
+            if (number == 0) {
+                return EMPTY;
+            }
+            Snapshot snapshot = snapshots[number % snapshots.length];
+            return snapshot != null && snapshot.number == number ? snapshot : null;
+        }
+
+        /**
+         * Removes every snapshot.
+         */
+        protected void clear() {
+            Arrays.fill(snapshots, null);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package Engine;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The difference between a snapshot and an older snapshot the client has acknowledged.
+ * Only the components that changed since the baseline are included. Entities the baseline does not have,
+ * or that are a different entity reusing the same ID, are sent in full.
+ * It is sent over the network with the codec registered by {@link Replicator#registerCodecs}.
+ * @author haotian
+ */
+public class SnapshotDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of the snapshot this delta builds.
+     */
+    public final int number;
+
+    /**
+     * The number of the snapshot the delta was taken against, 0 if it was taken against nothing.
+     */
+    public final int baseline;
+
+    /**
+     * The host's time when the snapshot was taken, in milliseconds.
+     */
+    public final int time;
+
+    /**
+     * The last input of the receiving client the host processed, 0 if it processed none.
+     */
+    public int input = 0;
+
+    /**
+     * The changed components of every entity, keyed by entity ID.
+     */
+    public final HashMap<Short, HashMap<Byte, Serializable>> changed = new HashMap<>();
+
+    /**
+     * The entities whose components are all included and replace what the baseline had.
+     */
+    public final HashSet<Short> full = new HashSet<>();
+
+    /**
+     * The entities the baseline has that are no longer replicated.
+     */
+    public final ArrayList<Short> removed = new ArrayList<>();
+
+    /**
+     * The entities whose changes the host held back because they did not fit the client's bandwidth budget.
+     * Their state is older than the snapshot's time.
+     */
+    public final ArrayList<Short> deferred = new ArrayList<>();
+
+    /**
+     * Constructs an empty delta.
+     * @param number The number of the snapshot this delta builds.
+     * @param baseline The number of the snapshot the delta is taken against, 0 for none.
+     * @param time The host's time when the snapshot was taken, in milliseconds.
+     */
+    public SnapshotDelta(int number, int baseline, int time) {
+        this.number = number;
+        this.baseline = baseline;
+        this.time = time;
+    }
+
+    /**
+     * Checks whether nothing changed since the baseline.
+     * @return true if the delta holds no changes.
+     */
+    public boolean isEmpty() {
+        return changed.isEmpty() && removed.isEmpty();
+    }
+}
@@ -1,5 +1,8 @@
 package Engine;
 
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -9,7 +12,10 @@ import java.util.Queue;
 import java.util.Stack;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -22,13 +28,53 @@ import Signal.Signal;
 /**
  * The TaskScheduler class provides a way to schedule and execute tasks at specific intervals.
  * It uses a priority queue to manage the tasks based on their delay time.
+ * The engine is simulated in fixed steps of {@code 1 / clockHZ} seconds: the time that passed is accumulated and
+ * simulated in as many whole steps as fit, at most {@link #MAX_CATCH_UP} at once, so the simulation does not depend
+ * on how long a frame took. Every step has a deadline on {@link System#nanoTime()}, which the scheduler waits
+ * for by parking and then spinning for the last {@link #SPIN_TIME}, and how long the steps took and how late they
+ * started is kept in histograms. The engine is rendered on a thread of its own at the display's rate, and draws
+ * between the last two steps by {@link #getAlpha()}.
+ * The engine is ticked on a thread of its own, or on a pool of workers shared by many engines when a
+ * dedicated server runs many matches in one process, see {@link #createWorkers()}. The workers keep the deadlines
+ * of their own schedule and never spin, since they are shared.
  * @author haotian
  */
 public class TaskScheduler {
+    /**
+     * The most simulation steps run in one iteration to catch up. When the engine falls further behind,
+     * the rest of the time is dropped instead of being simulated.
+     */
+    public static final int MAX_CATCH_UP = 5;
+
+    /**
+     * How long before a deadline the scheduler stops parking and spins instead, in nanoseconds.
+     * Parking can wake up about a millisecond late, spinning for the rest keeps the steps evenly spaced.
+     */
+    public static final long SPIN_TIME = 1_000_000;
+
     public final int clockHZ;
     private ScheduledExecutorService loop;
+    private ScheduledFuture<?> ticking;
     private long timePassed = 0;
 
+    // The length of a step and the time simulated since the start, the dropped time included, in nanoseconds
+    private final long step;
+    private long startTime;
+    private volatile long simulated = 0;
+
+    // The iterations before the engine is rendered and simulated
+    private volatile int iters = 0;
+
+    // How long the steps took, how late they started, and how many took longer than a step, started
+    // a whole step late or were dropped
+    private final TickHistogram tickTimes = new TickHistogram();
+    private final TickHistogram sleepErrors = new TickHistogram();
+    private volatile long ticks = 0;
+    private volatile long overruns = 0;
+    private volatile long missed = 0;
+    private volatile long dropped = 0;
+    private volatile double lastTickTime = 0;
+
     private boolean isLooping = false;
 
     private Stack<Task> taskStack = new Stack<Task>();
@@ -44,7 +90,7 @@ public class TaskScheduler {
     private PriorityQueue<SchedulerTask> tasksPQ = new PriorityQueue<SchedulerTask>(1000, (a, b) -> (int) (a.delay - b.delay));
 
     private Engine engine;
-    private boolean running = true;
+    private volatile boolean running = true;
 
     /**
      * Functional interface for lambda expressions used in tasks.
@@ -327,13 +373,40 @@ public class TaskScheduler {
      * @param clockHZ The clock frequency in Hertz.
      */
     protected TaskScheduler(Engine engine, int clockHZ) {
+        this(engine, clockHZ, null);
+    }
+
+    /**
+     * Constructs a TaskScheduler with the specified engine and clockHZ value, ticked on shared workers.
+     * 
+     * @param engine  The Engine instance.
+     * @param clockHZ The clock frequency in Hertz.
+     * @param workers The workers to tick on, or null to tick on a thread of its own.
+     */
+    protected TaskScheduler(Engine engine, int clockHZ, ScheduledExecutorService workers) {
         this.engine = engine;
         this.clockHZ = clockHZ;
-        loop = Executors.newSingleThreadScheduledExecutor();
+        step = 1_000_000_000L / clockHZ;
+        loop = workers;
 
         start();
     }
 
+    /**
+     * Creates a pool of workers for the engines of many matches, one worker per core.
+     * An engine is only ever ticked by one worker at a time.
+     * 
+     * @return The workers.
+     */
+    public static ScheduledExecutorService createWorkers() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "Simulation-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     /**
      * Adds a task to the task queue.
      * 
@@ -368,7 +441,91 @@ public class TaskScheduler {
      */
     public void stop() {
         running = false;
-        loop.shutdown();
+        if (ticking != null) {
+            ticking.cancel(false);
+        }
+    }
+
+    /**
+     * Gets how far the current time is past the last simulation step, used to draw between the last two steps.
+     * 
+     * @return The fraction of a step, from 0 to 1.
+     */
+    public double getAlpha() {
+        double alpha = (double) (System.nanoTime() - startTime - simulated) / step;
+        return Math.max(0, Math.min(alpha, 1));
+    }
+
+    /**
+     * Gets how many simulation steps ran.
+     * 
+     * @return The amount of steps.
+     */
+    public long getTickCount() {
+        return ticks;
+    }
+
+    /**
+     * Gets how many simulation steps took longer than a step.
+     * 
+     * @return The amount of steps.
+     */
+    public long getOverrunCount() {
+        return overruns;
+    }
+
+    /**
+     * Gets how many times a simulation step started a whole step after it was due.
+     * 
+     * @return The amount of missed deadlines.
+     */
+    public long getMissedCount() {
+        return missed;
+    }
+
+    /**
+     * Gets how many simulation steps were dropped because the engine fell more than {@link #MAX_CATCH_UP} steps behind.
+     * 
+     * @return The amount of steps.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Gets how long the last simulation step took.
+     * 
+     * @return The time in milliseconds.
+     */
+    public double getLastTickTime() {
+        return lastTickTime;
+    }
+
+    /**
+     * Gets how long the longest simulation step took.
+     * 
+     * @return The time in milliseconds.
+     */
+    public double getMaxTickTime() {
+        return tickTimes.getMax();
+    }
+
+    /**
+     * Gets how long the simulation steps took.
+     * 
+     * @return The histogram of the step times.
+     */
+    public TickHistogram getTickTimes() {
+        return tickTimes;
+    }
+
+    /**
+     * Gets how late the simulation steps started after they were due, the error of waiting for them.
+     * 
+     * @return The histogram of the sleep errors.
+     */
+    public TickHistogram getSleepErrors() {
+        return sleepErrors;
     }
 
     /**
@@ -429,72 +586,166 @@ public class TaskScheduler {
     }
 
     /**
-     * Starts the task scheduler in a separate thread.
+     * Starts the task scheduler in a separate thread, or on the shared workers.
+     * On a thread of its own the engine is also rendered, on a second thread.
      */
     private void start() {
+        startTime = System.nanoTime();
+        if (loop != null) {
+            ticking = loop.scheduleAtFixedRate(() -> {
+                try {
+                    if (running) {
+                        advance();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    stop();
+                }
+            }, 0, step, TimeUnit.NANOSECONDS);
+            return;
+        }
         Thread thread = new Thread(() -> {
-            int iters = 0;
-            long preRenderTime = System.nanoTime();
-            long preSimulationTime = System.nanoTime();
-            long simulationTime = System.nanoTime();
            try {
             while (running) {
-                long start = System.currentTimeMillis();
+                advance();
+                waitUntil(startTime + simulated + step);
+            }
+           }catch (Exception e) {
+               e.printStackTrace();
+           }
+        }, "Simulation");
+        thread.start();
 
-                long currentTime = System.nanoTime();
-                double deltaTime = (double) (currentTime - preRenderTime) / 1_000_000_000.0;
-                preRenderTime = currentTime;
-                boolean pass = iters > 60;
+        Thread render = new Thread(this::render, "Render");
+        render.start();
+    }
 
-                if (!pass) {
-                    iters++;
-                }
+    /**
+     * Gets the refresh rate of the display.
+     * 
+     * @return The rate in Hertz, clockHZ if it is not known.
+     */
+    private int getDisplayRate() {
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN) {
+                return rate;
+            }
+        } catch (HeadlessException e) {
+        }
+        return clockHZ;
+    }
+
+    /**
+     * Renders the engine at the display's rate until the scheduler stops.
+     */
+    private void render() {
+        long frame = 1_000_000_000L / getDisplayRate();
+        long lastFrame = System.nanoTime();
+        try {
+            while (running) {
+                long currentTime = System.nanoTime();
+                double deltaTime = (double) (currentTime - lastFrame) / 1_000_000_000.0;
+                lastFrame = currentTime;
 
-                if (pass) {
+                if (iters > 60) {
                     PreRenderSignal.fire(deltaTime);
                     engine.onRender(deltaTime);
                 }
 
-                currentTime = System.nanoTime();
-                deltaTime = (double) (currentTime - preSimulationTime) / 1_000_000_000.0;
-                preSimulationTime = currentTime;
-
-                if (pass) {
-                    PreSimulationSignal.fire(deltaTime);
-                    engine.onUpdate(deltaTime);
+                long wait = lastFrame + frame - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
                 }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-                currentTime = System.nanoTime();
-                deltaTime = (double) (currentTime - simulationTime) / 1_000_000_000.0;
-                simulationTime = currentTime;
-                if (pass) {
-                    PostSimulationSignal.fire(deltaTime);
-                }
+    /**
+     * Waits until a deadline, parking until {@link #SPIN_TIME} before it and spinning for the rest.
+     * 
+     * @param deadline The deadline, in {@link System#nanoTime()}.
+     */
+    private void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_TIME) {
+            LockSupport.parkNanos(this, remaining - SPIN_TIME);
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+    }
 
-                isLooping = true;
-                while (!tasksPQ.isEmpty() && tasksPQ.peek().delay < timePassed) {
-                    tasksPQ.poll().run();
-                }
+    /**
+     * Simulates the steps that fit into the time that passed since the last one.
+     */
+    private void advance() {
+        long accumulator = System.nanoTime() - startTime - simulated;
+        if (accumulator >= step) {
+            long late = accumulator - step;
+            sleepErrors.record(late);
+            if (late >= step) {
+                missed++;
+            }
+        }
+        int steps = 0;
+        while (accumulator >= step) {
+            if (steps >= MAX_CATCH_UP) {
+                // too far behind, skip ahead rather than falling further behind
+                long behind = accumulator / step;
+                dropped += behind;
+                simulated += behind * step;
+                break;
+            }
+            simulated += step;
+            accumulator -= step;
+            steps++;
+
+            long start = System.nanoTime();
+            tick();
+            long took = System.nanoTime() - start;
+
+            ticks++;
+            tickTimes.record(took);
+            lastTickTime = took / 1_000_000.0;
+            if (took > step) {
+                overruns++;
+            }
+        }
+    }
 
-                isLooping = false;
+    /**
+     * Simulates one step of the engine and runs the tasks that are due.
+     */
+    private void tick() {
+        timePassed = simulated / 1_000_000;
+        double deltaTime = (double) step / 1_000_000_000.0;
+        boolean pass = iters > 60;
 
-                for (Task t : taskStack) {
-                    addTask((SchedulerTask) t);
-                }
-                taskStack.clear();
+        if (!pass) {
+            iters++;
+        }
 
-                try {
-                    Thread.sleep(1000 / clockHZ);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        if (pass) {
+            PreSimulationSignal.fire(deltaTime);
+            engine.onUpdate(deltaTime);
+            PostSimulationSignal.fire(deltaTime);
+        }
 
-                timePassed += (System.currentTimeMillis() - start);
-            }
-           }catch (Exception e) {
-               e.printStackTrace();
-           }
-        });
-        thread.start();
+        isLooping = true;
+        while (!tasksPQ.isEmpty() && tasksPQ.peek().delay < timePassed) {
+            tasksPQ.poll().run();
+        }
+
+        isLooping = false;
+
+        for (Task t : taskStack) {
+            addTask((SchedulerTask) t);
+        }
+        taskStack.clear();
+
+        engine.onTickEnd();
     }
 }
@@ -0,0 +1,87 @@
+package Engine;
+
+import java.util.Arrays;
+
+/**
+ * Counts durations in buckets of {@link #RESOLUTION} microseconds so percentiles of them can be read,
+ * without keeping every sample. Durations longer than {@link #RANGE} milliseconds share the last bucket,
+ * the longest duration is kept exactly.
+ * @author haotian
+ */
+public class TickHistogram {
+
+    /** The width of a bucket in microseconds. */
+    public static final int RESOLUTION = 10;
+
+    /** The longest duration with a bucket of its own, in milliseconds. */
+    public static final int RANGE = 100;
+
+    private final long[] buckets = new long[RANGE * 1000 / RESOLUTION + 1];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * Counts a duration.
+     * @param nanos The duration in nanoseconds, negative durations are counted as 0.
+     */
+    synchronized public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        long bucket = nanos / 1000 / RESOLUTION;
+        buckets[(int) Math.min(bucket, buckets.length - 1)]++;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Gets the duration that a percentage of the counted durations did not exceed.
+     * @param percentile The percentage, from 0 to 100.
+     * @return The duration in milliseconds, rounded up to a bucket. 0 if nothing was counted.
+     */
+    synchronized public double getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("[TickHistogram] Percentile must be between 0 and 100");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min((i + 1) * RESOLUTION / 1000.0, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Gets the longest counted duration.
+     * @return The duration in milliseconds.
+     */
+    synchronized public double getMax() {
+        return max / 1_000_000.0;
+    }
+
+    /**
+     * Gets how many durations were counted.
+     * @return The amount of durations.
+     */
+    synchronized public long getCount() {
+        return count;
+    }
+
+    /**
+     * Forgets every counted duration.
+     */
+    synchronized public void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        max = 0;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return String.format("p50 %.3f p99 %.3f max %.3f (ms)", getPercentile(50), getPercentile(99), getMax());
+    }
+}
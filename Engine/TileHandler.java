@@ -69,6 +69,11 @@ public class TileHandler {
      */
     public static final int Grid_Scale = Engine.GRID_SCALE;
 
+    /**
+     * The character of a cell without a tile.
+     */
+    public static final char EMPTY_TILE = TileMap.EMPTY_TILE;
+
     /**
      * Represents a map of tiles in the game.
      */
@@ -129,7 +134,7 @@ public class TileHandler {
      */
     public void loadMap(Map map) {
         if (engine.isHost) {
-            engine.replicator.sendMapData(map.charMap);
+            engine.replicator.sendMapData(map);
         }
         this.SizeX = map.width();
         this.SizeY = map.height();
@@ -0,0 +1,146 @@
+package Networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A non-blocking TCP connection served by the {@link TCPServer} selector loop.
+ * Frames are written straight to the socket when it can take them, whatever does not fit is queued
+ * and written by the selector loop once the socket is writable again. How long the queue has been
+ * waiting is tracked so a client that can not keep up can be dropped by its {@link NetworkUser}.
+ * @author haotian
+ */
+final class ChannelConnection {
+
+    final SocketChannel channel;
+    final FrameDecoder decoder = new FrameDecoder();
+
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private int pendingBytes = 0;
+    private SelectionKey key;
+
+    private long backlogStart = 0;
+    private long backlogNanos = 0;
+
+    ChannelConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Registers the connection with the selector loop for reading.
+     *
+     * @param selector the selector
+     * @param attachment the object attached to the key
+     * @throws ClosedChannelException if the connection was closed
+     */
+    synchronized void register(Selector selector, Object attachment) throws ClosedChannelException {
+        key = channel.register(selector, pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE, attachment);
+    }
+
+    /**
+     * Writes a frame, or queues it if the socket is full. Can be called from any thread.
+     * A frame given in parts, such as a shared payload behind its own header, is written with one gathering write.
+     *
+     * @param frame the frame or its parts, positions are not changed
+     * @throws IOException if the connection is closed
+     */
+    synchronized void write(ByteBuffer... frame) throws IOException {
+        ByteBuffer[] parts = new ByteBuffer[frame.length];
+        for (int i = 0; i < frame.length; i++) {
+            parts[i] = frame[i].duplicate();
+        }
+        if (pending.isEmpty()) {
+            if (parts.length == 1) {
+                channel.write(parts[0]);
+            } else {
+                channel.write(parts);
+            }
+        }
+        for (ByteBuffer part : parts) {
+            if (part.hasRemaining()) {
+                if (pending.isEmpty()) {
+                    backlogStart = System.nanoTime();
+                }
+                pending.add(part);
+                pendingBytes += part.remaining();
+            }
+        }
+        if (!pending.isEmpty() && key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes. Called by the selector loop when the socket is writable.
+     *
+     * @throws IOException if the connection is closed
+     */
+    synchronized void writePending() throws IOException {
+        while (!pending.isEmpty()) {
+            ByteBuffer frame = pending.peek();
+            int before = frame.remaining();
+            channel.write(frame);
+            pendingBytes -= before - frame.remaining();
+            if (frame.hasRemaining()) {
+                return;
+            }
+            pending.poll();
+        }
+        if (backlogStart != 0) {
+            backlogNanos += System.nanoTime() - backlogStart;
+            backlogStart = 0;
+        }
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Gets the amount of bytes waiting for the socket.
+     *
+     * @return the queued bytes
+     */
+    synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Gets how long the queue has been waiting for the socket without emptying.
+     *
+     * @return the time in nanoseconds, 0 if nothing is queued
+     */
+    synchronized long getBacklogNanos() {
+        return pending.isEmpty() ? 0 : System.nanoTime() - backlogStart;
+    }
+
+    /**
+     * Gets the total time anything was waiting for the socket since the connection was opened.
+     *
+     * @return the time in nanoseconds
+     */
+    synchronized long getTotalBacklogNanos() {
+        return backlogNanos + getBacklogNanos();
+    }
+
+    /**
+     * Closes the connection, anything still queued is dropped.
+     */
+    synchronized void close() {
+        pending.clear();
+        pendingBytes = 0;
+        backlogStart = 0;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
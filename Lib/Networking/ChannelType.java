@@ -0,0 +1,25 @@
+package Networking;
+
+/**
+ * How the packets of a remote are delivered.
+ * @author haotian
+ */
+public enum ChannelType {
+    /**
+     * Sent over TCP, reliable and ordered with every other TCP remote.
+     */
+    TCP,
+
+    /**
+     * Sent as datagrams when UDP is available. Packets can be lost and stale packets are dropped,
+     * so only the newest packet of the remote is ever used.
+     */
+    UNRELIABLE,
+
+    /**
+     * Sent as datagrams when UDP is available, acknowledged and resent until they arrive.
+     * Packets are delivered in the order they were sent with the other remotes on the same channel,
+     * a lost packet only holds back its own channel.
+     */
+    RELIABLE_ORDERED
+}
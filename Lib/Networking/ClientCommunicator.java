@@ -0,0 +1,31 @@
+package Networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import Engine.Enums.ServerCloseReason;
+
+/**
+ * The client side of a transport, the connection to the server.
+ */
+interface ClientCommunicator extends Communicator {
+    /**
+     * Writes a whole frame to the server right away, used for control messages.
+     *
+     * @param frame the encoded frame
+     * @throws IOException if the connection is closed
+     */
+    public void SendFrame(ByteBuffer frame) throws IOException;
+
+    /**
+     * Sends every queued frame as a single batch frame.
+     */
+    public void flush();
+
+    /**
+     * Closes the connection.
+     *
+     * @param level the reason the connection is closed
+     */
+    public void Stop(ServerCloseReason level);
+}
@@ -0,0 +1,39 @@
+package Networking;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps remote IDs to the codec used for their payloads.
+ * Remotes without a registered codec use {@link Codecs#ANY}.
+ * @author haotian
+ */
+public class CodecRegistry {
+
+    private final ConcurrentHashMap<Byte, PayloadCodec<Serializable>> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the codec for a remote, replacing any codec registered before.
+     *
+     * @param remoteId the remote ID
+     * @param codec the codec used for the remote's payloads
+     */
+    @SuppressWarnings("unchecked")
+    public void register(byte remoteId, PayloadCodec<? extends Serializable> codec) {
+        if (codec == null) {
+            codecs.remove(remoteId);
+            return;
+        }
+        codecs.put(remoteId, (PayloadCodec<Serializable>) codec);
+    }
+
+    /**
+     * Gets the codec for a remote.
+     *
+     * @param remoteId the remote ID
+     * @return the registered codec, or {@link Codecs#ANY} if there is none
+     */
+    public PayloadCodec<Serializable> get(byte remoteId) {
+        return codecs.getOrDefault(remoteId, Codecs.ANY);
+    }
+}
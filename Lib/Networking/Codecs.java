@@ -0,0 +1,279 @@
+package Networking;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.UUID;
+
+import MathLib.Vector2;
+
+/**
+ * Common payload codecs for the binary wire protocol.
+ * {@link #ANY} is used for remotes that have no codec registered, it writes a one byte type tag
+ * followed by the value and only falls back to java serialization for types it does not know.
+ * @author haotian
+ */
+public final class Codecs {
+
+    private Codecs() {
+    }
+
+    /** Sends no payload at all. */
+    public static final PayloadCodec<Serializable> NONE = new PayloadCodec<Serializable>() {
+        public void write(WireBuffer out, Serializable value) {
+        }
+
+        public Serializable read(WireBuffer in) {
+            return null;
+        }
+    };
+
+    public static final PayloadCodec<UUID> UUID = new PayloadCodec<UUID>() {
+        public void write(WireBuffer out, UUID value) {
+            out.writeUUID(value);
+        }
+
+        public UUID read(WireBuffer in) {
+            return in.readUUID();
+        }
+    };
+
+    public static final PayloadCodec<Short> SHORT = new PayloadCodec<Short>() {
+        public void write(WireBuffer out, Short value) {
+            out.writeShort(value);
+        }
+
+        public Short read(WireBuffer in) {
+            return in.readShort();
+        }
+    };
+
+    public static final PayloadCodec<Integer> INT = new PayloadCodec<Integer>() {
+        public void write(WireBuffer out, Integer value) {
+            out.writeInt(value);
+        }
+
+        public Integer read(WireBuffer in) {
+            return in.readInt();
+        }
+    };
+
+    public static final PayloadCodec<Long> LONG = new PayloadCodec<Long>() {
+        public void write(WireBuffer out, Long value) {
+            out.writeLong(value);
+        }
+
+        public Long read(WireBuffer in) {
+            return in.readLong();
+        }
+    };
+
+    public static final PayloadCodec<Float> FLOAT = new PayloadCodec<Float>() {
+        public void write(WireBuffer out, Float value) {
+            out.writeFloat(value);
+        }
+
+        public Float read(WireBuffer in) {
+            return in.readFloat();
+        }
+    };
+
+    public static final PayloadCodec<String> STRING = new PayloadCodec<String>() {
+        public void write(WireBuffer out, String value) {
+            out.writeString(value);
+        }
+
+        public String read(WireBuffer in) {
+            return in.readString();
+        }
+    };
+
+    public static final PayloadCodec<Vector2> VECTOR2 = new PayloadCodec<Vector2>() {
+        public void write(WireBuffer out, Vector2 value) {
+            out.writeVector2(value);
+        }
+
+        public Vector2 read(WireBuffer in) {
+            return in.readVector2();
+        }
+    };
+
+    public static final PayloadCodec<char[][]> CHAR_GRID = new PayloadCodec<char[][]>() {
+        public void write(WireBuffer out, char[][] value) {
+            out.writeCharGrid(value);
+        }
+
+        public char[][] read(WireBuffer in) {
+            return in.readCharGrid();
+        }
+    };
+
+    /** A length prefixed byte array, for payloads that are already encoded. */
+    public static final PayloadCodec<byte[]> BYTES = new PayloadCodec<byte[]>() {
+        public void write(WireBuffer out, byte[] value) {
+            out.writeVarInt(value.length);
+            out.writeBytes(value);
+        }
+
+        public byte[] read(WireBuffer in) {
+            return in.readBytes(in.readVarInt());
+        }
+    };
+
+    /** Java serialization, only used for payloads that have no better encoding. */
+    public static final PayloadCodec<Serializable> OBJECT = new PayloadCodec<Serializable>() {
+        public void write(WireBuffer out, Serializable value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream stream = new ObjectOutputStream(bytes);
+            stream.writeObject(value);
+            stream.close();
+            out.writeVarInt(bytes.size());
+            out.writeBytes(bytes.toByteArray());
+        }
+
+        public Serializable read(WireBuffer in) throws IOException {
+            byte[] bytes = in.readBytes(in.readVarInt());
+            try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return (Serializable) stream.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_FALSE = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_BYTE = 3;
+    private static final byte TAG_SHORT = 4;
+    private static final byte TAG_INT = 5;
+    private static final byte TAG_LONG = 6;
+    private static final byte TAG_FLOAT = 7;
+    private static final byte TAG_DOUBLE = 8;
+    private static final byte TAG_STRING = 9;
+    private static final byte TAG_UUID = 10;
+    private static final byte TAG_VECTOR2 = 11;
+    private static final byte TAG_CHAR_GRID = 12;
+    private static final byte TAG_COLOR = 13;
+    private static final byte TAG_BYTES = 14;
+    private static final byte TAG_OBJECT = 15;
+
+    /** A tagged codec for values of a type that is only known at runtime. */
+    public static final PayloadCodec<Serializable> ANY = new PayloadCodec<Serializable>() {
+        public void write(WireBuffer out, Serializable value) throws IOException {
+            writeTagged(out, value);
+        }
+
+        public Serializable read(WireBuffer in) throws IOException {
+            return readTagged(in);
+        }
+    };
+
+    /**
+     * Writes a value with a one byte type tag in front of it.
+     *
+     * @param out the buffer to write to
+     * @param value the value to write
+     * @throws IOException if the value falls back to java serialization and fails
+     */
+    public static void writeTagged(WireBuffer out, Serializable value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Byte) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TAG_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof UUID) {
+            out.writeByte(TAG_UUID);
+            out.writeUUID((UUID) value);
+        } else if (value instanceof Vector2) {
+            out.writeByte(TAG_VECTOR2);
+            out.writeVector2((Vector2) value);
+        } else if (value instanceof char[][]) {
+            out.writeByte(TAG_CHAR_GRID);
+            out.writeCharGrid((char[][]) value);
+        } else if (value instanceof Color) {
+            out.writeByte(TAG_COLOR);
+            out.writeInt(((Color) value).getRGB());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(TAG_BYTES);
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes);
+        } else {
+            out.writeByte(TAG_OBJECT);
+            OBJECT.write(out, value);
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #writeTagged(WireBuffer, Serializable)}.
+     *
+     * @param in the buffer to read from
+     * @return the value
+     * @throws IOException if the tag is unknown or the value can not be read
+     */
+    public static Serializable readTagged(WireBuffer in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return false;
+            case TAG_TRUE:
+                return true;
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_STRING:
+                return in.readString();
+            case TAG_UUID:
+                return in.readUUID();
+            case TAG_VECTOR2:
+                return in.readVector2();
+            case TAG_CHAR_GRID:
+                return in.readCharGrid();
+            case TAG_COLOR:
+                return new Color(in.readInt(), true);
+            case TAG_BYTES:
+                return in.readBytes(in.readVarInt());
+            case TAG_OBJECT:
+                return OBJECT.read(in);
+            default:
+                throw new StreamCorruptedException("Unknown value tag " + tag);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package Networking;
+
+/**
+ * The Communicator interface represents an object that can communicate with a network.
+ * It provides methods to start and stop the communication, as well as send packets.
+ */
+interface Communicator {
+    /**
+     * Starts the communication.
+     */
+    public void Start();
+
+    /**
+     * Stops the communication.
+     */
+    public void Stop();
+
+    /**
+     * Sends a packet over the network.
+     * 
+     * @param packet the packet to be sent
+     */
+    public void SendPacket(Packet packet);
+}
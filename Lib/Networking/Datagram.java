@@ -0,0 +1,191 @@
+package Networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the datagrams sent over UDP.
+ * Every datagram starts with a type byte.
+ * <ul>
+ * <li>{@link #HELLO}: {@code [short clientId][int token][int matchId]}, sent by a client until the server answers with {@link #ACK}.
+ * The match ID lets a {@link MatchRouter} find the match the client joined</li>
+ * <li>{@link #ACK}: no body, the server will now send UDP remotes to the client over UDP</li>
+ * <li>{@link #DATA}: {@code [short clientId][byte remoteId][int sequence][byte index][byte count][bytes]},
+ * one fragment of a packet. Packets larger than {@link #MAX_DATAGRAM} are split into up to {@link #MAX_FRAGMENTS} fragments</li>
+ * <li>{@link #RELIABLE}: {@code [short clientId][byte remoteId][byte channel][int sequence][short index][short count][bytes]},
+ * one fragment of a packet on a reliable ordered channel, every fragment has its own sequence number on the channel</li>
+ * <li>{@link #RELIABLE_ACK}: {@code [short clientId][byte channel][int next][int latest][long received]}, every sequence
+ * before {@code next} has arrived, {@code latest} is the fragment being acknowledged and bit {@code i} of {@code received}
+ * is set if {@code latest - 1 - i} has arrived too</li>
+ * </ul>
+ * @author haotian
+ */
+final class Datagram {
+
+    /** The largest datagram that will be sent, small enough to avoid IP fragmentation on most paths. */
+    static final int MAX_DATAGRAM = 1200;
+
+    /** The size of the header in front of every fragment. */
+    static final int HEADER = 10;
+
+    /** The most fragments a packet may be split into, larger packets are sent over TCP instead. */
+    static final int MAX_FRAGMENTS = 8;
+
+    /** The size of the header in front of every fragment on a reliable channel. */
+    static final int RELIABLE_HEADER = 13;
+
+    /** The most fragments a packet on a reliable channel may be split into. */
+    static final int MAX_RELIABLE_FRAGMENTS = 4096;
+
+    static final byte HELLO = 0;
+    static final byte ACK = 1;
+    static final byte DATA = 2;
+    static final byte RELIABLE = 3;
+    static final byte RELIABLE_ACK = 4;
+
+    private Datagram() {
+    }
+
+    /**
+     * Encodes a packet into one or more fragments.
+     *
+     * @param packet the packet with its remote and client ID attached
+     * @param sequence the packet's sequence number for its remote
+     * @param codecs the codec registry
+     * @return the fragments, or null if the packet needs more than {@link #MAX_FRAGMENTS}
+     * @throws IOException if the payload can not be encoded
+     */
+    static ByteBuffer[] encode(Packet packet, int sequence, CodecRegistry codecs) throws IOException {
+        ByteBuffer body = Frame.payload(packet.RemoteID, packet.getPayLoad(), codecs);
+        return encode(packet.clientID == null ? 0 : packet.clientID, packet.RemoteID, sequence, body);
+    }
+
+    /**
+     * Splits an already encoded payload into fragments for one client.
+     *
+     * @param clientId the client the fragments are sent to
+     * @param remoteId the remote the payload is sent with
+     * @param sequence the packet's sequence number for its remote
+     * @param body the encoded payload, its position is not changed
+     * @return the fragments, or null if the payload needs more than {@link #MAX_FRAGMENTS}
+     */
+    static ByteBuffer[] encode(short clientId, byte remoteId, int sequence, ByteBuffer body) {
+        body = body.duplicate();
+        int chunk = MAX_DATAGRAM - HEADER;
+        int count = Math.max(1, (body.remaining() + chunk - 1) / chunk);
+        if (count > MAX_FRAGMENTS) {
+            return null;
+        }
+
+        ByteBuffer[] fragments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(chunk, body.remaining());
+            ByteBuffer fragment = ByteBuffer.allocate(HEADER + length);
+            fragment.put(DATA);
+            fragment.putShort(clientId);
+            fragment.put(remoteId);
+            fragment.putInt(sequence);
+            fragment.put((byte) i);
+            fragment.put((byte) count);
+            ByteBuffer slice = body.duplicate();
+            slice.limit(slice.position() + length);
+            fragment.put(slice);
+            body.position(body.position() + length);
+            fragment.flip();
+            fragments[i] = fragment;
+        }
+        return fragments;
+    }
+
+    /**
+     * Splits an encoded payload into fragments for a reliable channel.
+     * The fragments use the sequence numbers from {@code sequence} up to {@code sequence + count - 1}.
+     *
+     * @param clientId the client the fragments are sent to or from
+     * @param remoteId the remote the payload is sent with
+     * @param channel the reliable channel
+     * @param sequence the sequence number of the first fragment
+     * @param body the encoded payload, its position is not changed
+     * @return the fragments, or null if the payload needs more than {@link #MAX_RELIABLE_FRAGMENTS}
+     */
+    static ByteBuffer[] reliable(short clientId, byte remoteId, byte channel, int sequence, ByteBuffer body) {
+        body = body.duplicate();
+        int chunk = MAX_DATAGRAM - RELIABLE_HEADER;
+        int count = Math.max(1, (body.remaining() + chunk - 1) / chunk);
+        if (count > MAX_RELIABLE_FRAGMENTS) {
+            return null;
+        }
+
+        ByteBuffer[] fragments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(chunk, body.remaining());
+            ByteBuffer fragment = ByteBuffer.allocate(RELIABLE_HEADER + length);
+            fragment.put(RELIABLE);
+            fragment.putShort(clientId);
+            fragment.put(remoteId);
+            fragment.put(channel);
+            fragment.putInt(sequence + i);
+            fragment.putShort((short) i);
+            fragment.putShort((short) count);
+            ByteBuffer slice = body.duplicate();
+            slice.limit(slice.position() + length);
+            fragment.put(slice);
+            body.position(body.position() + length);
+            fragment.flip();
+            fragments[i] = fragment;
+        }
+        return fragments;
+    }
+
+    /**
+     * Encodes the acknowledgement of a reliable channel.
+     *
+     * @param clientId the client the acknowledgement is sent to or from
+     * @param channel the reliable channel
+     * @param next the first sequence number that has not arrived
+     * @param latest the sequence number of the fragment being acknowledged
+     * @param received the bitfield of the 64 sequence numbers before {@code latest} that have arrived
+     * @return the datagram
+     */
+    static ByteBuffer reliableAck(short clientId, byte channel, int next, int latest, long received) {
+        ByteBuffer out = ByteBuffer.allocate(20);
+        out.put(RELIABLE_ACK);
+        out.putShort(clientId);
+        out.put(channel);
+        out.putInt(next);
+        out.putInt(latest);
+        out.putLong(received);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encodes the registration sent by a client.
+     *
+     * @param clientId the client's ID
+     * @param token the token the server sent in the handshake
+     * @param matchId the match the client joined, {@link NetworkHandler#NO_MATCH} if the server is not a {@link MatchRouter}
+     * @return the datagram
+     */
+    static ByteBuffer hello(short clientId, int token, int matchId) {
+        ByteBuffer out = ByteBuffer.allocate(11);
+        out.put(HELLO);
+        out.putShort(clientId);
+        out.putInt(token);
+        out.putInt(matchId);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encodes the server's answer to a registration.
+     *
+     * @return the datagram
+     */
+    static ByteBuffer ack() {
+        ByteBuffer out = ByteBuffer.allocate(1);
+        out.put(ACK);
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,92 @@
+package Networking;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tracks the datagrams received from one sender.
+ * Packets older than the newest packet already received for the same remote are discarded,
+ * and fragments are put back together. Only the newest unfinished packet of each remote is kept,
+ * so a lost fragment just drops that packet.
+ * @author haotian
+ */
+final class DatagramReassembler {
+
+    /**
+     * The fragments received so far for one packet.
+     */
+    private static final class Fragments {
+        final int sequence;
+        final byte[][] parts;
+        int received = 0;
+        int size = 0;
+
+        Fragments(int sequence, int count) {
+            this.sequence = sequence;
+            this.parts = new byte[count][];
+        }
+    }
+
+    private final int[] lastSequence = new int[256];
+    private final boolean[] seen = new boolean[256];
+    private final Fragments[] pending = new Fragments[256];
+
+    /**
+     * Handles a data datagram whose type, client ID and remote ID have already been read.
+     *
+     * @param clientId the client ID in the datagram
+     * @param remoteId the remote ID in the datagram
+     * @param in the rest of the datagram
+     * @param codecs the codec registry
+     * @return the packet, or null if it is stale or still missing fragments
+     * @throws StreamCorruptedException if the header or the payload is invalid
+     */
+    synchronized Packet accept(short clientId, byte remoteId, WireBuffer in, CodecRegistry codecs) throws StreamCorruptedException {
+        int sequence = in.readInt();
+        int index = in.readUnsignedByte();
+        int count = in.readUnsignedByte();
+        if (count < 1 || count > Datagram.MAX_FRAGMENTS || index >= count) {
+            throw new StreamCorruptedException("Invalid fragment " + index + "/" + count);
+        }
+
+        int slot = remoteId & 0xFF;
+        if (seen[slot] && sequence - lastSequence[slot] <= 0) {
+            return null;
+        }
+
+        WireBuffer payload = in;
+        if (count > 1) {
+            Fragments fragments = pending[slot];
+            if (fragments == null || sequence - fragments.sequence > 0) {
+                fragments = new Fragments(sequence, count);
+                pending[slot] = fragments;
+            } else if (fragments.sequence != sequence) {
+                return null;
+            }
+            if (fragments.parts.length != count) {
+                throw new StreamCorruptedException("Fragment count changed for sequence " + sequence);
+            }
+            if (fragments.parts[index] == null) {
+                fragments.parts[index] = in.readBytes(in.remaining());
+                fragments.size += fragments.parts[index].length;
+                fragments.received++;
+            }
+            if (fragments.received < count) {
+                return null;
+            }
+            pending[slot] = null;
+            ByteBuffer whole = ByteBuffer.allocate(fragments.size);
+            for (byte[] part : fragments.parts) {
+                whole.put(part);
+            }
+            whole.flip();
+            payload = WireBuffer.wrap(whole);
+        }
+
+        seen[slot] = true;
+        lastSequence[slot] = sequence;
+        Packet packet = new Packet(clientId);
+        packet.RemoteID = remoteId;
+        return Frame.readPayload(packet, payload, codecs);
+    }
+}
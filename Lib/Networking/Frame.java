@@ -0,0 +1,271 @@
+package Networking;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the length prefixed frames sent over TCP.
+ * Every frame is {@code [int length][byte type][body]} where length counts the type byte and the body.
+ * <ul>
+ * <li>{@link #DATA}: {@code [short clientId][byte remoteId][payload]}, the payload is written by the remote's codec</li>
+ * <li>{@link #CONTROL}: {@code [byte opcode]}, such as {@link #LEAVING} or {@link #KICKED}. {@link #PING} and {@link #PONG} are followed by {@code [long time]},
+ * {@link #JOIN} by {@code [int matchId]}</li>
+ * <li>{@link #HANDSHAKE}: {@code [short id][string name][int udpToken][varint count][users]}, sent by the server when a client joins</li>
+ * <li>{@link #BATCH}: whole frames one after another, everything sent to a connection during one tick</li>
+ * </ul>
+ * @author haotian
+ */
+final class Frame {
+
+    /** The size of the length prefix in bytes. */
+    static final int LENGTH_SIZE = 4;
+
+    /** The largest frame that will be accepted, larger frames mean the stream is corrupt. */
+    static final int MAX_FRAME = 1 << 22;
+
+    /** The size of a data frame without its payload, including the length prefix. */
+    static final int DATA_HEADER = LENGTH_SIZE + 4;
+
+    static final byte DATA = 0;
+    static final byte CONTROL = 1;
+    static final byte HANDSHAKE = 2;
+    static final byte BATCH = 3;
+
+    /** Control opcodes, the first byte of the body of a {@link #CONTROL} frame. */
+    static final byte PING = 0;
+    static final byte PONG = 1;
+    static final byte LEAVING = 2;
+    static final byte KICKED = 3;
+    static final byte SERVER_CLOSE = 4;
+    static final byte FAIL = 5;
+    /** Sent by a client before anything else when it joins a match on a {@link MatchRouter}. */
+    static final byte JOIN = 6;
+
+    private Frame() {
+    }
+
+    /**
+     * Starts a new frame, leaving room for the length prefix.
+     *
+     * @param type the frame type
+     * @param capacity the expected size of the body
+     * @return a buffer to write the body to
+     */
+    static WireBuffer begin(byte type, int capacity) {
+        WireBuffer out = new WireBuffer(capacity + LENGTH_SIZE + 1);
+        out.writeInt(0);
+        out.writeByte(type);
+        return out;
+    }
+
+    /**
+     * Patches the length prefix of a frame started with {@link #begin(byte, int)}.
+     *
+     * @param out the frame buffer
+     * @return the frame ready to be written
+     */
+    static ByteBuffer finish(WireBuffer out) {
+        out.putInt(0, out.position() - LENGTH_SIZE);
+        return out.flip();
+    }
+
+    /**
+     * Encodes a packet into a data frame using the codec registered for its remote.
+     *
+     * @param packet the packet with its remote and client ID attached
+     * @param codecs the codec registry
+     * @return the encoded frame
+     * @throws IOException if the payload can not be encoded
+     */
+    static ByteBuffer data(Packet packet, CodecRegistry codecs) throws IOException {
+        WireBuffer out = begin(DATA, 32);
+        out.writeShort(packet.clientID == null ? 0 : packet.clientID);
+        out.writeByte(packet.RemoteID);
+        codecs.get(packet.RemoteID).write(out, packet.getPayLoad());
+        return finish(out);
+    }
+
+    /**
+     * Encodes a payload once so it can be sent to many connections.
+     * Each connection gets its own {@link #dataHeader(short, byte, int)} in front of the same bytes.
+     *
+     * @param remoteId the remote the payload is sent with
+     * @param payload the payload
+     * @param codecs the codec registry
+     * @return a read only buffer holding the encoded payload
+     * @throws IOException if the payload can not be encoded
+     */
+    static ByteBuffer payload(byte remoteId, Serializable payload, CodecRegistry codecs) throws IOException {
+        WireBuffer out = new WireBuffer(32);
+        codecs.get(remoteId).write(out, payload);
+        return out.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes the part of a data frame in front of the payload.
+     * Writing the header followed by a payload from {@link #payload(byte, Serializable, CodecRegistry)}
+     * gives the same bytes as {@link #data(Packet, CodecRegistry)}.
+     *
+     * @param clientId the client the frame is sent to
+     * @param remoteId the remote the payload is sent with
+     * @param payloadLength the length of the encoded payload
+     * @return the header
+     */
+    static ByteBuffer dataHeader(short clientId, byte remoteId, int payloadLength) {
+        ByteBuffer out = ByteBuffer.allocate(DATA_HEADER);
+        out.putInt(DATA_HEADER - LENGTH_SIZE + payloadLength);
+        out.put(DATA);
+        out.putShort(clientId);
+        out.put(remoteId);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encodes a control message.
+     *
+     * @param opcode the message, such as {@link #LEAVING}
+     * @return the encoded frame
+     */
+    static ByteBuffer control(byte opcode) {
+        WireBuffer out = begin(CONTROL, 1);
+        out.writeByte(opcode);
+        return finish(out);
+    }
+
+    /**
+     * Encodes a PING, or the PONG answering it. The time is the pinging side's {@link System#nanoTime()},
+     * sent back unchanged in the PONG so that side can measure the round trip without synchronized clocks.
+     *
+     * @param opcode {@link #PING} or {@link #PONG}
+     * @param time the time the PING was sent
+     * @return the encoded frame
+     */
+    static ByteBuffer ping(byte opcode, long time) {
+        WireBuffer out = begin(CONTROL, 9);
+        out.writeByte(opcode);
+        out.writeLong(time);
+        return finish(out);
+    }
+
+    /**
+     * Encodes the request of a client to join a match, sent before the server's handshake.
+     *
+     * @param matchId the match
+     * @return the encoded frame
+     */
+    static ByteBuffer join(int matchId) {
+        WireBuffer out = begin(CONTROL, 5);
+        out.writeByte(JOIN);
+        out.writeInt(matchId);
+        return finish(out);
+    }
+
+    /**
+     * Encodes the handshake sent to a client that has just joined.
+     *
+     * @param client the client that joined
+     * @param users the users already in the session
+     * @return the encoded frame
+     */
+    static ByteBuffer handshake(NetworkUser client, NetworkUser[] users) {
+        WireBuffer out = begin(HANDSHAKE, 16 + users.length * 16);
+        out.writeShort(client.getId());
+        out.writeString(client.getName());
+        out.writeInt(client.udpToken);
+        out.writeVarInt(users.length);
+        for (NetworkUser user : users) {
+            user.write(out);
+        }
+        return finish(out);
+    }
+
+    /**
+     * Decodes the body of a data frame, the type byte must already be read.
+     *
+     * @param in the frame
+     * @param codecs the codec registry
+     * @return the decoded packet
+     * @throws StreamCorruptedException if the payload can not be decoded, the frame is skipped
+     */
+    static Packet readPacket(WireBuffer in, CodecRegistry codecs) throws StreamCorruptedException {
+        Packet packet = new Packet(in.readShort());
+        packet.RemoteID = in.readByte();
+        return readPayload(packet, in, codecs);
+    }
+
+    /**
+     * Decodes a payload into a packet that already has its remote ID.
+     *
+     * @param packet the packet to fill in
+     * @param in the payload
+     * @param codecs the codec registry
+     * @return the packet
+     * @throws StreamCorruptedException if the payload can not be decoded
+     */
+    static Packet readPayload(Packet packet, WireBuffer in, CodecRegistry codecs) throws StreamCorruptedException {
+        try {
+            packet.addToPayLoad(codecs.get(packet.RemoteID).read(in));
+        } catch (IOException | RuntimeException e) {
+            StreamCorruptedException error = new StreamCorruptedException("Failed to decode payload for remote " + packet.RemoteID);
+            error.initCause(e);
+            throw error;
+        }
+        return packet;
+    }
+
+    /**
+     * Reads the next frame inside a batch frame, the batch's type byte must already be read.
+     *
+     * @param batch the batch frame
+     * @return the inner frame, positioned at its type byte
+     * @throws StreamCorruptedException if the inner length is invalid
+     */
+    static WireBuffer next(WireBuffer batch) throws StreamCorruptedException {
+        int length = batch.readInt();
+        if (length < 1 || length > batch.remaining()) {
+            throw new StreamCorruptedException("Invalid batched frame length " + length);
+        }
+        return WireBuffer.wrap(batch.readSlice(length));
+    }
+
+    /**
+     * Blocks until a whole frame is read.
+     *
+     * @param in the stream to read from
+     * @return a buffer holding the type byte and the body
+     * @throws IOException if the stream is closed or the length is invalid
+     */
+    static ByteBuffer read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Writes a whole frame without changing its position, so the same frame can be written more than once.
+     *
+     * @param out the stream to write to
+     * @param frame the frame
+     * @throws IOException if the stream is closed
+     */
+    static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        if (frame.hasArray()) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } else {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.duplicate().get(bytes);
+            out.write(bytes);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,79 @@
+package Networking;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the bytes read from a non-blocking channel back into frames.
+ * Reads can end anywhere inside a frame, the partial frame is kept until the rest arrives.
+ * @author haotian
+ */
+final class FrameDecoder {
+
+    private ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+
+    /**
+     * Reads whatever the channel has available.
+     *
+     * @param channel the channel to read from
+     * @return the amount of bytes read, -1 if the channel reached the end of the stream
+     * @throws IOException if the read fails
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            grow(buffer.capacity() * 2);
+        }
+        return channel.read(buffer);
+    }
+
+    /**
+     * Takes the next complete frame out of the buffer.
+     *
+     * @return a buffer holding the frame's type byte and body, or null if no complete frame has been read
+     * @throws ProtocolException if the length prefix is invalid
+     */
+    ByteBuffer next() throws ProtocolException {
+        buffer.flip();
+        try {
+            if (buffer.remaining() < Frame.LENGTH_SIZE) {
+                return null;
+            }
+            int length = buffer.getInt(buffer.position());
+            if (length < 1 || length > Frame.MAX_FRAME) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            if (buffer.remaining() < Frame.LENGTH_SIZE + length) {
+                if (buffer.capacity() < Frame.LENGTH_SIZE + length) {
+                    buffer.compact();
+                    grow(Frame.LENGTH_SIZE + length);
+                    buffer.flip();
+                }
+                return null;
+            }
+            byte[] frame = new byte[length];
+            buffer.position(buffer.position() + Frame.LENGTH_SIZE);
+            buffer.get(frame);
+            return ByteBuffer.wrap(frame);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Grows the buffer, it must be in write mode.
+     *
+     * @param capacity the smallest capacity needed
+     */
+    private void grow(int capacity) {
+        int size = buffer.capacity();
+        while (size < capacity) {
+            size <<= 1;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(size);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,405 @@
+package Networking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A proxy that sits between a client and a server on the same machine and makes the connection worse,
+ * so replication can be measured under latency, jitter, reordering, loss and limited bandwidth.
+ * It listens on one port for both TCP and UDP, like the {@link NetworkHandler}, and forwards to the server's port.
+ * Clients connect to the proxy's port instead of the server's.
+ * <p>
+ * Every direction of every connection is delayed by the latency plus a random jitter, and queued behind what it
+ * sent before when a bandwidth cap is set. TCP keeps its order, so jitter only delays it. Datagrams can also be
+ * lost, or held back so a later datagram overtakes them. The random numbers of every direction come from the seed
+ * and the order connections are made in, so a run can be repeated.
+ * @author haotian
+ */
+public class ImpairmentProxy {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int listenPort;
+    private final String targetHost;
+    private final int targetPort;
+    private final long seed;
+
+    private volatile int latency = 0;
+    private volatile int jitter = 0;
+    private volatile int bandwidth = 0;
+    private volatile double loss = 0;
+    private volatile double reorder = 0;
+
+    private ServerSocket tcpSocket;
+    private DatagramSocket udpSocket;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger linkCount = new AtomicInteger();
+    private final List<Closeable> sockets = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final ConcurrentHashMap<SocketAddress, Link> udpClients = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a proxy, nothing is opened until {@link #Start()}.
+     *
+     * @param listenPort the port clients connect to
+     * @param targetHost the server's address
+     * @param targetPort the server's port
+     * @param seed the seed of the random delays and losses
+     */
+    public ImpairmentProxy(int listenPort, String targetHost, int targetPort, long seed) {
+        this.listenPort = listenPort;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the delay added in each direction.
+     *
+     * @param millis the one way latency in milliseconds
+     */
+    public void setLatency(int millis) {
+        latency = Math.max(0, millis);
+    }
+
+    /**
+     * Sets the largest random delay added on top of the latency.
+     *
+     * @param millis the jitter in milliseconds
+     */
+    public void setJitter(int millis) {
+        jitter = Math.max(0, millis);
+    }
+
+    /**
+     * Sets the bandwidth of each direction. Data beyond it waits until the previous data has gone through.
+     *
+     * @param bytesPerSecond the bandwidth, 0 for no cap
+     */
+    public void setBandwidth(int bytesPerSecond) {
+        bandwidth = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Sets the chance that a datagram is dropped. TCP is never dropped.
+     *
+     * @param chance the chance in range [0,1]
+     * @throws IllegalArgumentException if the chance is not in range [0,1]
+     */
+    public void setLoss(double chance) {
+        if (chance < 0 || chance > 1) {
+            throw new IllegalArgumentException("[ImpairmentProxy] loss must be in range [0,1] but was " + chance);
+        }
+        loss = chance;
+    }
+
+    /**
+     * Sets the chance that a datagram is held back for another latency plus jitter, so later datagrams overtake it.
+     *
+     * @param chance the chance in range [0,1]
+     * @throws IllegalArgumentException if the chance is not in range [0,1]
+     */
+    public void setReorder(double chance) {
+        if (chance < 0 || chance > 1) {
+            throw new IllegalArgumentException("[ImpairmentProxy] reorder must be in range [0,1] but was " + chance);
+        }
+        reorder = chance;
+    }
+
+    /**
+     * Opens the proxy's port and starts forwarding.
+     *
+     * @throws IOException if the port can not be bound
+     */
+    public void Start() throws IOException {
+        tcpSocket = new ServerSocket();
+        tcpSocket.bind(new InetSocketAddress(listenPort));
+        udpSocket = new DatagramSocket(listenPort);
+        track(tcpSocket);
+        track(udpSocket);
+        spawn("ImpairmentProxy TCP", this::acceptClients);
+        spawn("ImpairmentProxy UDP", this::forwardDatagrams);
+    }
+
+    /**
+     * Closes every connection and stops forwarding. Anything still delayed is dropped.
+     */
+    public void Stop() {
+        closed = true;
+        synchronized (sockets) {
+            for (Closeable socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+            sockets.clear();
+        }
+        synchronized (threads) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            threads.clear();
+        }
+        udpClients.clear();
+    }
+
+    private void acceptClients() {
+        while (!closed) {
+            try {
+                Socket client = tcpSocket.accept();
+                Socket server = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                track(client);
+                track(server);
+                pipe(client, server, "up");
+                pipe(server, client, "down");
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("[ImpairmentProxy] Failed to connect a client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies one direction of a TCP connection through a link that keeps the order of what is sent.
+     */
+    private void pipe(Socket from, Socket to, String direction) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        Link link = new Link("ImpairmentProxy TCP " + direction, true);
+        spawn("ImpairmentProxy TCP reader " + direction, () -> {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    byte[] chunk = Arrays.copyOf(buffer, read);
+                    link.send(read, () -> {
+                        try {
+                            out.write(chunk);
+                            out.flush();
+                        } catch (IOException e) {
+                            close(from, to);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+            }
+            link.send(0, () -> close(from, to));
+        });
+    }
+
+    private void close(Socket a, Socket b) {
+        try {
+            a.close();
+            b.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Forwards datagrams from clients to the server. Every client address gets its own socket towards the server,
+     * so the server tells clients apart, and the server's answers are sent back from the proxy's port.
+     */
+    private void forwardDatagrams() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        SocketAddress target = new InetSocketAddress(targetHost, targetPort);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                udpSocket.receive(packet);
+                SocketAddress client = packet.getSocketAddress();
+                Link up = udpClients.get(client);
+                if (up == null) {
+                    DatagramSocket server = new DatagramSocket();
+                    track(server);
+                    up = new Link("ImpairmentProxy UDP up", false);
+                    up.socket = server;
+                    udpClients.put(client, up);
+                    Link down = new Link("ImpairmentProxy UDP down", false);
+                    spawn("ImpairmentProxy UDP reader", () -> answerClient(server, client, down));
+                }
+                DatagramSocket server = up.socket;
+                byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+                up.sendDatagram(data.length, () -> {
+                    try {
+                        server.send(new DatagramPacket(data, data.length, target));
+                    } catch (IOException e) {
+                    }
+                });
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("[ImpairmentProxy] Failed to forward a datagram: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void answerClient(DatagramSocket server, SocketAddress client, Link down) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                server.receive(packet);
+                byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+                down.sendDatagram(data.length, () -> {
+                    try {
+                        udpSocket.send(new DatagramPacket(data, data.length, client));
+                    } catch (IOException e) {
+                    }
+                });
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void track(Closeable socket) {
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+    }
+
+    private void spawn(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        synchronized (threads) {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    /**
+     * Something waiting to be delivered, ordered by when it is due and then by when it was sent.
+     */
+    private static class Delivery implements Delayed {
+        private static final AtomicLong ORDER = new AtomicLong();
+
+        private final long due;
+        private final long order = ORDER.incrementAndGet();
+        private final Runnable action;
+
+        private Delivery(long due, Runnable action) {
+            this.due = due;
+            this.action = action;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Delivery d = (Delivery) other;
+            int c = Long.compare(due, d.due);
+            return c != 0 ? c : Long.compare(order, d.order);
+        }
+    }
+
+    /**
+     * One direction of one connection, with its own random numbers and its own thread delivering what is due.
+     */
+    private class Link {
+        private final DelayQueue<Delivery> queue = new DelayQueue<>();
+        private final Random random;
+        private final boolean ordered;
+        private long busyUntil = 0;
+        private long lastDue = 0;
+        private DatagramSocket socket;
+
+        private Link(String name, boolean ordered) {
+            this.random = new Random(seed * 31 + linkCount.incrementAndGet());
+            this.ordered = ordered;
+            spawn(name, () -> {
+                try {
+                    while (!closed) {
+                        queue.take().action.run();
+                    }
+                } catch (InterruptedException e) {
+                }
+            });
+        }
+
+        /**
+         * Delivers data after the latency, the jitter and the time the bandwidth needs for it.
+         */
+        private synchronized void send(int bytes, Runnable action) {
+            queue.add(new Delivery(due(bytes, false), action));
+        }
+
+        /**
+         * Delivers a datagram like {@link #send}, unless it is lost.
+         */
+        private synchronized void sendDatagram(int bytes, Runnable action) {
+            if (random.nextDouble() < loss) {
+                return;
+            }
+            queue.add(new Delivery(due(bytes, random.nextDouble() < reorder), action));
+        }
+
+        private long due(int bytes, boolean heldBack) {
+            long now = System.nanoTime();
+            long delay = TimeUnit.MILLISECONDS.toNanos(latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0));
+            if (heldBack) {
+                delay += TimeUnit.MILLISECONDS.toNanos(latency + jitter + 1);
+            }
+            int rate = bandwidth;
+            if (rate > 0) {
+                busyUntil = Math.max(busyUntil, now) + bytes * 1000000000L / rate;
+                delay += busyUntil - now;
+            }
+            long due = now + delay;
+            if (ordered) {
+                due = Math.max(due, lastDue);
+                lastDue = due;
+            }
+            return due;
+        }
+    }
+
+    /**
+     * Runs a proxy until the process is stopped.
+     * Arguments: listenPort targetPort [latencyMs] [jitterMs] [loss] [bandwidthBytesPerSecond] [seed]
+     *
+     * @param args the command-line arguments
+     * @throws IOException if the port can not be bound
+     * @throws InterruptedException if the main thread is interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: ImpairmentProxy listenPort targetPort [latencyMs] [jitterMs] [loss] [bandwidthBytesPerSecond] [seed]");
+            return;
+        }
+        long seed = args.length > 6 ? Long.parseLong(args[6]) : 1;
+        ImpairmentProxy proxy = new ImpairmentProxy(Integer.parseInt(args[0]), "127.0.0.1", Integer.parseInt(args[1]), seed);
+        if (args.length > 2) proxy.setLatency(Integer.parseInt(args[2]));
+        if (args.length > 3) proxy.setJitter(Integer.parseInt(args[3]));
+        if (args.length > 4) proxy.setLoss(Double.parseDouble(args[4]));
+        if (args.length > 5) proxy.setBandwidth(Integer.parseInt(args[5]));
+        proxy.Start();
+        System.out.println("Forwarding port " + args[0] + " to " + args[1] + " with seed " + seed);
+        Thread.currentThread().join();
+    }
+}
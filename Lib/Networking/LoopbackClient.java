@@ -0,0 +1,137 @@
+package Networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import Engine.Enums.ServerCloseReason;
+
+/**
+ * The client side of a {@link LoopbackHub}. Works like {@link TCPClient} with the server in the same process.
+ * @author haotian
+ */
+class LoopbackClient implements ClientCommunicator {
+
+    private final NetworkHandler handler;
+    private final LoopbackInbox inbox;
+    private final LoopbackServer server;
+    private final NetworkUser user;
+    private volatile boolean closed = false;
+
+    /**
+     * The frames waiting to be sent at the end of the tick.
+     */
+    private final OutboundBatch batch = new OutboundBatch();
+
+    /**
+     * Connects to the server of a hub and reads the handshake.
+     *
+     * @param handler the NetworkHandler object to associate with the client
+     * @param hub the hub the server is running on
+     * @throws IOException if no server is running on the hub or it is not allowing joining
+     */
+    LoopbackClient(NetworkHandler handler, LoopbackHub hub) throws IOException {
+        this.handler = handler;
+        this.inbox = new LoopbackInbox(hub.isZeroCopy());
+        server = hub.getServer();
+        if (server == null) {
+            throw new IOException("No server is running on the loopback hub");
+        }
+        user = server.accept(this);
+
+        ByteBuffer handshake = inbox.poll();
+        WireBuffer frame = WireBuffer.wrap(handshake);
+        byte type = frame.readByte();
+        if (type != Frame.HANDSHAKE) {
+            Stop();
+            throw new IOException("Expected a handshake from the server but got frame type " + type);
+        }
+        handler.handleHandshake(frame);
+    }
+
+    /**
+     * Starts handling the frames the server sends.
+     */
+    @Override
+    public void Start() {
+        inbox.start("LoopbackClient", (from, frame) -> handler.handleServerFrame(this, frame));
+    }
+
+    /**
+     * Adds a frame the server sent to the frames to handle.
+     *
+     * @param frame the frame or its parts
+     */
+    void deliver(ByteBuffer... frame) {
+        inbox.offer(null, frame);
+    }
+
+    /**
+     * Sends a packet to the server, or queues it until {@link #flush()} while batching.
+     *
+     * @param packet the packet to be sent
+     */
+    @Override
+    public void SendPacket(Packet packet) {
+        try {
+            long start = System.nanoTime();
+            ByteBuffer frame = Frame.data(packet, handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            handler.getMetrics().recordSent(packet.RemoteID, packet.getClientID(), 1, frame.remaining());
+            if (handler.isBatching()) {
+                boolean full;
+                synchronized (this) {
+                    full = batch.add(frame);
+                }
+                if (full) {
+                    flush();
+                }
+            } else {
+                SendFrame(frame);
+            }
+        } catch (IOException e) {
+            Stop(ServerCloseReason.crashed);
+        }
+    }
+
+    @Override
+    public void SendFrame(ByteBuffer frame) throws IOException {
+        if (closed) {
+            throw new IOException("Connection is closed");
+        }
+        server.receive(user, frame);
+    }
+
+    @Override
+    synchronized public void flush() {
+        int messages = batch.size();
+        ByteBuffer frame = batch.drain();
+        if (frame == null || closed) {
+            return;
+        }
+        handler.recordFlush(messages, frame.remaining());
+        server.receive(user, frame);
+    }
+
+    @Override
+    public void Stop() {
+        Stop(ServerCloseReason.unknown);
+    }
+
+    /**
+     * Tells the server the client is leaving and stops handling frames.
+     *
+     * @param level the reason the connection is closed
+     */
+    @Override
+    synchronized public void Stop(ServerCloseReason level) {
+        if (closed) {
+            return;
+        }
+        if (user != null) {
+            server.receive(user, Frame.control(Frame.LEAVING));
+        }
+        closed = true;
+        inbox.close();
+        handler.handleServerClose(level);
+    }
+}
@@ -0,0 +1,221 @@
+package Networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connects a host {@link NetworkHandler} and any amount of client handlers in the same process without sockets.
+ * The host calls {@link NetworkHandler#StartServer(LoopbackHub)} and every client {@link NetworkHandler#StartClient(LoopbackHub)}
+ * with the same hub. Packets go through the same codecs, frames, batching and metrics as over TCP, but the frames are
+ * handed to the other side through lock-free queues, each drained by its own thread like a socket reader.
+ * Remotes that would use UDP are sent the same way. Useful to test replication with a host and clients, and to
+ * benchmark it, without allocating ports.
+ * @author haotian
+ */
+public final class LoopbackHub {
+
+    private final AtomicReference<LoopbackServer> server = new AtomicReference<>();
+    private volatile boolean zeroCopy = false;
+
+    /**
+     * Sets whether frames are handed over without copying them. Frames are never changed once they are sent,
+     * so the receiver can read the sender's buffer, but copying is closer to what a socket does. Off by default.
+     * Only affects connections made after it is set.
+     *
+     * @param value true to hand frames over without copying them
+     */
+    public void setZeroCopy(boolean value) {
+        zeroCopy = value;
+    }
+
+    /**
+     * Gets whether frames are handed over without copying them.
+     *
+     * @return true if frames are not copied
+     */
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    /**
+     * Makes a server the one clients connect to.
+     *
+     * @param loopbackServer the server
+     * @throws IOException if another server is already running on the hub
+     */
+    void bind(LoopbackServer loopbackServer) throws IOException {
+        if (!server.compareAndSet(null, loopbackServer)) {
+            throw new IOException("A server is already running on this loopback hub");
+        }
+    }
+
+    /**
+     * Removes a server that stopped.
+     *
+     * @param loopbackServer the server
+     */
+    void unbind(LoopbackServer loopbackServer) {
+        server.compareAndSet(loopbackServer, null);
+    }
+
+    /**
+     * Gets the server clients connect to.
+     *
+     * @return the server, or null if none is running
+     */
+    LoopbackServer getServer() {
+        return server.get();
+    }
+
+    /**
+     * Checks a host and two clients on a hub: packets fired to the server, to each client,
+     * to every client and to the host's own client must arrive intact at exactly the right handlers.
+     * Prints every mismatch and exits with a non-zero status if there was one.
+     *
+     * @param args unused
+     * @throws IOException if a handler can not start
+     * @throws InterruptedException if interrupted while waiting for packets
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String[] remotes = {"Check"};
+        String[] udpRemotes = {"Fast"};
+        LoopbackHub hub = new LoopbackHub();
+        NetworkHandler host = new NetworkHandler(remotes, udpRemotes);
+        Queue<Packet> hostReceived = listen(host);
+        host.StartServer(hub);
+
+        NetworkHandler[] clients = new NetworkHandler[2];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Queue<Packet>[] clientReceived = new Queue[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new NetworkHandler(remotes, udpRemotes);
+            clientReceived[i] = listen(clients[i]);
+            clients[i].StartClient(hub);
+        }
+
+        int failed = 0;
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (host.getClients().length < clients.length + 1 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        for (NetworkHandler client : clients) {
+            while (client.getLocal() == null && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        if (host.getClients().length != clients.length + 1) {
+            System.out.println("Host has " + host.getClients().length + " clients, expected " + (clients.length + 1));
+            System.exit(1);
+        }
+
+        byte[] bulk = new byte[4096];
+        new Random(16).nextBytes(bulk);
+        for (int i = 0; i < clients.length; i++) {
+            Short id = clients[i].getLocal().getId();
+            clients[i].getRemote("Check").fireServer(packet("to server from " + id));
+            clients[i].getRemote("Fast").fireServer(packet(bulk));
+        }
+        for (int i = 0; i < clients.length; i++) {
+            Short id = clients[i].getLocal().getId();
+            Packet[] expected = {packet("to server from " + id), packet(bulk)};
+            failed += expect("Server from client " + id, filter(hostReceived, id, 2), expected, id);
+        }
+
+        for (int i = 0; i < clients.length; i++) {
+            Short id = clients[i].getLocal().getId();
+            host.getRemote("Check").fireClient(host.getClient(id), packet("to client " + id));
+        }
+        host.getRemote("Fast").fireAllClients(packet(bulk));
+        host.getRemote("Check").fireAllClients(packet("to all clients"));
+        for (int i = 0; i < clients.length; i++) {
+            Short id = clients[i].getLocal().getId();
+            Packet[] expected = {packet("to client " + id), packet(bulk), packet("to all clients")};
+            failed += expect("Client " + id, take(clientReceived[i], 3), expected, id);
+        }
+
+        Short hostId = host.getLocal().getId();
+        host.getRemote("Check").fireClient(host.getLocal(), packet("to local client"));
+        failed += expect("Local client", take(hostReceived, 1), new Packet[]{packet("to local client")}, hostId);
+
+        Thread.sleep(50);
+        for (int i = 0; i < clients.length; i++) {
+            failed += expect("Nothing else for client " + clients[i].getLocal().getId(), clientReceived[i].toArray(new Packet[0]), new Packet[0], null);
+        }
+        failed += expect("Nothing else for the host", hostReceived.toArray(new Packet[0]), new Packet[0], null);
+
+        for (NetworkHandler client : clients) {
+            client.Stop();
+        }
+        host.Stop();
+        System.out.println(failed == 0 ? "All loopback checks passed" : failed + " loopback checks failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /** How long the self check waits for packets, in nanoseconds. */
+    private static final long TIMEOUT = 2_000_000_000L;
+
+    private static Queue<Packet> listen(NetworkHandler handler) {
+        Queue<Packet> received = new ConcurrentLinkedQueue<>();
+        handler.getRemote("Check").onMessage.connect(received::add);
+        handler.getRemote("Fast").onMessage.connect(received::add);
+        return received;
+    }
+
+    private static Packet packet(Serializable payload) {
+        Packet packet = new Packet();
+        packet.addToPayLoad(payload);
+        return packet;
+    }
+
+    private static Packet[] take(Queue<Packet> received, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (received.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Packet[] taken = new Packet[Math.min(count, received.size())];
+        for (int i = 0; i < taken.length; i++) {
+            taken[i] = received.poll();
+        }
+        return taken;
+    }
+
+    private static Packet[] filter(Queue<Packet> received, Short clientId, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (received.stream().filter(p -> clientId.equals(p.getClientID())).count() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Packet[] taken = received.stream().filter(p -> clientId.equals(p.getClientID())).limit(count).toArray(Packet[]::new);
+        received.removeAll(Arrays.asList(taken));
+        return taken;
+    }
+
+    private static int expect(String what, Packet[] received, Packet[] expected, Short clientId) {
+        int failed = 0;
+        if (received.length != expected.length) {
+            System.out.println(what + ": got " + received.length + " packets, expected " + expected.length);
+            failed++;
+        }
+        for (Packet packet : expected) {
+            boolean found = false;
+            for (Packet got : received) {
+                found |= Objects.deepEquals(got.getPayLoad(), packet.getPayLoad()) && Objects.equals(got.getClientID(), clientId);
+            }
+            if (!found) {
+                System.out.println(what + ": missing " + describe(packet.getPayLoad()));
+                failed++;
+            }
+        }
+        System.out.println(what + ": " + (failed == 0 ? "passed" : "failed"));
+        return failed;
+    }
+
+    private static String describe(Serializable payload) {
+        return payload instanceof byte[] ? ((byte[]) payload).length + " bytes" : String.valueOf(payload);
+    }
+}
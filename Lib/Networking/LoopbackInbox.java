@@ -0,0 +1,137 @@
+package Networking;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The frames sent to one side of a loopback connection, handled in order by a single thread.
+ * Senders never block, the thread is woken up when a frame is added.
+ */
+final class LoopbackInbox {
+
+    /**
+     * Handles the frames taken from the inbox.
+     */
+    interface Receiver {
+        /**
+         * Handles a frame.
+         *
+         * @param from the client that sent the frame, null on a client
+         * @param frame the frame, positioned at its type byte
+         * @return false to stop handling frames
+         * @throws Exception if the frame can not be handled, it is skipped
+         */
+        boolean receive(NetworkUser from, WireBuffer frame) throws Exception;
+    }
+
+    private static final class Delivery {
+        final NetworkUser from;
+        final ByteBuffer frame;
+
+        Delivery(NetworkUser from, ByteBuffer frame) {
+            this.from = from;
+            this.frame = frame;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Delivery> queue = new ConcurrentLinkedQueue<>();
+    private final boolean zeroCopy;
+    private volatile Thread thread;
+    private volatile boolean closed = false;
+
+    LoopbackInbox(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Adds a frame. Can be called from any thread, frames from one thread are handled in the order they were added.
+     *
+     * @param from the client that sent the frame, null if the server sent it
+     * @param frame the whole frame with its length prefix, or its parts. Positions are not changed
+     */
+    void offer(NetworkUser from, ByteBuffer... frame) {
+        if (closed) {
+            return;
+        }
+        queue.add(new Delivery(from, unwrap(frame)));
+        Thread reader = thread;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * Takes the next frame without waiting, used to read the handshake before the thread is started.
+     *
+     * @return the frame positioned at its type byte, or null if there is none
+     */
+    ByteBuffer poll() {
+        Delivery delivery = queue.poll();
+        return delivery == null ? null : delivery.frame;
+    }
+
+    /**
+     * Starts the thread that handles the frames.
+     *
+     * @param name the name of the thread
+     * @param receiver the receiver of the frames
+     */
+    void start(String name, Receiver receiver) {
+        Thread reader = new Thread(() -> run(receiver), name);
+        reader.setDaemon(true);
+        thread = reader;
+        reader.start();
+    }
+
+    private void run(Receiver receiver) {
+        while (!closed) {
+            Delivery delivery = queue.poll();
+            if (delivery == null) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(NetworkHandler.INTERVAL));
+                continue;
+            }
+            try {
+                if (!receiver.receive(delivery.from, WireBuffer.wrap(delivery.frame))) {
+                    return;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops handling frames, anything still queued is dropped.
+     */
+    void close() {
+        closed = true;
+        queue.clear();
+        Thread reader = thread;
+        if (reader != null && reader != Thread.currentThread()) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * Turns a frame into a buffer positioned at its type byte, the way a socket reader returns it.
+     *
+     * @param parts the whole frame or its parts
+     * @return the frame without its length prefix
+     */
+    private ByteBuffer unwrap(ByteBuffer[] parts) {
+        if (zeroCopy && parts.length == 1) {
+            ByteBuffer frame = parts[0].duplicate();
+            frame.position(frame.position() + Frame.LENGTH_SIZE);
+            return frame.slice();
+        }
+        ByteBuffer frame = ByteBuffer.allocate(OutboundBatch.remaining(parts));
+        for (ByteBuffer part : parts) {
+            frame.put(part.duplicate());
+        }
+        frame.flip();
+        frame.position(Frame.LENGTH_SIZE);
+        return frame.slice();
+    }
+}
@@ -0,0 +1,161 @@
+package Networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import Engine.Enums.ServerCloseReason;
+
+/**
+ * The server side of a {@link LoopbackHub}. Works like {@link TCPServer} with every client in the same process.
+ * @author haotian
+ */
+class LoopbackServer implements ServerCommunicator {
+
+    private final NetworkHandler handler;
+    private final LoopbackHub hub;
+    private final LoopbackInbox inbox;
+    private volatile boolean allowJoining = true;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a LoopbackServer and makes it the server of the hub.
+     *
+     * @param handler the NetworkHandler object to be associated with the server
+     * @param hub the hub clients connect through
+     * @throws IOException if another server is already running on the hub
+     */
+    LoopbackServer(NetworkHandler handler, LoopbackHub hub) throws IOException {
+        this.handler = handler;
+        this.hub = hub;
+        this.inbox = new LoopbackInbox(hub.isZeroCopy());
+        hub.bind(this);
+    }
+
+    /**
+     * Starts handling the frames clients send.
+     */
+    @Override
+    public void Start() {
+        inbox.start("LoopbackServer", (client, frame) -> {
+            if (handler.getClient(client.getId()) == client) {
+                handler.handleClientFrame(this, client, frame);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Accepts a client, sends it the handshake and tells the other clients about it.
+     *
+     * @param peer the client's side of the connection
+     * @return the client
+     * @throws IOException if the server is closed or not allowing joining
+     */
+    synchronized NetworkUser accept(LoopbackClient peer) throws IOException {
+        if (closed || !allowJoining) {
+            throw new IOException("Server is not allowing joining");
+        }
+        NetworkUser client = new NetworkUser(peer, handler);
+        client.setName(handler.generateClientName());
+        client.send(Frame.handshake(client, handler.getClients()));
+        handler.addClient(client);
+        Packet data = new Packet();
+        data.addToPayLoad(client);
+        handler.getRemote("ClientAdded").fireAllClients(data);
+        return client;
+    }
+
+    /**
+     * Adds a frame a client sent to the frames to handle.
+     *
+     * @param client the client that sent it
+     * @param frame the frame or its parts
+     */
+    void receive(NetworkUser client, ByteBuffer... frame) {
+        inbox.offer(client, frame);
+    }
+
+    /**
+     * Sends a packet to the specified client, or queues it until the end of the tick while batching.
+     *
+     * @param packet the packet to be sent
+     */
+    @Override
+    public void SendPacket(Packet packet) {
+        NetworkUser client = packet.getClientID() == null ? null : handler.getClient(packet.getClientID());
+        if (client == null) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            ByteBuffer frame = Frame.data(packet, handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            handler.getMetrics().recordSent(packet.RemoteID, client.getId(), 1, frame.remaining());
+            Byte key = handler.getCoalescingKey(packet.RemoteID);
+            if (handler.isBatching()) {
+                client.queue(key, frame);
+            } else {
+                client.send(key, frame);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to send packet");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void SendPayload(NetworkUser client, byte remoteId, ByteBuffer payload) {
+        ByteBuffer header = Frame.dataHeader(client.getId(), remoteId, payload.remaining());
+        handler.getMetrics().recordSent(remoteId, client.getId(), 1, header.remaining() + payload.remaining());
+        try {
+            Byte key = handler.getCoalescingKey(remoteId);
+            if (handler.isBatching()) {
+                client.queue(key, header, payload);
+            } else {
+                client.send(key, header, payload);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to send packet");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void removeClient(NetworkUser client) {
+        if (client.isLocal) return;
+        try {
+            client.send(Frame.control(Frame.KICKED));
+        } catch (IOException e) {
+        }
+        handler.removeClient(client, true);
+    }
+
+    /**
+     * Tells every client the server is closing, removes them and stops handling frames.
+     */
+    @Override
+    synchronized public void Stop() {
+        closed = true;
+        for (NetworkUser client : handler.getClients()) {
+            if (client.isLocal) continue;
+            try {
+                client.send(Frame.control(Frame.SERVER_CLOSE));
+            } catch (IOException e) {
+            }
+            handler.removeClient(client);
+        }
+        hub.unbind(this);
+        inbox.close();
+        handler.handleServerClose(ServerCloseReason.closed);
+    }
+
+    @Override
+    public void AllowJoining() {
+        allowJoining = true;
+    }
+
+    @Override
+    public void DenyJoining() {
+        allowJoining = false;
+    }
+}
@@ -0,0 +1,316 @@
+package Networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs many matches on one port. Every match is a server {@link NetworkHandler} started with
+ * {@link NetworkHandler#StartServer(MatchRouter, int)}, and a client joins one by setting its
+ * {@link NetworkHandler#setMatchId match ID} before it connects.
+ * <p>
+ * A client that connects sends a JOIN with its match ID before anything else, the router then hands the
+ * connection to that match, which sends its handshake like a server on its own port would. The connections of
+ * every match are served by the router's one selector loop, and the datagrams of every match arrive on the
+ * router's one UDP socket: a client's HELLO names its match, after that its datagrams are passed to the match
+ * by their address. So the amount of threads does not grow with the amount of matches.
+ * @author haotian
+ */
+public final class MatchRouter {
+
+    /**
+     * A match the router hands clients to.
+     */
+    private static final class Match {
+        final TCPServer tcp;
+        final UDPServer udp;
+
+        Match(TCPServer tcp, UDPServer udp) {
+            this.tcp = tcp;
+            this.udp = udp;
+        }
+    }
+
+    /**
+     * A connection that has not sent its JOIN yet.
+     */
+    private static final class Pending {
+        final SocketChannel channel;
+        final FrameDecoder decoder = new FrameDecoder();
+        final long connectedAt = System.currentTimeMillis();
+
+        Pending(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final int port;
+    private final ConcurrentHashMap<Integer, Match> matches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketAddress, UDPServer> addresses = new ConcurrentHashMap<>();
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private DatagramSocket socket;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a MatchRouter.
+     *
+     * @param port the port the router accepts clients on, over TCP and UDP
+     */
+    public MatchRouter(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Binds the port and starts the selector loop and the UDP receiver.
+     *
+     * @throws IOException if the port can not be bound
+     */
+    public void Start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        socket = new DatagramSocket(port);
+
+        Thread loop = new Thread(this::run, "MatchRouter");
+        loop.setDaemon(true);
+        loop.start();
+        Thread receiver = new Thread(this::receive, "MatchRouterUDP");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Stops every match and closes the port.
+     */
+    public void Stop() {
+        closed = true;
+        for (Match match : matches.values()) {
+            match.tcp.Stop();
+            if (match.udp != null) {
+                match.udp.Stop();
+            }
+        }
+        matches.clear();
+        addresses.clear();
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+        socket.close();
+        selector.wakeup();
+    }
+
+    /**
+     * Gets the port the router accepts clients on.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets how many matches the router runs.
+     *
+     * @return the amount of matches
+     */
+    public int getMatchCount() {
+        return matches.size();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    DatagramSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Adds a match that clients can join.
+     *
+     * @param matchId the match ID
+     * @param tcp the match's server
+     * @param udp the match's UDP server, null if it does not use UDP
+     * @throws IOException if the router already runs a match with the ID or is stopped
+     */
+    void register(int matchId, TCPServer tcp, UDPServer udp) throws IOException {
+        if (closed) {
+            throw new IOException("Match router is stopped");
+        }
+        if (matches.putIfAbsent(matchId, new Match(tcp, udp)) != null) {
+            throw new IOException("Match " + matchId + " is already running");
+        }
+    }
+
+    /**
+     * Removes a match, its clients can not be found any more.
+     *
+     * @param matchId the match ID
+     */
+    void unregister(int matchId) {
+        Match match = matches.remove(matchId);
+        if (match != null && match.udp != null) {
+            addresses.values().removeIf(udp -> udp == match.udp);
+        }
+    }
+
+    /**
+     * The selector loop, accepts connections, reads their JOIN and then serves them for their match.
+     */
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select(NetworkHandler.HEARTBEAT_CHECK);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            if (closed) {
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Object attachment = key.attachment();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (attachment instanceof Pending) {
+                        readJoin(key, (Pending) attachment);
+                    } else if (attachment instanceof NetworkUser) {
+                        NetworkUser client = (NetworkUser) attachment;
+                        Match match = matches.get(client.getHandler().getMatchId());
+                        if (match == null) {
+                            client.getConnection().close();
+                            continue;
+                        }
+                        match.tcp.handle(key, client);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    if (attachment instanceof NetworkUser) {
+                        NetworkUser client = (NetworkUser) attachment;
+                        client.getHandler().removeClient(client);
+                    } else if (attachment instanceof Pending) {
+                        close(((Pending) attachment).channel);
+                    }
+                }
+            }
+            dropSilent();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Pending(channel));
+    }
+
+    /**
+     * Reads a connection's JOIN and hands it to its match, which registers it with the selector again as its client.
+     */
+    private void readJoin(SelectionKey key, Pending pending) throws IOException {
+        if (pending.decoder.read(pending.channel) < 0) {
+            throw new EOFException("Client closed the connection");
+        }
+        ByteBuffer frame = pending.decoder.next();
+        if (frame == null) {
+            return;
+        }
+        WireBuffer in = WireBuffer.wrap(frame);
+        if (in.remaining() < 6 || in.readByte() != Frame.CONTROL || in.readByte() != Frame.JOIN) {
+            throw new IOException("Expected a JOIN from the client");
+        }
+        Match match = matches.get(in.readInt());
+        if (match == null) {
+            pending.channel.write(Frame.control(Frame.FAIL));
+            close(pending.channel);
+            return;
+        }
+        key.attach(null);
+        match.tcp.accept(pending.channel);
+    }
+
+    /**
+     * Closes the connections that did not send their JOIN within {@link NetworkHandler#CLIENT_TIMEOUT}.
+     */
+    private void dropSilent() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Pending && now - ((Pending) attachment).connectedAt > NetworkHandler.CLIENT_TIMEOUT) {
+                close(((Pending) attachment).channel);
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Receives the datagrams of every match. A HELLO is passed to the match it names, every other datagram to
+     * the match its address registered with.
+     */
+    private void receive() {
+        byte[] buffer = new byte[1 << 16];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (packet.getLength() < 1) {
+                    continue;
+                }
+                if (buffer[packet.getOffset()] == Datagram.HELLO) {
+                    if (packet.getLength() < 11) {
+                        continue;
+                    }
+                    Match match = matches.get(ByteBuffer.wrap(buffer, packet.getOffset() + 7, 4).getInt());
+                    if (match != null && match.udp != null && match.udp.handlePacket(packet) != null) {
+                        addresses.put(packet.getSocketAddress(), match.udp);
+                    }
+                    continue;
+                }
+                UDPServer udp = addresses.get(packet.getSocketAddress());
+                if (udp != null) {
+                    udp.handlePacket(packet);
+                }
+            } catch (IOException | RuntimeException e) {
+                //e.printStackTrace();
+            }
+        }
+    }
+}
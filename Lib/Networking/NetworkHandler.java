@@ -3,6 +3,8 @@ package Networking;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 
 import Engine.Enums.ServerCloseReason;
 import Networking.NetworkHandler.NetworkRemote;
@@ -14,6 +16,11 @@ import javax.management.DescriptorKey;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -36,6 +43,34 @@ public class NetworkHandler {
     /** The timeout duration for client connection, in milliseconds. */
     protected static final int CLIENT_TIMEOUT = 8000; // 8 second
 
+    /** How often a client resends its UDP registration until the server answers, in milliseconds. */
+    protected static final int UDP_REGISTER_INTERVAL = 250;
+
+    /** How long a client tries to register over UDP before using TCP for every remote, in milliseconds. */
+    protected static final int UDP_REGISTER_TIMEOUT = 5000;
+
+    /** How often the heartbeat of every connection is checked, in milliseconds. */
+    protected static final int HEARTBEAT_CHECK = INTERVAL / 4;
+
+    /** How often unacknowledged datagrams on reliable channels are checked for a resend, in milliseconds. */
+    protected static final int RESEND_CHECK = 10;
+
+    /** Runs the heartbeats and resends of every connection in the process on one thread. */
+    private static final ScheduledExecutorService Scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "NetworkScheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The most bytes that may wait for a client's socket before the client is dropped. */
+    protected static final int MAX_BACKLOG_BYTES = 1 << 20; // 1 MiB
+
+    /** How long a client's socket may have bytes waiting without catching up before the client is dropped, in milliseconds. */
+    protected static final int MAX_BACKLOG_TIME = 5000; // 5 seconds
+
+    /** The match ID of a client that did not join a match on a {@link MatchRouter}. */
+    public static final int NO_MATCH = 0;
+
     /** The local client user. */
     protected NetworkUser localClient;
     
@@ -45,6 +80,12 @@ public class NetworkHandler {
     /** The target port for connections. */
     private int Port = 1080;
 
+    /** The match joined through a {@link MatchRouter}, or served on it. */
+    private int MatchId = NO_MATCH;
+
+    /** The router the server is running on, null if it has its own port. */
+    private MatchRouter Router;
+
     /** Flag indicating if this instance is a server. */
     private boolean IsServer = false;
     
@@ -57,9 +98,9 @@ public class NetworkHandler {
     /**
      * Flag indicating if UDP is supported.
      * <p>
-     * Note: UDP is not implemented for this project.
+     * When UDP can not be used, remotes created as UDP are sent over TCP instead.
      */
-    private boolean SupportsUDP = false;
+    private boolean SupportsUDP = true;
 
     /** The current user ID for the local client. */
     protected short CurrentUserID = Short.MIN_VALUE;
@@ -76,23 +117,37 @@ public class NetworkHandler {
     /** A map of remote identifiers to NetworkRemote objects using byte keys. */
     private HashMap<Byte, NetworkRemote> RemoteBytePair = new HashMap<Byte, NetworkRemote>();
 
-    /** The TCP client for network communications. */
-    private TCPClient tcpClient;
+    /** The codecs used to encode the payloads of each remote. */
+    private final CodecRegistry RemoteCodecs = new CodecRegistry();
+
+    /** The remotes whose newest packet replaces older unsent ones for a backlogged client. */
+    private final Set<Byte> CoalescingRemotes = ConcurrentHashMap.newKeySet();
+
+    /** Flag indicating if packets are queued until {@link #flush()} instead of being sent right away. */
+    private volatile boolean Batching = false;
+
+    /** The messages and bytes written since the last {@link #flush()}. */
+    private int PendingMessages = 0;
+    private int PendingBytes = 0;
+
+    /** The messages and bytes written during the last tick. */
+    private volatile int LastTickMessages = 0;
+    private volatile int LastTickBytes = 0;
+
+    /** The packets, bytes, codec time and round trip times of every remote and client. */
+    private final NetworkMetrics Metrics = new NetworkMetrics(this);
+
+    /** The connection to the server, over TCP or a {@link LoopbackHub}. */
+    private ClientCommunicator tcpClient;
     
-    /** The TCP server for network communications. */
-    private TCPServer tcpServer;
+    /** The server accepting clients over TCP or a {@link LoopbackHub}. */
+    private ServerCommunicator tcpServer;
 
-    /** The UDP client for network communications.
-     * <p>
-     * Note: UDP is not implemented for this project.
-     */
-    private Communicator udpClient;
+    /** The UDP client for network communications, null if UDP is not used. */
+    private UDPClient udpClient;
     
-    /** The UDP server for network communications.
-     * <p>
-     * Note: UDP is not implemented for this project.
-     */
-    private Communicator udpServer;
+    /** The UDP server for network communications, null if UDP is not used. */
+    private UDPServer udpServer;
 
     /** Signal for client addition events. */
     private Signal<NetworkUser> ClientAddedSignal = new Signal<NetworkUser>();
@@ -117,6 +172,19 @@ public class NetworkHandler {
      * @param remotes the remotes to create
      */
     public NetworkHandler(String[] remotes){
+        this(remotes, new String[0]);
+    }
+
+    /**
+     * Creates a NetworkHandler with the given remotes.
+     * UDP remotes are unreliable and unordered, stale packets are dropped, so they should only be used
+     * for data where the latest packet replaces every earlier one. Remotes that must arrive but should not
+     * wait behind every other TCP packet can be moved to a reliable UDP channel with {@link #setChannel(String, ChannelType, int)}.
+     *
+     * @param remotes the reliable remotes to create
+     * @param udpRemotes the UDP remotes to create
+     */
+    public NetworkHandler(String[] remotes, String[] udpRemotes){
         createRemote("ClientLeft");
         createRemote("ClientAdded");
         createRemote("CheckForTimeOut");
@@ -127,6 +195,227 @@ public class NetworkHandler {
                 break;
             }
         }
+        for (String remote : udpRemotes) {
+            if (CurrentRemoteID >= Byte.MAX_VALUE) {
+                break;
+            }
+            createRemote(remote, true);
+        }
+
+        NetworkHandler handler = this;
+        registerCodec("ClientAdded", new PayloadCodec<NetworkUser>() {
+            public void write(WireBuffer out, NetworkUser value) {
+                value.write(out);
+            }
+
+            public NetworkUser read(WireBuffer in) {
+                return NetworkUser.read(in, handler);
+            }
+        });
+    }
+
+    /**
+     * Runs a connection's heartbeat every {@link #HEARTBEAT_CHECK} on the scheduler shared by every connection.
+     * The heartbeat should only send a PING when none went out with the regular traffic for {@link #INTERVAL}.
+     *
+     * @param heartbeat the heartbeat, it must not block
+     * @return the scheduled heartbeat, cancelled when the connection closes
+     */
+    protected static ScheduledFuture<?> scheduleHeartbeat(Runnable heartbeat){
+        return schedule(heartbeat, HEARTBEAT_CHECK);
+    }
+
+    /**
+     * Runs a task periodically on the scheduler shared by every connection.
+     *
+     * @param task the task, it must not block
+     * @param period the time between two runs in milliseconds
+     * @return the scheduled task, cancelled when the connection closes
+     */
+    protected static ScheduledFuture<?> schedule(Runnable task, int period){
+        return Scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the codec used to encode the payloads of a remote.
+     * Both the server and the clients must register the same codec before any packets are sent.
+     *
+     * @param name the name of the remote
+     * @param codec the codec for the remote's payloads
+     * @throws IllegalArgumentException if there is no remote with the given name
+     */
+    public void registerCodec(String name, PayloadCodec<? extends Serializable> codec){
+        NetworkRemote remote = RemoteStringPair.get(name);
+        if (remote == null) {
+            throw new IllegalArgumentException("[NetworkHandler] No remote named " + name);
+        }
+        RemoteCodecs.register(remote.id, codec);
+    }
+
+    /**
+     * Sets whether a remote's packets are coalesced for clients that can not keep up.
+     * While a client's socket has bytes waiting only the newest packet of a coalescing remote is kept,
+     * and it is sent once the backlog is gone. Only for remotes whose packets replace the previous ones,
+     * such as snapshots that are encoded against a state the client acknowledged.
+     *
+     * @param name the name of the remote
+     * @param value whether the remote's packets are coalesced
+     * @throws IllegalArgumentException if there is no remote with the given name
+     */
+    public void setCoalescing(String name, boolean value){
+        NetworkRemote remote = RemoteStringPair.get(name);
+        if (remote == null) {
+            throw new IllegalArgumentException("[NetworkHandler] No remote named " + name);
+        }
+        if (value) {
+            CoalescingRemotes.add(remote.id);
+        } else {
+            CoalescingRemotes.remove(remote.id);
+        }
+    }
+
+    /**
+     * Sets how a remote's packets are delivered, on channel 0 for {@link ChannelType#RELIABLE_ORDERED}.
+     *
+     * @param name the name of the remote
+     * @param type how the packets are delivered
+     * @throws IllegalArgumentException if there is no remote with the given name
+     */
+    public void setChannel(String name, ChannelType type){
+        setChannel(name, type, 0);
+    }
+
+    /**
+     * Sets how a remote's packets are delivered.
+     * Packets of {@link ChannelType#RELIABLE_ORDERED} remotes arrive in the order they were sent with every remote
+     * on the same channel, remotes whose packets depend on each other must share a channel.
+     * Both the server and the clients must set the same channels before any packets are sent.
+     * When UDP can not be used the packets are sent over TCP instead.
+     *
+     * @param name the name of the remote
+     * @param type how the packets are delivered
+     * @param channel the reliable channel, from 0 to 255, only used for {@link ChannelType#RELIABLE_ORDERED}
+     * @throws IllegalArgumentException if there is no remote with the given name or the channel is out of range
+     */
+    public void setChannel(String name, ChannelType type, int channel){
+        NetworkRemote remote = RemoteStringPair.get(name);
+        if (remote == null) {
+            throw new IllegalArgumentException("[NetworkHandler] No remote named " + name);
+        }
+        if (channel < 0 || channel > 255) {
+            throw new IllegalArgumentException("[NetworkHandler] Invalid channel " + channel + " for " + name);
+        }
+        remote.setChannel(type, (byte) channel);
+    }
+
+    /**
+     * Gets the remote a frame is coalesced by.
+     *
+     * @param remoteId the remote the frame was sent with
+     * @return the remote ID if the remote is coalescing, null otherwise
+     */
+    protected Byte getCoalescingKey(byte remoteId){
+        return CoalescingRemotes.contains(remoteId) ? remoteId : null;
+    }
+
+    /**
+     * Sets whether packets are queued and sent once per tick by {@link #flush()}.
+     * Turning batching off sends anything still queued.
+     *
+     * @param value whether to batch outgoing packets
+     */
+    public void setBatching(boolean value){
+        Batching = value;
+        if (!value) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns whether outgoing packets are batched.
+     *
+     * @return true if packets are queued until {@link #flush()}
+     */
+    public boolean isBatching(){
+        return Batching;
+    }
+
+    /**
+     * Sends every queued packet as one frame per connection.
+     * Called at the end of every tick while batching is on.
+     */
+    public void flush(){
+        if (IsServer) {
+            for (NetworkUser client : Clients.values()) {
+                if (client.isLocal) continue;
+                try {
+                    client.flush();
+                } catch (IOException e) {
+                    System.out.println("Failed to flush packets to " + client.toString());
+                }
+            }
+        } else if (tcpClient != null) {
+            tcpClient.flush();
+        }
+        synchronized (this) {
+            LastTickMessages = PendingMessages;
+            LastTickBytes = PendingBytes;
+            PendingMessages = 0;
+            PendingBytes = 0;
+        }
+    }
+
+    /**
+     * Records a batch that was written to a connection.
+     *
+     * @param messages the amount of packets in the batch
+     * @param bytes the size of the batch in bytes
+     */
+    synchronized protected void recordFlush(int messages, int bytes){
+        PendingMessages += messages;
+        PendingBytes += bytes;
+    }
+
+    /**
+     * Gets the amount of packets sent during the last tick, summed over every connection.
+     *
+     * @return the amount of packets
+     */
+    public int getLastTickMessages(){
+        return LastTickMessages;
+    }
+
+    /**
+     * Gets the amount of bytes sent during the last tick, summed over every connection.
+     *
+     * @return the amount of bytes
+     */
+    public int getLastTickBytes(){
+        return LastTickBytes;
+    }
+
+    /**
+     * Gets the packets, bytes, codec time and round trip times of every remote and client.
+     *
+     * @return the metrics
+     */
+    public NetworkMetrics getMetrics(){
+        return Metrics;
+    }
+
+    /**
+     * Gets the codecs used to encode the payloads of each remote.
+     *
+     * @return the codec registry
+     */
+    protected CodecRegistry getCodecs(){
+        return RemoteCodecs;
     }
 
     /**
@@ -195,12 +484,11 @@ public class NetworkHandler {
      * @param isUDP whether the remote user supports UDP or not
      * @return the created remote user
      */
-    @Deprecated
     protected Remote createRemote(String name,boolean isUDP){
         if (RemoteStringPair.containsKey(name)) {
             return RemoteStringPair.get(name);
         }
-        NetworkRemote remote = new NetworkRemote(name,false,this);
+        NetworkRemote remote = new NetworkRemote(name,isUDP,this);
         RemoteStringPair.put(name, remote);
         RemoteBytePair.put(remote.id, remote);
         return remote;
@@ -261,6 +549,24 @@ public class NetworkHandler {
         return Port;
     }
 
+    /**
+     * Sets the match a client joins when the server is a {@link MatchRouter}.
+     *
+     * @param matchId the match ID, {@link #NO_MATCH} to connect to a server that runs a single session
+     */
+    public void setMatchId(int matchId){
+        MatchId = matchId;
+    }
+
+    /**
+     * Gets the match the client joins, or the match the server runs on a {@link MatchRouter}.
+     *
+     * @return the match ID, {@link #NO_MATCH} if there is no router
+     */
+    public int getMatchId(){
+        return MatchId;
+    }
+
     /**
      * Adds a client to the network.
      *
@@ -280,6 +586,7 @@ public class NetworkHandler {
         synchronized(Clients){ 
             ClientLeftSignal.fire(client);
             Clients.remove(client.getId());
+            Metrics.removeClient(client.getId());
             if (isServer()){
                 tcpServer.removeClient(client);
             }
@@ -296,6 +603,7 @@ public class NetworkHandler {
         synchronized(Clients){ 
             ClientLeftSignal.fire(client);
             Clients.remove(client.getId());
+            Metrics.removeClient(client.getId());
         }
     }
 
@@ -414,7 +722,57 @@ public class NetworkHandler {
         } catch (IOException e) {
             throw e;
         }
+        if (SupportsUDP) {
+            try {
+                udpServer = new UDPServer(this);
+                udpServer.Start();
+            } catch (IOException e) {
+                udpServer = null;
+                System.out.println("UDP is unavailable, using TCP for every remote: " + e.getMessage());
+            }
+        }
+
+    }
+
+    /**
+     * Starts the server on a {@link LoopbackHub} instead of a port, for clients in the same process.
+     * Every remote is sent through the hub, UDP is not used.
+     *
+     * @param hub the hub clients connect through
+     * @throws IOException if another server is already running on the hub
+     */
+    public void StartServer(LoopbackHub hub) throws IOException {
+        IsServer = true;
+        localClient =  new NetworkUser("Host", getNextId(),true,this);
+        addClient(localClient);
+        tcpServer = new LoopbackServer(this, hub);
+        tcpServer.Start();
+        Running = true;
+    }
 
+    /**
+     * Starts the server as one match on a {@link MatchRouter}, which accepts the clients joining the match on
+     * its port and hands them over. The router's UDP socket is shared by every match it runs.
+     *
+     * @param router the router, it must be started
+     * @param matchId the match ID clients join with
+     * @throws IOException if the router already runs a match with the ID
+     */
+    public void StartServer(MatchRouter router, int matchId) throws IOException {
+        if (matchId == NO_MATCH) {
+            throw new IllegalArgumentException("Invalid match ID " + matchId);
+        }
+        IsServer = true;
+        MatchId = matchId;
+        Router = router;
+        localClient =  new NetworkUser("Host", getNextId(),true,this);
+        addClient(localClient);
+        tcpServer = new TCPServer(this, router.getSelector());
+        udpServer = SupportsUDP ? new UDPServer(this, router.getSocket()) : null;
+        router.register(matchId, (TCPServer) tcpServer, udpServer);
+        tcpServer.Start();
+        if (udpServer != null) udpServer.Start();
+        Running = true;
     }
 
     /**
@@ -437,7 +795,9 @@ public class NetworkHandler {
     public void StopServer(){
         IsServer = false;
         Running = false;
+        if (Router != null) Router.unregister(MatchId);
         if (tcpServer != null) tcpServer.Stop();
+        if (udpServer != null) udpServer.Stop();
  
     }
 
@@ -456,13 +816,38 @@ public class NetworkHandler {
         } catch (IOException e) {
             throw e;
         }
+        if (SupportsUDP) {
+            try {
+                udpClient = new UDPClient(this);
+                udpClient.Start();
+            } catch (IOException e) {
+                udpClient = null;
+                System.out.println("UDP is unavailable, using TCP for every remote: " + e.getMessage());
+            }
+        }
+    }
+    /**
+     * Starts the client connected to the server running on a {@link LoopbackHub} in the same process.
+     * Every remote is sent through the hub, UDP is not used.
+     *
+     * @param hub the hub the server is running on
+     * @throws IOException if no server is running on the hub or it is not allowing joining
+     */
+    public void StartClient(LoopbackHub hub) throws IOException {
+        IsServer = false;
+        tcpClient = new LoopbackClient(this, hub);
+        tcpClient.Start();
+        Running = true;
     }
+
     /**
      * Stops the client by setting the Running flag to false and stopping the TCP client with the reason "userLeft".
      *
      */
     public void StopClient(){
         Running = false;
+        if (udpClient != null)
+            udpClient.Stop();
         if (tcpClient != null)
             tcpClient.Stop(ServerCloseReason.userLeft);
     }
@@ -476,6 +861,7 @@ public class NetworkHandler {
         if (HandleCrashFlag || IsServer)    return;
         HandleCrashFlag = true;
         Running = false;
+        if (udpClient != null) udpClient.Stop();
         ServerCloseSignal.fire(reason);
         System.out.println("ServerCrashed "+reason);
     }
@@ -489,11 +875,184 @@ public class NetworkHandler {
         return IsServer;
     }
 
+    /**
+     * Sets up a client from the handshake the server sent when it joined: adds the local client with the ID
+     * and name the server gave it, adds the clients already connected and starts adding the ones that join later.
+     *
+     * @param frame the handshake frame, positioned after its type byte
+     */
+    protected void handleHandshake(WireBuffer frame){
+        short id = frame.readShort();
+        String nameString = frame.readString();
+        int udpToken = frame.readInt();
+
+        NetworkUser localClient = new NetworkUser(nameString, id, true, this);
+        localClient.udpToken = udpToken;
+
+        addClient(localClient);
+        this.localClient = localClient;
+
+        int count = frame.readVarInt();
+        for (int i = 0; i < count; i++) {
+            NetworkUser client = NetworkUser.read(frame, this);
+            if (client.getId().equals(localClient.getId())) continue;
+            addClient(client);
+        }
+
+        getRemote("ClientAdded").onMessage.connect(callBack -> {
+            NetworkUser client = (NetworkUser) callBack.getPayLoad();
+            if (getClient(client.getId()) != null) {
+
+                return;
+            }
+            addClient(client);
+
+        });
+    }
+
+    /**
+     * Handles a frame a client received from the server. The frames inside a batch are handled in order.
+     *
+     * @param connection the connection the frame was received on
+     * @param frame the frame, positioned at its type byte
+     * @return false if the connection was stopped
+     * @throws ClassNotFoundException if the remote of a packet is not found
+     * @throws StreamCorruptedException if a payload can not be decoded
+     */
+    protected boolean handleServerFrame(ClientCommunicator connection, WireBuffer frame) throws ClassNotFoundException, StreamCorruptedException {
+        byte type = frame.readByte();
+        if (type == Frame.DATA) {
+            int size = Frame.LENGTH_SIZE + 1 + frame.remaining();
+            long start = System.nanoTime();
+            Packet packet = Frame.readPacket(frame, getCodecs());
+            getMetrics().recordDecode(packet.RemoteID, System.nanoTime() - start);
+            getMetrics().recordReceived(packet.RemoteID, getLocal().getId(), 1, size);
+            NetworkRemote  remote = getNetworkRemote(packet.RemoteID);
+          //  System.out.println("Had remote "+ remote);
+            if (remote == null) {
+                throw new ClassNotFoundException(String.format("Remote %s not found", packet.RemoteID));
+            }
+             
+            remote.onRetrieve(packet);
+
+        }else if (type == Frame.BATCH){
+            while (frame.remaining() > 0) {
+                WireBuffer inner = Frame.next(frame);
+                try {
+                    if (!handleServerFrame(connection, inner)) {
+                        return false;
+                    }
+                } catch (StreamCorruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }else if (type == Frame.CONTROL){
+            byte opcode = frame.readByte();
+            if (opcode == Frame.PING && frame.remaining() >= 8){
+                try {
+                    connection.SendFrame(Frame.ping(Frame.PONG, frame.readLong()));
+                } catch (IOException e) {
+                }
+            }else if (opcode == Frame.PONG && frame.remaining() >= 8){
+                getMetrics().recordRtt(getLocal().getId(), System.nanoTime() - frame.readLong());
+            }else if (opcode == Frame.SERVER_CLOSE){
+                connection.Stop(ServerCloseReason.closed);
+                return false;
+            }else if(opcode == Frame.KICKED){
+                connection.Stop(ServerCloseReason.userKicked);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a frame the server received from a client. The frames inside a batch are handled in order.
+     *
+     * @param server the server the client is connected to
+     * @param client the client that sent the frame
+     * @param frame the frame, positioned at its type byte
+     * @return false if the client left
+     * @throws StreamCorruptedException if a payload can not be decoded
+     */
+    protected boolean handleClientFrame(ServerCommunicator server, NetworkUser client, WireBuffer frame) throws StreamCorruptedException {
+        byte type = frame.readByte();
+        if (type == Frame.DATA) {
+            int size = Frame.LENGTH_SIZE + 1 + frame.remaining();
+            long start = System.nanoTime();
+            Packet packet = Frame.readPacket(frame, getCodecs());
+            getMetrics().recordDecode(packet.RemoteID, System.nanoTime() - start);
+            getMetrics().recordReceived(packet.RemoteID, client.getId(), 1, size);
+            NetworkRemote  remote = getNetworkRemote(packet.RemoteID);
+            if (remote == null) {
+                System.out.println(String.format("Remote %s not found", packet.RemoteID));
+                return true;
+            }
+            packet.clientID = client.getId();
+            remote.onRetrieve(packet);
+        }else if (type == Frame.BATCH){
+            while (frame.remaining() > 0) {
+                WireBuffer inner = Frame.next(frame);
+                try {
+                    if (!handleClientFrame(server, client, inner)) {
+                        return false;
+                    }
+                } catch (StreamCorruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }else if (type == Frame.CONTROL){
+            byte opcode = frame.readByte();
+            if (opcode == Frame.PING && frame.remaining() >= 8){
+                try {
+                    client.send(Frame.ping(Frame.PONG, frame.readLong()));
+                } catch (IOException e) {
+                }
+            }else if (opcode == Frame.PONG && frame.remaining() >= 8){
+                getMetrics().recordRtt(client.getId(), System.nanoTime() - frame.readLong());
+            }else if (opcode == Frame.LEAVING){
+                System.out.println("leaving "+ client.toString());
+                server.removeClient(client);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a fragment on a reliable channel and delivers the packets it completes, in order.
+     *
+     * @param reliable the reliable channels of the sender
+     * @param clientId the client ID in the datagram
+     * @param in the rest of the datagram, after the client ID
+     * @param datagram the received datagram, for metrics
+     * @throws IOException if the fragment or a payload is invalid
+     */
+    protected void receiveReliable(ReliableEndpoint reliable, short clientId, WireBuffer in, DatagramPacket datagram) throws IOException {
+        byte remoteId = datagram.getData()[datagram.getOffset() + 3];
+        long start = System.nanoTime();
+        List<Packet> received = reliable.receive(clientId, in, RemoteCodecs);
+        Metrics.recordDecode(remoteId, System.nanoTime() - start);
+        Metrics.recordReceived(remoteId, clientId, 0, datagram.getLength());
+        for (Packet packet : received) {
+            NetworkRemote remote = getNetworkRemote(packet.RemoteID);
+            if (remote == null){
+                continue;
+            }
+            Metrics.recordReceived(packet.RemoteID, clientId, 1, 0);
+            remote.onRetrieve(packet);
+        }
+    }
+
     protected class NetworkRemote extends Remote {
-        private boolean isUDP ;
+        private volatile ChannelType channelType;
+        private volatile byte channel = 0;
         private NetworkHandler handler;
         protected Byte id;
 
+        /** The sequence number of the last packet sent over UDP, used by receivers to drop stale packets. */
+        private final AtomicInteger sequence = new AtomicInteger();
+
         public NetworkRemote(String name, NetworkHandler handler) {
             this(name, false, handler);
         }
@@ -503,10 +1062,60 @@ public class NetworkHandler {
             this.handler = handler;
 
 
-            this.isUDP = isUDP;
+            this.channelType = isUDP ? ChannelType.UNRELIABLE : ChannelType.TCP;
             id = ++handler.CurrentRemoteID;
         }
 
+        /**
+         * Gets how the remote's packets are delivered.
+         *
+         * @return the channel type
+         */
+        public ChannelType getChannelType() {
+            return channelType;
+        }
+
+        /**
+         * Gets the reliable channel the remote's packets are ordered on.
+         *
+         * @return the channel
+         */
+        public byte getChannel() {
+            return channel;
+        }
+
+        private void setChannel(ChannelType type, byte channel) {
+            this.channel = channel;
+            this.channelType = type;
+        }
+
+
+        /**
+         * Gets the sequence number for the next packet sent over UDP.
+         *
+         * @return the sequence number
+         */
+        protected int nextSequence() {
+            return sequence.incrementAndGet();
+        }
+
+        /**
+         * Sends a packet to a client over UDP if this is a UDP remote and the client is registered,
+         * otherwise over TCP.
+         *
+         * @param client the client to send to
+         * @param toSend the packet with the remote and client ID attached
+         */
+        private void sendToClient(NetworkUser client, Packet toSend) {
+            ChannelType type = channelType;
+            if (type == ChannelType.UNRELIABLE && handler.udpServer != null && handler.udpServer.trySend(client, toSend)){
+                return;
+            }
+            if (type == ChannelType.RELIABLE_ORDERED && handler.udpServer != null && handler.udpServer.trySendReliable(client, toSend, channel)){
+                return;
+            }
+            handler.tcpServer.SendPacket(toSend);
+        }
 
     /**
      * Handles the retrieval of a packet and fires the onMessageSignal event.
@@ -531,16 +1140,21 @@ public class NetworkHandler {
                 System.out.println("Cannot call fireServer clients from server");
             }
             Packet toSend = data.attachInfo(id,localClient.getId());
-            if (!isUDP){
-                handler.tcpClient.SendPacket(toSend);
-            }else{
-
+            ChannelType type = channelType;
+            if (type == ChannelType.UNRELIABLE && handler.udpClient != null && handler.udpClient.trySend(toSend)){
+                return;
+            }
+            if (type == ChannelType.RELIABLE_ORDERED && handler.udpClient != null && handler.udpClient.trySendReliable(toSend, channel)){
+                return;
             }
+            handler.tcpClient.SendPacket(toSend);
 
         }
 
     /**
      * Sends a packet to a specific client.
+     * The host's own client has no connection, its packet is encoded and decoded in-process
+     * and delivered on the calling thread.
      *
      * @param  client  the client to send the packet to
      * @param  data    the packet to send
@@ -553,38 +1167,52 @@ public class NetworkHandler {
                 System.out.println("Cannot call fireClient from client");
             }
             if (client.isLocal){
-                System.out.println("Cannot fire local client");
-
+                deliverLocal(client, data);
+                return;
             }
             Packet toSend = data.attachInfo(id,client.getId());
-            if (!isUDP){
-                handler.tcpServer.SendPacket(toSend);
-            }else{
-
-            }
+            sendToClient(client, toSend);
 
         }
 
-    /**
+        /**
+         * Delivers a packet to the host's own client through the same payload encoding a connection uses,
+         * so it arrives as a copy exactly like a sent packet would.
+         *
+         * @param client the local client
+         * @param data   the packet to deliver
+         */
+        private void deliverLocal(NetworkUser client, Packet data) {
+            Packet received = new Packet(client.getId());
+            received.RemoteID = id;
+            try {
+                long start = System.nanoTime();
+                ByteBuffer payload = Frame.payload(id, data.getPayLoad(), handler.getCodecs());
+                handler.Metrics.recordEncode(id, System.nanoTime() - start);
+                start = System.nanoTime();
+                Frame.readPayload(received, WireBuffer.wrap(payload), handler.getCodecs());
+                handler.Metrics.recordDecode(id, System.nanoTime() - start);
+            } catch (IOException e) {
+                System.out.println("Failed to deliver packet for " + name + " to the local client");
+                e.printStackTrace();
+                return;
+            }
+            onRetrieve(received);
+        }
+
+    /**
      * Sends a packet to all connected clients, except the local client.
      *
      * @param  data  the packet to send to the clients
      */
-        synchronized  public void fireAllClients(Packet data) {
+        public void fireAllClients(Packet data) {
             if (!handler.Running){
                 return;
             }
             if (!handler.IsServer){
                 System.out.println("Cannot call fireAllClients from client");
             }
-            for(NetworkUser client : handler.Clients.values()){
-                if (client.isLocal) continue;
-                Packet toSend = data.attachInfo(id,client.getId());
-                if (!isUDP){
-
-                    handler.tcpServer.SendPacket(toSend);
-                }
-            }
+            broadcast(handler.Clients.values(), null, data);
         }
 
         /**
@@ -601,14 +1229,56 @@ public class NetworkHandler {
                 System.out.println("Cannot call fireAllClients from client");
                 
             }
-            for(NetworkUser client : handler.Clients.values()){
+            broadcast(handler.Clients.values(), exclude, data);
+        }
+
+        /**
+         * Sends a message to the given Clients, the payload is only encoded once.
+         *
+         * @param clients the clients to send to
+         * @param data    the packet to send
+         */
+        public void fireClients(Collection<NetworkUser> clients, Packet data) {
+            if (!handler.Running || clients.isEmpty()){
+                return;
+            }
+            if (!handler.IsServer){
+                System.out.println("Cannot call fireClients from client");
+            }
+            broadcast(clients, null, data);
+        }
+
+        /**
+         * Encodes the payload once and sends the same bytes to every remote client,
+         * each behind its own frame header.
+         *
+         * @param clients the clients to send to
+         * @param exclude the client to skip, or null
+         * @param data    the packet to send
+         */
+        private void broadcast(Collection<NetworkUser> clients, NetworkUser exclude, Packet data) {
+            ByteBuffer payload;
+            try {
+                long start = System.nanoTime();
+                payload = Frame.payload(id, data.getPayLoad(), handler.getCodecs());
+                handler.Metrics.recordEncode(id, System.nanoTime() - start);
+            } catch (IOException e) {
+                System.out.println("Failed to encode packet for " + name);
+                e.printStackTrace();
+                return;
+            }
+            ChannelType type = channelType;
+            int sequence = type == ChannelType.UNRELIABLE ? nextSequence() : 0;
+            for(NetworkUser client : clients){
                 if (client.isLocal) continue;
                 if (client == exclude) continue;
-                Packet toSend = data.attachInfo(id,client.getId());
-                if (!isUDP){
-
-                    handler.tcpServer.SendPacket(toSend);
+                if (type == ChannelType.UNRELIABLE && handler.udpServer != null && handler.udpServer.trySend(client, id, sequence, payload)){
+                    continue;
                 }
+                if (type == ChannelType.RELIABLE_ORDERED && handler.udpServer != null && handler.udpServer.trySendReliable(client, id, channel, payload)){
+                    continue;
+                }
+                handler.tcpServer.SendPayload(client, id, payload);
             }
         }
         
@@ -616,36 +1286,12 @@ public class NetworkHandler {
 }
 
 
-/**
- * The Communicator interface represents an object that can communicate with a network.
- * It provides methods to start and stop the communication, as well as send packets.
- */
-interface Communicator {
-    /**
-     * Starts the communication.
-     */
-    public void Start();
-
-    /**
-     * Stops the communication.
-     */
-    public void Stop();
-
-    /**
-     * Sends a packet over the network.
-     * 
-     * @param packet the packet to be sent
-     */
-    public void SendPacket(Packet packet);
-}
-
-
 /**
  * The TCPClient class implements the Communicator interface and represents a TCP client for network communication.
  * It establishes a connection with a server, sends and receives packets, and handles server close events.
  * @author haotian
  */
-class TCPClient implements Communicator{
+class TCPClient implements ClientCommunicator{
     
     /**
      * The handler for managing network operations.
@@ -658,14 +1304,14 @@ class TCPClient implements Communicator{
     private Socket server;
 
     /**
-     * The input stream for receiving data from the server.
+     * The input stream for receiving frames from the server.
      */
-    private final ObjectInputStream in;
+    private final DataInputStream in;
 
     /**
-     * The output stream for sending data to the server.
+     * The output stream for sending frames to the server.
      */
-    private final ObjectOutputStream out;
+    private final OutputStream out;
 
     /**
      * Indicates whether the connection is closed.
@@ -678,10 +1324,25 @@ class TCPClient implements Communicator{
     private List<CompletableFuture> threads = new ArrayList<>();
 
     /**
-     * The timestamp of the last ping to the server.
+     * The time anything was last received from the server.
      */
     private Long lastPing = System.currentTimeMillis();
 
+    /**
+     * The time a PING was last sent to the server.
+     */
+    private long lastPingSent = 0;
+
+    /**
+     * The heartbeat running on the shared scheduler.
+     */
+    private ScheduledFuture<?> heartbeat;
+
+    /**
+     * The frames waiting to be sent at the end of the tick.
+     */
+    private final OutboundBatch batch = new OutboundBatch();
+
 
     /**
      * Constructs a TCPClient object with the specified NetworkHandler.
@@ -696,56 +1357,28 @@ class TCPClient implements Communicator{
             SocketAddress address = new InetSocketAddress(handler.getTargetIpAddress(), handler.getPort());
             server.connect(address, NetworkHandler.CLIENT_TIMEOUT);
 
-            out = new ObjectOutputStream(server.getOutputStream());
+            server.setTcpNoDelay(true);
+            out = new BufferedOutputStream(server.getOutputStream());
 
-            in = new ObjectInputStream(server.getInputStream());
+            in = new DataInputStream(new BufferedInputStream(server.getInputStream()));
 
-            String message = null;
-            try {
-                message = (String) in.readObject();
-            } catch (ClassNotFoundException | IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+            if (handler.getMatchId() != NetworkHandler.NO_MATCH) {
+                Frame.write(out, Frame.join(handler.getMatchId()));
+                out.flush();
             }
-            if (message.equals("FAIL")) {
+
+            WireBuffer frame = WireBuffer.wrap(Frame.read(in));
+            byte type = frame.readByte();
+            if (type == Frame.CONTROL && frame.readByte() == Frame.FAIL) {
                 Stop();
                 throw new IOException("Server is not allowing joining");
             }
-
-            String uuidString = message;
-            String nameString = null;
-            try {
-                nameString = (String) in.readObject();
-            } catch (ClassNotFoundException | IOException e) {
-                e.printStackTrace();
-            }
-
-            NetworkUser localClient = new NetworkUser(nameString, Short.parseShort(uuidString), true, handler);
-
-            handler.addClient(localClient);
-            handler.localClient = localClient;
-
-
-            try {
-                Object[] players = (Object[]) in.readObject();
-                for (Object player : players) {
-                    NetworkUser client = (NetworkUser) player;
-                    if (client.getId().equals(localClient.getId())) continue;
-                    handler.addClient((NetworkUser) player);
-                }
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+            if (type != Frame.HANDSHAKE) {
+                Stop();
+                throw new IOException("Expected a handshake from the server but got frame type " + type);
             }
 
-            handler.getRemote("ClientAdded").onMessage.connect(callBack -> {
-                NetworkUser client = (NetworkUser) callBack.getPayLoad();
-                if (handler.getClient(client.getId()) != null) {
-
-                    return;
-                }
-                handler.addClient(client);
-
-            });
+            handler.handleHandshake(frame);
         }
 
             
@@ -761,51 +1394,44 @@ class TCPClient implements Communicator{
     }
 
     /**
-     * Starts pinging the server at regular intervals.
-     * This method sends a "PING" message to the server and checks for a response.
-     * If the server does not respond within the specified timeout, the connection is closed.
-     * The pinging process continues until the connection is closed or an error occurs.
+     * Starts the heartbeat on the shared scheduler. A PING is sent when none went out with a batch for
+     * {@link NetworkHandler#INTERVAL}, and the connection is closed if the server sent nothing for {@link NetworkHandler#TIMEOUT}.
      */
     public void StartPinging(){
-        threads.add(CompletableFuture.runAsync(() -> {
-                while (!closed) {
-                    synchronized (this){
-                    try {
-                        //System.out.println("PingServer");
-                        out.writeObject("PING");
-                        out.flush();
-                    } catch (IOException  e) {
-                        Stop(ServerCloseReason.crashed);
-
-                        return;
-                    }
-                 }
-                
-                    if (System.currentTimeMillis() - lastPing > NetworkHandler.TIMEOUT) {
-                        Stop(ServerCloseReason.timeOut);
-                        return;
-                    }
+        heartbeat = NetworkHandler.scheduleHeartbeat(this::heartbeat);
+    }
 
-                    try {
-                        Thread.sleep(NetworkHandler.INTERVAL);
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
-    }));
+    /**
+     * Checks the connection and pings the server if it is due. Runs on the shared scheduler.
+     */
+    synchronized private void heartbeat(){
+        if (closed) {
+            return;
+        }
+        if (System.currentTimeMillis() - lastPing > NetworkHandler.TIMEOUT) {
+            Stop(ServerCloseReason.timeOut);
+            return;
+        }
+        if (System.currentTimeMillis() - lastPingSent < NetworkHandler.INTERVAL) {
+            return;
+        }
+        lastPingSent = System.currentTimeMillis();
+        try {
+            send(Frame.ping(Frame.PING, System.nanoTime()));
+        } catch (IOException e) {
+            Stop(ServerCloseReason.crashed);
+        }
     }
     
 /**
  * Starts listening for incoming packets on the network.
  * This method runs asynchronously in a separate thread and continuously listens for incoming packets until the network connection is closed.
- * When a packet is received, it checks if it is a valid packet or a control message.
- * If it is a valid packet, it retrieves the corresponding network remote and calls its 'onRetrieve' method.
+ * When a frame is received, it checks if it is a data frame or a control message.
+ * If it is a data frame, it decodes the packet, retrieves the corresponding network remote and calls its 'onRetrieve' method.
  * If it is a control message indicating server closure or user kick, it stops the network connection accordingly.
  * 
  * @throws ClassNotFoundException if the remote corresponding to the received packet is not found
- * @throws OptionalDataException if there is an issue with the data being read
- * @throws StreamCorruptedException if there is an issue with the stream being read
+ * @throws StreamCorruptedException if a payload can not be decoded, the frame is skipped
  * @throws IOException if there is an issue with the input/output operations
  */
    synchronized private void startListening(){
@@ -813,34 +1439,11 @@ class TCPClient implements Communicator{
             while (!closed) {
                 try {
                    // System.out.println("receieving packet");
-                    Object obj = in.readObject();
-                 //   System.out.println("Received: "+ obj.toString());
+                    WireBuffer frame = WireBuffer.wrap(Frame.read(in));
                     lastPing = System.currentTimeMillis();
-                    if (obj instanceof Packet) {
-                        Packet packet = (Packet) obj;
-                        NetworkRemote  remote = handler.getNetworkRemote(packet.RemoteID);
-                      //  System.out.println("Had remote "+ remote);
-                        if (remote == null) {
-                            throw new ClassNotFoundException(String.format("Remote %s not found", packet.RemoteID));
-                        }
-                         
-                        remote.onRetrieve(packet);
-
-                    }else if (obj instanceof String){
-
-                        String message = (String)obj;
-                        if (message.equals("SERVER_CLOSE")){
-                            Stop(ServerCloseReason.closed);
-                            return;
-                        }else if(message.equals("KICKED")){
-                            Stop(ServerCloseReason.userKicked);
-                            return;
-                        }
+                    if (!handler.handleServerFrame(this, frame)) {
+                        return;
                     }
-                } catch (OptionalDataException ode) {
-                    System.out.println(ode.eof + " " + ode.getLocalizedMessage()+ " " + ode.length);
-                    ode.printStackTrace();
-                    //Stop(ServerCloseReason.crashed);
                 } catch (StreamCorruptedException e) {
                     e.printStackTrace();
                 //    Stop(ServerCloseReason.crashed);
@@ -857,22 +1460,88 @@ class TCPClient implements Communicator{
             }
         }));
     }
+
     /**
-     * Sends a packet over the network.
+     * Sends a packet over the network, or queues it until {@link #flush()} while batching.
      *
      * @param packet the packet to be sent
      */
     @Override
-    synchronized public void SendPacket(Packet packet) {
+    public void SendPacket(Packet packet) {
         try {
-            out.writeObject(packet);
-            out.flush();
+            long start = System.nanoTime();
+            ByteBuffer frame = Frame.data(packet, handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            handler.getMetrics().recordSent(packet.RemoteID, packet.getClientID(), 1, frame.remaining());
+            if (handler.isBatching()) {
+                queue(frame);
+            } else {
+                send(frame);
+            }
         } catch (IOException e) {
             Stop(ServerCloseReason.crashed);
             e.printStackTrace();
           
         }
     }
+
+    /**
+     * Writes a frame to the server.
+     *
+     * @param frame the encoded frame
+     * @throws IOException if the connection is closed
+     */
+    synchronized private void send(ByteBuffer frame) throws IOException {
+        Frame.write(out, frame);
+    }
+
+    @Override
+    public void SendFrame(ByteBuffer frame) throws IOException {
+        send(frame);
+    }
+
+    /**
+     * Queues a frame to be sent with the rest of the tick's frames.
+     *
+     * @param frame the encoded frame
+     * @throws IOException if the batch is sent early and the connection is closed
+     */
+    synchronized private void queue(ByteBuffer frame) throws IOException {
+        if (batch.add(frame)) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Sends every queued frame as a single batch frame.
+     */
+    synchronized public void flush() {
+        try {
+            writeBatch();
+        } catch (IOException e) {
+            Stop(ServerCloseReason.crashed);
+        }
+    }
+
+    /**
+     * Sends every queued frame as a single batch frame, with a PING in it if one is due so the heartbeat
+     * goes out with the regular traffic.
+     *
+     * @throws IOException if the connection is closed
+     */
+    synchronized private void writeBatch() throws IOException {
+        if (batch.size() > 0 && System.currentTimeMillis() - lastPingSent >= NetworkHandler.INTERVAL) {
+            lastPingSent = System.currentTimeMillis();
+            batch.add(Frame.ping(Frame.PING, System.nanoTime()));
+        }
+        int messages = batch.size();
+        ByteBuffer frame = batch.drain();
+        if (frame == null || closed) {
+            return;
+        }
+        handler.recordFlush(messages, frame.remaining());
+        Frame.write(out, frame);
+    }
     /**
      * Stops the network handler.
      * This method stops the network handler and closes the server with an unknown reason.
@@ -889,10 +1558,12 @@ class TCPClient implements Communicator{
     synchronized public void Stop(ServerCloseReason level) {
         
         closed = true;
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
 
         try{
-            out.writeObject("LEAVING");
-            out.flush();
+            if (out != null) send(Frame.control(Frame.LEAVING));
         }catch (IOException e){
 
         }
@@ -907,8 +1578,8 @@ class TCPClient implements Communicator{
 
         try {
             server.close();
-            in.close();
-            out.close();
+            if (in != null) in.close();
+            if (out != null) out.close();
         } catch (IOException e) {
             //e.printStackTrace();
         }
@@ -917,459 +1588,200 @@ class TCPClient implements Communicator{
 }
 
 /**
- * The TCPServer class implements the Communicator interface and represents a TCP server.
- * It handles incoming client connections, pinging clients, and sending/receiving packets.
+ * The UDPClient class implements the Communicator interface and represents the client side of the UDP channel.
+ * It registers with the server and falls back to TCP if the server never answers, for example when UDP is blocked.
  * @author haotian
  */
-class TCPServer implements Communicator{
-   
-    /**
-     * The handler for managing network operations.
-     */
-    private NetworkHandler handler;
+class UDPClient implements Communicator{
 
-    /**
-     * The server socket for accepting client connections.
-     */
-    private ServerSocket server;
-
-    /**
-     * A list of CompletableFuture objects representing ongoing network operations.
-     */
-    private List<CompletableFuture> threads;
-
-    /**
-     * Indicates whether joining is allowed.
-     */
-    private boolean allowJoining;
-
-    /**
-     * Indicates whether the connection is closed.
-     */
-    private boolean closed = false;
-
-    /**
-     * Constructs a NetworkManager.
-     */
-    public TCPServer() {
-        this.threads = new ArrayList<>();
-    }
+    private DatagramSocket socket;
+    private NetworkHandler handler;
+    private DatagramReassembler reassembler = new DatagramReassembler();
+    private volatile ReliableEndpoint reliable;
+    private ScheduledFuture<?> resender;
+    private ScheduledFuture<?> registration;
+    private ByteBuffer hello;
+    private long registerStart;
+    private volatile boolean registered = false;
+    private volatile boolean closed = false;
 
     /**
-     * Sets the network handler for managing network operations.
-     * 
-     * @param handler the network handler
+     * Constructs a UDPClient connected to the handler's UDP address.
+     *
+     * @param handler the NetworkHandler object to associate with the client
+     * @throws IOException if the socket can not be opened
      */
-    public void setHandler(NetworkHandler handler) {
+    public UDPClient(NetworkHandler handler) throws IOException{
         this.handler = handler;
+        socket = new DatagramSocket();
+        socket.connect(new InetSocketAddress(handler.getUdpIpAddress(), handler.getUdpPort()));
     }
 
     /**
-     * Starts the server with the specified server socket.
-     * 
-     * @param server the server socket
-     */
-    public void startServer(ServerSocket server) {
-        this.server = server;
-    }
-
-    /**
-     * Closes the network connection and sets the closed flag to true.
-     */
-    public void close() {
-        closed = true;
-        // Add logic to close the server socket and clean up resources
-    }
-
-    /**
-     * Allows or disallows new clients to join.
-     * 
-     * @param allow whether to allow joining
+     * Starts listening for datagrams and registering with the server.
      */
-    public void setAllowJoining(boolean allow) {
-        this.allowJoining = allow;
-    }
-
-    /**
-     * Adds a CompletableFuture to the list of ongoing network operations.
-     * 
-     * @param future the CompletableFuture to add
-     */
-    public void addThread(CompletableFuture future) {
-        threads.add(future);
-    }
-
-    /**
-     * Returns whether the connection is closed.
-     * 
-     * @return true if the connection is closed, false otherwise
-     */
-    public boolean isClosed() {
-        return closed;
-    }
+    public void Start(){
+        reliable = new ReliableEndpoint(handler.getLocal().getId());
+        Thread listener = new Thread(this::listen, "UDPClient");
+        listener.setDaemon(true);
+        listener.start();
 
-    /**
-     * Returns whether joining is allowed.
-     * 
-     * @return true if joining is allowed, false otherwise
-     */
-    public boolean isAllowJoining() {
-        return allowJoining;
+        NetworkUser local = handler.getLocal();
+        hello = Datagram.hello(local.getId(), local.udpToken, handler.getMatchId());
+        registerStart = System.currentTimeMillis();
+        sendHello();
+        registration = NetworkHandler.schedule(this::register, NetworkHandler.UDP_REGISTER_INTERVAL);
+        resender = NetworkHandler.schedule(() -> handler.getMetrics().recordResent(handler.getLocal().getId(), reliable.resend()), NetworkHandler.RESEND_CHECK);
     }
 
     /**
-     * Returns the list of ongoing network operations.
-     * 
-     * @return the list of CompletableFuture objects
+     * Resends the HELLO every {@link NetworkHandler#UDP_REGISTER_INTERVAL} on the shared scheduler, until the server
+     * answers or {@link NetworkHandler#UDP_REGISTER_TIMEOUT} passes.
      */
-    public List<CompletableFuture> getThreads() {
-        return threads;
+    private void register(){
+        if (registered || closed){
+            registration.cancel(false);
+            return;
+        }
+        if (System.currentTimeMillis() - registerStart > NetworkHandler.UDP_REGISTER_TIMEOUT){
+            System.out.println("UDP registration timed out, using TCP for every remote");
+            registration.cancel(false);
+            return;
+        }
+        sendHello();
     }
 
-
-
-    /**
-     * Constructs a TCPServer object with the specified NetworkHandler.
-     * 
-     * @param handler the NetworkHandler object to be associated with the server
-     * @throws IOException if an I/O error occurs when opening the server socket
-     * @throws IllegalArgumentException if the port parameter is outside the specified range of valid port values
-     */
-    public TCPServer(NetworkHandler handler) throws IOException, IllegalArgumentException{
-        server = new ServerSocket(handler.getPort());
-        this.handler = handler;
-        allowJoining = true;
-        threads = new ArrayList<>();
-
-    }   
-
-    /**
-     * Starts the network handler by listening for clients and initiating pinging.
-     */
-    public void Start(){
-        listenForClient();
-        StartPinging();
+    private void sendHello(){
+        try {
+            socket.send(new DatagramPacket(hello.array(), hello.remaining()));
+        } catch (IOException e) {
+            //e.printStackTrace();
+        }
     }
 
-    /**
-     * Starts pinging the connected clients to check their availability.
-     * If a client does not respond within the specified timeout period,
-     * it will be removed from the list of clients.
-     */
-    private void StartPinging(){
-        threads.add(CompletableFuture.runAsync(() -> {
-            while (!closed) {
-               // System.out.println("pingAll");
-
-                synchronized (this){
-                    for (NetworkUser client : handler.getClients()) {
-                        if (client.isLocal) continue;
-                        if (System.currentTimeMillis() - client.lastPing > NetworkHandler.TIMEOUT) {
-
-                            removeClient(client);
-                        }
-    
-                        try {
-                            client.getOut().writeObject("PING");
-                            client.getOut().flush();
-                        } catch (IOException e) {
-                           // e.printStackTrace();
-                           System.out.println( "Failed to ping client |" + client.toString() );
-                           removeClient(client);
-                           continue;
-                        }
+    private void listen(){
+        byte[] buffer = new byte[1 << 16];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                WireBuffer in = WireBuffer.wrap(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+                byte type = in.readByte();
+                if (type == Datagram.ACK){
+                    if (!registered){
+                        reliable.setSink(datagram -> socket.send(new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(), datagram.remaining())));
+                        registered = true;
+                    }
+                } else if (type == Datagram.RELIABLE){
+                    handler.receiveReliable(reliable, in.readShort(), in, packet);
+                } else if (type == Datagram.RELIABLE_ACK){
+                    handler.getMetrics().recordResent(in.readShort(), reliable.acknowledge(in));
+                } else if (type == Datagram.DATA){
+                    short clientId = in.readShort();
+                    byte remoteId = in.readByte();
+                    NetworkRemote remote = handler.getNetworkRemote(remoteId);
+                    if (remote == null){
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    Packet received = reassembler.accept(clientId, remoteId, in, handler.getCodecs());
+                    handler.getMetrics().recordDecode(remoteId, System.nanoTime() - start);
+                    handler.getMetrics().recordReceived(remoteId, clientId, received == null ? 0 : 1, packet.getLength());
+                    if (received != null){
+                        remote.onRetrieve(received);
                     }
                 }
-              
-                try {
-                    Thread.sleep(NetworkHandler.INTERVAL);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }));
-    }
-    /**
-     * Listens for incoming client connections and handles them accordingly.
-     * This method runs asynchronously in a separate thread.
-     */
-    private void listenForClient(){
-        threads.add(CompletableFuture.runAsync(() -> {
-            while (!closed) {
-                try {
-                    Socket client = server.accept();
-                   synchronized(this){
-                        NetworkUser clientObj = new NetworkUser(client,handler);
-                        ObjectOutputStream out = clientObj.getOut();
-                        if(!allowJoining){
-                            out.writeObject("FAIL");
-                            out.flush();
-                            client.close();
-                            continue; 
-                        }
-                        String Name = handler.generateClientName();
-                        clientObj.setName(Name);
-
-                        out.writeObject(clientObj.getId().toString());
-                        out.writeObject(Name);
-                        out.writeObject(handler.getClients());
-                        out.flush();
-                        handler.addClient(clientObj);
-                        Remote remote = handler.getRemote("ClientAdded");
-                        Packet data = new Packet();
-                        data.addToPayLoad(clientObj);
-                        remote.fireAllClients(data);
-                        startListening(clientObj);
-                   }
-                     
-                 
-                } catch (IOException e) {
-                  //  e.printStackTrace();
-                    continue;
-                }
+            } catch (IOException | RuntimeException e) {
+                //e.printStackTrace();
+                continue;
             }
-        }));
-    }
-
-/**
- * Removes a client from the network.
- * If the client is local, the method returns without performing any action.
- * Otherwise, it sends a "KICKED" message to the client and closes the connection.
- * 
- * @param client The client to be removed from the network.
- */
-   synchronized public void removeClient(NetworkUser client){
-        if (client.isLocal) return;
-        try{
-            client.getOut().writeObject("KICKED");
-            client.getOut().flush();
-        }catch (IOException e){
-
         }
-        try {
-            client.getConnection().close();
-            client.getIn().close();
-            client.getOut().close();
-        } catch (IOException e) {
-        }
-        
-        handler.removeClient(client,true);
     }
 
     /**
-     * Starts listening for incoming network messages from the specified client.
-     * 
-     * @param client The NetworkUser object representing the client.
+     * Returns whether the server has answered the registration.
+     *
+     * @return true if UDP remotes are sent over UDP
      */
-    synchronized  public void startListening(NetworkUser client){
-        ObjectInputStream  in = client.getIn();
-        threads.add(CompletableFuture.runAsync(() -> {
-            while (!closed) {
-                try {
-                    Object obj = in.readObject();
-                    client.lastPing = System.currentTimeMillis();
-                    if (obj instanceof Packet) {
-                        Packet packet = (Packet) obj;
-                        NetworkRemote  remote = handler.getNetworkRemote(packet.RemoteID);
-                        if (remote == null) {
-                            System.out.println(String.format("Remote %s not found", packet.RemoteID));
-                            continue;
-                        }
-                        packet.clientID = client.getId();
-                        remote.onRetrieve(packet);
-                    }else if (obj instanceof String){
-                        String message = (String)obj;
-                        if (message.equals("LEAVING")){
-                            System.out.println("leaving "+ client.toString());
-                            removeClient(client);
-                            return;
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return;
-                } catch (ClassNotFoundException e) {
-
-                    e.printStackTrace();
-                }
-            }
-        }));
+    public boolean isRegistered(){
+        return registered;
     }
 
     /**
-     * Sends a packet to the specified client.
-     * 
-     * @param packet the packet to be sent
+     * Sends a packet to the server.
+     *
+     * @param packet the packet with the remote and client ID attached
+     * @return false if the packet has to be sent over TCP instead
      */
-    @Override
-    synchronized public void SendPacket(Packet packet) {
-        NetworkUser client = packet.getClientID() == null ? null : handler.getClient(packet.getClientID());
-        //System.out.println(client);
-        if (client == null){
-            return;
+    public boolean trySend(Packet packet){
+        if (!registered || closed){
+            return false;
         }
         try {
-            //System.out.println("Sent Packet" + packet.toString());
-            client.getOut().writeObject(packet);
-            client.getOut().flush();
-        } catch (IOException e) {
-            if (e instanceof SocketException && e.getMessage().equals("Socket is closed")) {
-            return;
+            long start = System.nanoTime();
+            ByteBuffer[] fragments = Datagram.encode(packet, handler.getNetworkRemote(packet.RemoteID).nextSequence(), handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            if (fragments == null){
+                return false;
             }
-          System.out.println("Failed to send packet");
-            e.printStackTrace();
+            for (ByteBuffer fragment : fragments) {
+                socket.send(new DatagramPacket(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining()));
+            }
+            handler.getMetrics().recordSent(packet.RemoteID, packet.getClientID(), 1, OutboundBatch.remaining(fragments));
+            return true;
+        } catch (IOException e) {
+            return false;
         }
-        
     }
+
     /**
-     * Stops the network handler and closes all client connections.
-     * This method sets the 'closed' flag to true, sends a "SERVER_CLOSE" message to all clients,
-     * and closes the connections, input streams, and output streams of each client.
-     * Finally, it closes the server socket and cancels all running threads.
-     */
-    @Override
-    synchronized public void Stop() {
-        closed = true;
-        for (NetworkUser client : handler.getClients()) {
-            if (client.isLocal) continue;
-            try{
-                client.getOut().writeObject("SERVER_CLOSE");
-                client.getOut().flush();
-            }catch (IOException e){
-                //e.printStackTrace();
-            }
-            try {
-                client.getConnection().close();
-                client.getIn().close();
-                client.getOut().close();
-            } catch (IOException e) {
-                //e.printStackTrace();
-            }
-            
-            handler.removeClient(client);
+     * Sends a packet to the server on a reliable channel.
+     * Once a channel is sent over UDP it never falls back to TCP, so a packet that can not be sent is dropped.
+     *
+     * @param packet the packet with the remote and client ID attached
+     * @param channel the reliable channel
+     * @return false if the channel is sent over TCP
+     */
+    public boolean trySendReliable(Packet packet, byte channel){
+        ReliableEndpoint reliable = this.reliable;
+        if (closed || reliable == null || !reliable.route(channel)){
+            return false;
         }
         try {
-            server.close();
-        } catch (Exception e) {
-            //e.printStackTrace();
-        }
-          
-        try{
-            for (CompletableFuture thread : threads) {
-                thread.cancel(true);
-            }
-        } catch (Exception e) {
-            //e.printStackTrace();
+            long start = System.nanoTime();
+            ByteBuffer payload = Frame.payload(packet.RemoteID, packet.getPayLoad(), handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            handler.getMetrics().recordSent(packet.RemoteID, packet.getClientID(), 1, reliable.send(packet.RemoteID, channel, payload));
+        } catch (IOException e) {
+            System.out.println("[UDPClient] Failed to send packet for remote " + packet.RemoteID + ": " + e.getMessage());
         }
-        handler.handleServerClose(ServerCloseReason.closed);
-        
+        return true;
     }
 
     /**
-     * Allows joining of new connections.
+     * Sends a packet to the server if registered.
+     *
+     * @param packet the packet to be sent
      */
-    public void AllowJoining(){
-        allowJoining = true;
+    public void SendPacket(Packet packet){
+        trySend(packet);
     }
 
     /**
-     * Sets the allowJoining flag to false, denying any further joining requests.
+     * Stops listening and closes the socket.
      */
-    public void DenyJoining(){
-        allowJoining = false;
-    }
-
-}
-
-
-
-
-
-/**
- * The UDPServer class implements the Communicator interface and represents a UDP server for network communication.
- * It listens for incoming packets, handles them, and sends packets to clients. This was just a prototype.
- * 
- * 
- * @deprecated
- * @author haotian
- 
- */
-class UDPServer implements Communicator{
-
-    private DatagramSocket socket;
-    private NetworkHandler handler;
-    private List<CompletableFuture> threads;
-    private boolean allowJoining = true;
-    private boolean closed = false;
-
-
-
-    public UDPServer(NetworkHandler handler) throws IOException{
-        this.handler = handler;
-        socket = new DatagramSocket(handler.getPort());
-        threads = new ArrayList<CompletableFuture>();
-
-    }
-
-    public void Start(){
-        threads.add(CompletableFuture.runAsync(this::listenForClients));
-    }
-
-
-    private void listenForClients(){
-        byte[] buffer = new byte[2^16];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        
-        while(!closed){
-            try {
-                socket.receive(packet);
-                handlePacket(packet);
-            } catch (IOException e) {
-                //e.printStackTrace();
-                continue;
-            }
-        }
-    }
-
-    synchronized public void SendPacket(Packet packet) {
-        NetworkUser client = packet.getClientID() == null ? null : handler.getClient(packet.getClientID());
-        if (client == null){
+    public void Stop(){
+        if (closed){
             return;
         }
-        InetAddress address = client.getConnection().getInetAddress();
-        try {
-            ByteArrayOutputStream byteStream  = new ByteArrayOutputStream();
-            ObjectOutputStream outputSteam = new ObjectOutputStream(byteStream);
-            outputSteam.writeObject(packet);
-            outputSteam.flush();
-            byte[] data = byteStream.toByteArray();
-            outputSteam.close();
-            DatagramPacket packetToSend = new DatagramPacket(data, data.length, address, handler.getUdpPort());
-            socket.send(packetToSend);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void handlePacket(DatagramPacket packet){
-        try {
-            ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(packet.getData()));
-            Packet packetReceived = (Packet) inputStream.readObject();
-            NetworkRemote  remote = handler.getNetworkRemote(packetReceived.RemoteID);
-            remote.onRetrieve(packetReceived);
-            inputStream.close();
-        } catch (ClassNotFoundException | IOException e) {
-            //e.printStackTrace();
-        }
-    }
-
-
-    public void Stop(){
         closed = true;
-        for(CompletableFuture thread : threads){
-            thread.cancel(true);
+        if (resender != null){
+            resender.cancel(false);
+        }
+        if (registration != null){
+            registration.cancel(false);
         }
         socket.close();
     }
 }
-
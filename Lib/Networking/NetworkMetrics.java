@@ -0,0 +1,466 @@
+package Networking;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a {@link NetworkHandler} sends and receives, per remote and per client, so a lag spike can be
+ * traced to the simulation, serialization or the socket. Packets and bytes are counted in both directions,
+ * encode and decode time per remote, and a smoothed round trip time per client is measured with PING and PONG.
+ * For every client the frames waiting to be sent, the time its socket spent backlogged and the packets that were
+ * coalesced while it was backlogged are tracked, and the clients dropped for falling too far behind are counted.
+ * Datagrams resent on reliable UDP channels are counted per client.
+ * Counters only grow, readers take the difference between two reads to get rates.
+ * On a client the connection to the host is counted under the local client's ID.
+ * The counters can be read with {@link #getRemote(String)} and {@link #getClient(Short)}, or written
+ * as CSV or JSON with {@link #toCsv()}, {@link #toJson()} and {@link #startDump(String, long, Format)}.
+ * @author haotian
+ */
+public class NetworkMetrics {
+
+    /**
+     * The formats the metrics can be dumped as.
+     */
+    public enum Format {
+        /** One row per remote and per client, with a header when the file is new. */
+        CSV,
+        /** One JSON object per line. */
+        JSON
+    }
+
+    /**
+     * The weight of a new round trip in the smoothed round trip time, the same as TCP uses.
+     */
+    public static final double RTT_GAIN = 0.125;
+
+    /**
+     * The header of the rows written by {@link #toCsv()}.
+     */
+    public static final String CSV_HEADER = "time,scope,name,packets_out,bytes_out,packets_in,bytes_in,encode_us,decode_us,queued_frames,pending_bytes,rtt_ms,backlog_ms,coalesced,resent";
+
+    /**
+     * The counters of one remote or one client.
+     */
+    public static final class Counters {
+        private final LongAdder packetsOut = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder packetsIn = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder encodeNanos = new LongAdder();
+        private final LongAdder decodeNanos = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAdder resent = new LongAdder();
+        private double rtt = -1;
+
+        public long getPacketsOut() {
+            return packetsOut.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getPacketsIn() {
+            return packetsIn.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        /**
+         * Gets the time spent encoding payloads, only counted per remote.
+         *
+         * @return the time in nanoseconds
+         */
+        public long getEncodeNanos() {
+            return encodeNanos.sum();
+        }
+
+        /**
+         * Gets the time spent decoding payloads, only counted per remote.
+         *
+         * @return the time in nanoseconds
+         */
+        public long getDecodeNanos() {
+            return decodeNanos.sum();
+        }
+
+        /**
+         * Gets the packets that were replaced by a newer one before they were sent, only counted per client.
+         *
+         * @return the amount of packets
+         */
+        public long getCoalesced() {
+            return coalesced.sum();
+        }
+
+        /**
+         * Gets the datagrams that were resent because they were not acknowledged in time, only counted per client.
+         *
+         * @return the amount of datagrams
+         */
+        public long getResent() {
+            return resent.sum();
+        }
+
+        /**
+         * Gets the smoothed round trip time, only measured per client.
+         *
+         * @return the round trip time in milliseconds, or -1 if no PONG arrived yet
+         */
+        public synchronized double getRtt() {
+            return rtt;
+        }
+
+        private synchronized void addRtt(double millis) {
+            rtt = rtt < 0 ? millis : rtt + (millis - rtt) * RTT_GAIN;
+        }
+    }
+
+    private final NetworkHandler handler;
+    private final ConcurrentHashMap<Byte, Counters> remotes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Short, Counters> clients = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    private Thread dumper;
+
+    /**
+     * Constructs the metrics of a network handler.
+     *
+     * @param handler the handler whose remotes and clients are counted
+     */
+    protected NetworkMetrics(NetworkHandler handler) {
+        this.handler = handler;
+    }
+
+    private Counters remote(byte remoteId) {
+        return remotes.computeIfAbsent(remoteId, id -> new Counters());
+    }
+
+    private Counters client(Short clientId) {
+        return clients.computeIfAbsent(clientId, id -> new Counters());
+    }
+
+    /**
+     * Records packets that were sent.
+     *
+     * @param remoteId the remote they were sent with
+     * @param clientId the client they were sent to, or null
+     * @param packets the amount of packets
+     * @param bytes their size on the wire
+     */
+    protected void recordSent(byte remoteId, Short clientId, int packets, int bytes) {
+        Counters counters = remote(remoteId);
+        counters.packetsOut.add(packets);
+        counters.bytesOut.add(bytes);
+        if (clientId != null) {
+            counters = client(clientId);
+            counters.packetsOut.add(packets);
+            counters.bytesOut.add(bytes);
+        }
+    }
+
+    /**
+     * Records packets that were received.
+     *
+     * @param remoteId the remote they were received with
+     * @param clientId the client they were received from, or null
+     * @param packets the amount of whole packets, 0 for a fragment
+     * @param bytes their size on the wire
+     */
+    protected void recordReceived(byte remoteId, Short clientId, int packets, int bytes) {
+        Counters counters = remote(remoteId);
+        counters.packetsIn.add(packets);
+        counters.bytesIn.add(bytes);
+        if (clientId != null) {
+            counters = client(clientId);
+            counters.packetsIn.add(packets);
+            counters.bytesIn.add(bytes);
+        }
+    }
+
+    /**
+     * Records the time spent encoding a payload.
+     *
+     * @param remoteId the remote the payload was encoded for
+     * @param nanos the time in nanoseconds
+     */
+    protected void recordEncode(byte remoteId, long nanos) {
+        remote(remoteId).encodeNanos.add(nanos);
+    }
+
+    /**
+     * Records the time spent decoding a payload.
+     *
+     * @param remoteId the remote the payload was decoded for
+     * @param nanos the time in nanoseconds
+     */
+    protected void recordDecode(byte remoteId, long nanos) {
+        remote(remoteId).decodeNanos.add(nanos);
+    }
+
+    /**
+     * Records a round trip measured with PING and PONG.
+     *
+     * @param clientId the client the round trip was measured with
+     * @param nanos the round trip time in nanoseconds
+     */
+    protected void recordRtt(Short clientId, long nanos) {
+        if (clientId != null && nanos >= 0) {
+            client(clientId).addRtt(nanos / 1e6);
+        }
+    }
+
+    /**
+     * Records a packet that was replaced by a newer one while the client was backlogged.
+     *
+     * @param clientId the client the packet was for
+     */
+    protected void recordCoalesced(Short clientId) {
+        if (clientId != null) {
+            client(clientId).coalesced.increment();
+        }
+    }
+
+    /**
+     * Records datagrams that were resent on a reliable channel.
+     *
+     * @param clientId the client the datagrams were for
+     * @param datagrams the amount of datagrams
+     */
+    protected void recordResent(Short clientId, int datagrams) {
+        if (clientId != null && datagrams > 0) {
+            client(clientId).resent.add(datagrams);
+        }
+    }
+
+    /**
+     * Records a client that was dropped because it could not keep up.
+     */
+    protected void recordDropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Gets the amount of clients dropped because they could not keep up.
+     *
+     * @return the amount of clients
+     */
+    public long getDroppedClients() {
+        return dropped.sum();
+    }
+
+    /**
+     * Forgets a client that left.
+     *
+     * @param clientId the client's ID
+     */
+    protected void removeClient(Short clientId) {
+        clients.remove(clientId);
+    }
+
+    /**
+     * Gets the counters of a remote.
+     *
+     * @param name the remote's name
+     * @return the counters, or null if nothing was sent or received with it
+     */
+    public Counters getRemote(String name) {
+        Remote remote = handler.getRemote(name);
+        return remote instanceof NetworkHandler.NetworkRemote ? remotes.get(((NetworkHandler.NetworkRemote) remote).id) : null;
+    }
+
+    /**
+     * Gets the counters of a client.
+     *
+     * @param clientId the client's ID
+     * @return the counters, or null if nothing was sent to or received from it
+     */
+    public Counters getClient(Short clientId) {
+        return clients.get(clientId);
+    }
+
+    /**
+     * Gets the smoothed round trip time to a client.
+     *
+     * @param clientId the client's ID
+     * @return the round trip time in milliseconds, or -1 if it was not measured yet
+     */
+    public double getRtt(Short clientId) {
+        Counters counters = clients.get(clientId);
+        return counters == null ? -1 : counters.getRtt();
+    }
+
+    /**
+     * Gets the frames queued for a client until the end of the tick.
+     *
+     * @param clientId the client's ID
+     * @return the amount of frames, 0 if the client is not connected
+     */
+    public int getQueuedFrames(Short clientId) {
+        NetworkUser user = handler.getClient(clientId);
+        return user == null ? 0 : user.getQueuedFrames();
+    }
+
+    /**
+     * Gets the bytes waiting for a client's socket.
+     *
+     * @param clientId the client's ID
+     * @return the amount of bytes, 0 if the client is not connected
+     */
+    public int getPendingBytes(Short clientId) {
+        NetworkUser user = handler.getClient(clientId);
+        return user == null ? 0 : user.getPendingBytes();
+    }
+
+    /**
+     * Gets the total time a client's socket had bytes waiting.
+     *
+     * @param clientId the client's ID
+     * @return the time in milliseconds, 0 if the client is not connected
+     */
+    public long getBacklogMillis(Short clientId) {
+        NetworkUser user = handler.getClient(clientId);
+        return user == null ? 0 : user.getBacklogNanos() / 1000000;
+    }
+
+    /**
+     * Writes every counter as CSV rows, without the {@link #CSV_HEADER}.
+     *
+     * @return one row per remote and per client
+     */
+    public String toCsv() {
+        long time = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Counters> entry : remoteNames().entrySet()) {
+            appendCsv(sb, time, "remote", entry.getKey(), entry.getValue(), 0, 0, 0);
+        }
+        for (Map.Entry<Short, Counters> entry : new TreeMap<>(clients).entrySet()) {
+            appendCsv(sb, time, "client", String.valueOf(entry.getKey()), entry.getValue(),
+                    getQueuedFrames(entry.getKey()), getPendingBytes(entry.getKey()), getBacklogMillis(entry.getKey()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes every counter as a single line JSON object.
+     *
+     * @return the JSON object
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"time\":").append(System.currentTimeMillis()).append(",\"remotes\":{");
+        boolean first = true;
+        for (Map.Entry<String, Counters> entry : remoteNames().entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(escape(entry.getKey())).append("\":");
+            appendJson(sb, entry.getValue());
+            sb.append('}');
+        }
+        sb.append("},\"clients\":{");
+        first = true;
+        for (Map.Entry<Short, Counters> entry : new TreeMap<>(clients).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":");
+            appendJson(sb, entry.getValue());
+            sb.append(",\"queuedFrames\":").append(getQueuedFrames(entry.getKey()))
+              .append(",\"pendingBytes\":").append(getPendingBytes(entry.getKey()))
+              .append(",\"rttMillis\":").append(String.format(Locale.ROOT, "%.2f", entry.getValue().getRtt()))
+              .append(",\"backlogMillis\":").append(getBacklogMillis(entry.getKey()))
+              .append(",\"coalesced\":").append(entry.getValue().getCoalesced())
+              .append(",\"resent\":").append(entry.getValue().getResent())
+              .append('}');
+        }
+        sb.append("},\"droppedClients\":").append(getDroppedClients()).append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Appends the metrics to a file every interval until {@link #stopDump()} is called.
+     *
+     * @param path the file to append to
+     * @param intervalMillis the time between two dumps in milliseconds
+     * @param format the format to write
+     * @throws IllegalArgumentException if the interval is not positive
+     */
+    public synchronized void startDump(String path, long intervalMillis, Format format) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("[NetworkMetrics] interval must be positive but was " + intervalMillis);
+        }
+        stopDump();
+        Thread thread = new Thread(() -> {
+            boolean header = format == Format.CSV && new java.io.File(path).length() == 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                try (Writer out = new FileWriter(path, true)) {
+                    if (header) {
+                        out.write(CSV_HEADER + "\n");
+                        header = false;
+                    }
+                    out.write(format == Format.CSV ? toCsv() : toJson() + "\n");
+                } catch (IOException e) {
+                    System.out.println("Failed to write network metrics to " + path + ": " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "NetworkMetrics");
+        thread.setDaemon(true);
+        thread.start();
+        dumper = thread;
+    }
+
+    /**
+     * Stops dumping the metrics to a file.
+     */
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.interrupt();
+            dumper = null;
+        }
+    }
+
+    private TreeMap<String, Counters> remoteNames() {
+        TreeMap<String, Counters> named = new TreeMap<>();
+        for (Map.Entry<Byte, Counters> entry : remotes.entrySet()) {
+            NetworkHandler.NetworkRemote remote = handler.getNetworkRemote(entry.getKey());
+            named.put(remote == null ? String.valueOf(entry.getKey()) : remote.name, entry.getValue());
+        }
+        return named;
+    }
+
+    private static void appendCsv(StringBuilder sb, long time, String scope, String name, Counters c, int queued, int pending, long backlog) {
+        sb.append(time).append(',').append(scope).append(',').append(name.replace(",", " ")).append(',')
+          .append(c.getPacketsOut()).append(',').append(c.getBytesOut()).append(',')
+          .append(c.getPacketsIn()).append(',').append(c.getBytesIn()).append(',')
+          .append(c.getEncodeNanos() / 1000).append(',').append(c.getDecodeNanos() / 1000).append(',')
+          .append(queued).append(',').append(pending).append(',')
+          .append(String.format(Locale.ROOT, "%.2f", c.getRtt())).append(',')
+          .append(backlog).append(',').append(c.getCoalesced()).append(',')
+          .append(c.getResent()).append('\n');
+    }
+
+    private static void appendJson(StringBuilder sb, Counters c) {
+        sb.append("{\"packetsOut\":").append(c.getPacketsOut())
+          .append(",\"bytesOut\":").append(c.getBytesOut())
+          .append(",\"packetsIn\":").append(c.getPacketsIn())
+          .append(",\"bytesIn\":").append(c.getBytesIn())
+          .append(",\"encodeMicros\":").append(c.getEncodeNanos() / 1000)
+          .append(",\"decodeMicros\":").append(c.getDecodeNanos() / 1000);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -1,6 +1,5 @@
 package Networking;
 
-import java.net.Socket;
 import java.util.UUID;
 
 
@@ -10,7 +9,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
 
 /**
  * A class that represents a client in the network. This class is used to store information such as the client's ID, name, and IP address.
@@ -37,7 +41,12 @@ public class NetworkUser implements Serializable {
     /**
      * The TCP connection used to send data to the client.
      */
-    private Socket tcpConnection;
+    private ChannelConnection tcpConnection;
+
+    /**
+     * The in-process client frames are handed to instead of a TCP connection, null for TCP clients.
+     */
+    private transient LoopbackClient loopback;
 
     /**
      * The client's ID.
@@ -50,19 +59,60 @@ public class NetworkUser implements Serializable {
     private String name;
 
     /**
-     * The object input stream used to read data from the client.
+     * The handler used to handle the client's data.
      */
-    private ObjectInputStream in;
+    private NetworkHandler handler;
 
     /**
-     * The object output stream used to write data to the client.
+     * Generates the tokens clients use to register their UDP address.
      */
-    private ObjectOutputStream out;
-    
+    private static final SecureRandom TOKENS = new SecureRandom();
+
     /**
-     * The handler used to handle the client's data.
+     * The token the client has to send to register its UDP address.
      */
-    private NetworkHandler handler;
+    protected int udpToken;
+
+    /**
+     * The address the client registered for UDP, null if UDP remotes are sent over TCP.
+     */
+    protected volatile transient SocketAddress udpAddress;
+
+    /**
+     * Drops stale datagrams and puts fragments back together.
+     */
+    private final transient DatagramReassembler reassembler = new DatagramReassembler();
+
+    /**
+     * The reliable channels to the client, created when the first reliable packet is sent or received.
+     */
+    private transient ReliableEndpoint reliable;
+
+    /**
+     * The frames waiting to be sent at the end of the tick.
+     */
+    private final transient OutboundBatch batch = new OutboundBatch();
+
+    /**
+     * The newest frame of every coalescing remote, held back while the client is backlogged.
+     * A newer frame of the same remote replaces the held one instead of adding to the backlog.
+     */
+    private final transient LinkedHashMap<Byte, ByteBuffer[]> held = new LinkedHashMap<>();
+
+    /**
+     * True once the client was dropped for falling too far behind.
+     */
+    private volatile transient boolean dropped = false;
+
+    /**
+     * How many bytes per second the host's replication may send the client by default.
+     */
+    public static final int DEFAULT_SEND_RATE = 64 * 1024;
+
+    /**
+     * How many bytes per second the host's replication may send the client.
+     */
+    private volatile int sendRate = DEFAULT_SEND_RATE;
 
     /**
      * The time when the client last sent a ping.
@@ -70,7 +120,7 @@ public class NetworkUser implements Serializable {
     protected Long lastPing = System.currentTimeMillis();
 
     /**
-     * The time when the server last sent a ping to the client.
+     * The time when the server last sent a ping to the client, alone or in a batch.
      */
     protected Long lastServerPing = System.currentTimeMillis();
 
@@ -119,23 +169,39 @@ public class NetworkUser implements Serializable {
 
     /**
      * Constructor for the NetworkUser class.
-     * @param connection The TCP connection used to send data to the client.
+     * @param connection The non-blocking TCP connection used to send data to the client.
      * @param handler The handler used to handle the client's data.
      */
-    protected NetworkUser(Socket connection, NetworkHandler handler) {
+    protected NetworkUser(SocketChannel connection, NetworkHandler handler) {
         this.isLocal = false;
-        this.ipAddress = connection.getInetAddress().getHostAddress();
-        this.tcpConnection = connection;
+        this.tcpConnection = new ChannelConnection(connection);
+        this.handler = handler;
         this.id = handler.getNextId(); 
+        this.udpToken = TOKENS.nextInt();
 
         try {
-            in = new ObjectInputStream(connection.getInputStream());
-            out = new ObjectOutputStream(connection.getOutputStream());
+            SocketAddress address = connection.getRemoteAddress();
+            if (address instanceof InetSocketAddress) {
+                this.ipAddress = ((InetSocketAddress) address).getAddress().getHostAddress();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Constructor for a client connected through a {@link LoopbackHub}.
+     * @param loopback The in-process client frames are handed to.
+     * @param handler The handler used to handle the client's data.
+     */
+    protected NetworkUser(LoopbackClient loopback, NetworkHandler handler) {
+        this.isLocal = false;
+        this.loopback = loopback;
+        this.handler = handler;
+        this.id = handler.getNextId();
+        this.udpToken = TOKENS.nextInt();
+    }
+
     /**
      * Set the client's name.
      * @param name The client's new name.
@@ -172,29 +238,227 @@ public class NetworkUser implements Serializable {
 
     
     /**
-     * Get the object input stream used to read data from the client.
-     * @return The object input stream used to read data from the client.
+     * Get the reassembler for the datagrams received from the client.
+     * @return The client's reassembler.
      */
-    protected ObjectInputStream getIn()  {
-        return in;
+    protected DatagramReassembler getReassembler() {
+        return reassembler;
     }
-    
+
+    /**
+     * Get the reliable channels to the client.
+     * @return The client's reliable channels.
+     */
+    protected synchronized ReliableEndpoint getReliable() {
+        if (reliable == null) {
+            reliable = new ReliableEndpoint(id);
+        }
+        return reliable;
+    }
+
+    /**
+     * Get the reliable channels to the client if any were used.
+     * @return The client's reliable channels, or null.
+     */
+    protected synchronized ReliableEndpoint getReliableIfUsed() {
+        return reliable;
+    }
+
+    /**
+     * Write a frame to the client. Frames from different threads are never interleaved.
+     * @param frame The encoded frame, or its header followed by a shared payload.
+     * @throws IOException If there is an error writing the frame.
+     */
+    protected void send(ByteBuffer... frame) throws IOException {
+        send(null, frame);
+    }
+
+    /**
+     * Write a frame to the client, or hold it back if it belongs to a coalescing remote and the client is backlogged.
+     * A held frame is replaced by the next frame of the same remote and sent by {@link #flush()} once the backlog is gone.
+     * @param remoteId The coalescing remote the frame was sent with, or null if the frame must be sent.
+     * @param frame The encoded frame, or its header followed by a shared payload.
+     * @throws IOException If there is an error writing the frame.
+     */
+    protected void send(Byte remoteId, ByteBuffer... frame) throws IOException {
+        synchronized (this) {
+            if (!hold(remoteId, frame)) {
+                write(frame);
+            }
+        }
+        checkBacklog();
+    }
+
+    /**
+     * Queue a frame to be sent with the rest of the tick's frames.
+     * The batch is sent early if it gets too large.
+     * @param frame The encoded frame, or its header followed by a shared payload.
+     * @throws IOException If the batch is sent early and there is an error writing it.
+     */
+    protected void queue(ByteBuffer... frame) throws IOException {
+        queue(null, frame);
+    }
+
+    /**
+     * Queue a frame to be sent with the rest of the tick's frames, or hold it back if it belongs to a coalescing
+     * remote and the client is backlogged. The batch is sent early if it gets too large.
+     * @param remoteId The coalescing remote the frame was sent with, or null if the frame must be sent.
+     * @param frame The encoded frame, or its header followed by a shared payload.
+     * @throws IOException If the batch is sent early and there is an error writing it.
+     */
+    protected void queue(Byte remoteId, ByteBuffer... frame) throws IOException {
+        synchronized (this) {
+            if (hold(remoteId, frame) || !batch.add(frame)) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Send every queued frame as a single batch frame. Held frames are added to it if the backlog is gone,
+     * and a PING if one is due, so the heartbeat does not need a frame of its own while data is flowing.
+     * @return The amount of frames sent.
+     * @throws IOException If there is an error writing the batch.
+     */
+    protected int flush() throws IOException {
+        int messages;
+        synchronized (this) {
+            if (!held.isEmpty() && getPendingBytes() == 0) {
+                for (ByteBuffer[] frame : held.values()) {
+                    batch.add(frame);
+                }
+                held.clear();
+            }
+            if (batch.size() > 0 && System.currentTimeMillis() - lastServerPing >= NetworkHandler.INTERVAL) {
+                lastServerPing = System.currentTimeMillis();
+                batch.add(Frame.ping(Frame.PING, System.nanoTime()));
+            }
+            messages = batch.size();
+            ByteBuffer frame = batch.drain();
+            if (frame == null) {
+                return 0;
+            }
+            handler.recordFlush(messages, frame.remaining());
+            write(frame);
+        }
+        checkBacklog();
+        return messages;
+    }
+
+    /**
+     * Write a frame to the client's TCP connection, or hand it to the client if it is connected through a {@link LoopbackHub}.
+     * @param frame The encoded frame or its parts.
+     * @throws IOException If the connection is closed.
+     */
+    private void write(ByteBuffer... frame) throws IOException {
+        if (loopback != null) {
+            loopback.deliver(frame);
+        } else {
+            tcpConnection.write(frame);
+        }
+    }
+
+    /**
+     * Hold a frame of a coalescing remote back while the client is backlogged, replacing the one held before.
+     * Must be called while synchronized on the client.
+     * @param remoteId The coalescing remote, or null.
+     * @param frame The frame.
+     * @return True if the frame was held back and must not be sent now.
+     */
+    private boolean hold(Byte remoteId, ByteBuffer[] frame) {
+        if (remoteId == null) {
+            return false;
+        }
+        if (getPendingBytes() == 0) {
+            held.remove(remoteId);
+            return false;
+        }
+        if (held.put(remoteId, frame) != null) {
+            handler.getMetrics().recordCoalesced(id);
+        }
+        return true;
+    }
+
+    /**
+     * Drop the client if its backlog has grown past {@link NetworkHandler#MAX_BACKLOG_BYTES} or has not emptied
+     * for {@link NetworkHandler#MAX_BACKLOG_TIME}, so one slow client can not hold on to the host's memory.
+     * Must not be called while synchronized on the client.
+     */
+    protected void checkBacklog() {
+        if (tcpConnection == null || dropped) {
+            return;
+        }
+        int pending = tcpConnection.getPendingBytes();
+        long millis = tcpConnection.getBacklogNanos() / 1000000;
+        if (pending <= NetworkHandler.MAX_BACKLOG_BYTES && millis <= NetworkHandler.MAX_BACKLOG_TIME) {
+            return;
+        }
+        dropped = true;
+        System.out.println("[NetworkUser] Dropping " + toString() + ", " + pending + " bytes backlogged for " + millis + " ms");
+        handler.getMetrics().recordDropped();
+        handler.removeClient(this);
+    }
+
     /**
-     * Get the object output stream used to write data to the client.
-     * @return The object output stream used to write data to the client.
+     * Set how many bytes per second the host's replication may send the client.
+     * @param bytesPerSecond The send rate, at least 1.
      */
-    protected ObjectOutputStream getOut() {
-            return out;
+    public void setSendRate(int bytesPerSecond) {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("[NetworkUser] send rate must be at least 1 but was " + bytesPerSecond);
+        }
+        sendRate = bytesPerSecond;
+    }
+
+    /**
+     * Get how many bytes per second the host's replication may send the client.
+     * @return The send rate in bytes per second.
+     */
+    public int getSendRate() {
+        return sendRate;
+    }
+
+    /**
+     * Get the amount of bytes waiting for the client's TCP socket, which grows when the client can not keep up.
+     * @return The queued bytes, 0 if the client has no TCP connection.
+     */
+    public int getPendingBytes() {
+        return tcpConnection == null ? 0 : tcpConnection.getPendingBytes();
+    }
+
+    /**
+     * Get the total time the client's TCP socket had bytes waiting since it connected.
+     * @return The time in nanoseconds, 0 if the client has no TCP connection.
+     */
+    public long getBacklogNanos() {
+        return tcpConnection == null ? 0 : tcpConnection.getTotalBacklogNanos();
+    }
+
+    /**
+     * Get the amount of frames queued until the end of the tick, including the frames held back while backlogged.
+     * @return The amount of frames in the batch.
+     */
+    protected synchronized int getQueuedFrames() {
+        return batch.size() + held.size();
     }
 
     /**
      * Get the TCP connection used to send data to the client.
      * @return The TCP connection used to send data to the client.
      */
-    protected Socket getConnection() {
+    protected ChannelConnection getConnection() {
         return tcpConnection;
     }
 
+    /**
+     * Get the handler the client belongs to.
+     * @return The handler.
+     */
+    protected NetworkHandler getHandler() {
+        return handler;
+    }
+
     /**
      * Send a ping to the client.
      * @throws IOException If there is an error sending the ping.
@@ -217,22 +481,42 @@ public class NetworkUser implements Serializable {
     }
 
     /**
-     * Ping the client.
-     * @throws IOException If there is an error pinging the client.
+     * Write the client's id, name and host flag for the handshake and ClientAdded.
+     * @param buffer The buffer to write to.
      */
-    protected void pingClient() throws IOException{
-        if (System.currentTimeMillis()-lastServerPing < 1000){
-            return;
-        }
-       out.writeObject("PING");
-       out.flush();
+    protected void write(WireBuffer buffer) {
+        buffer.writeShort(id);
+        buffer.writeString(name);
+        buffer.writeBoolean(isHost);
+    }
+
+    /**
+     * Read a client written by {@link #write(WireBuffer)}.
+     * @param buffer The buffer to read from.
+     * @param handler The handler the client belongs to.
+     * @return The remote client.
+     */
+    protected static NetworkUser read(WireBuffer buffer, NetworkHandler handler) {
+        short id = buffer.readShort();
+        String name = buffer.readString();
+        NetworkUser user = new NetworkUser(name, id, false, handler);
+        user.isHost = buffer.readBoolean();
+        return user;
     }
 
     /**
-     * Update the client's last ping time.
+     * Ping the client if no PING went out with its regular traffic for {@link NetworkHandler#INTERVAL}.
+     * @throws IOException If there is an error pinging the client.
      */
-    protected void updatePing(){
-        lastServerPing = System.currentTimeMillis();
+    protected void pingClient() throws IOException{
+        synchronized (this) {
+            if (System.currentTimeMillis()-lastServerPing < NetworkHandler.INTERVAL){
+                return;
+            }
+            lastServerPing = System.currentTimeMillis();
+            write(Frame.ping(Frame.PING, System.nanoTime()));
+        }
+        checkBacklog();
     }
 
     /**
@@ -0,0 +1,76 @@
+package Networking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects the frames sent to one connection during a tick so they can be written as a single batch frame.
+ * Callers are responsible for synchronizing access.
+ * @author haotian
+ */
+final class OutboundBatch {
+
+    /** A batch that grows past this many bytes is flushed early instead of waiting for the end of the tick. */
+    static final int FLUSH_THRESHOLD = 1 << 16;
+
+    private WireBuffer buffer;
+    private int messages = 0;
+
+    /**
+     * Appends a whole frame to the batch.
+     *
+     * @param frame the encoded frame, or its header followed by its payload. Positions are not changed
+     * @return true if the batch should be flushed right away
+     */
+    boolean add(ByteBuffer... frame) {
+        if (buffer == null) {
+            buffer = Frame.begin(Frame.BATCH, Math.max(256, remaining(frame)));
+        }
+        for (ByteBuffer part : frame) {
+            buffer.writeBytes(part);
+        }
+        messages++;
+        return buffer.position() >= FLUSH_THRESHOLD;
+    }
+
+    /**
+     * Gets the total amount of bytes left in a set of buffers.
+     *
+     * @param buffers the buffers
+     * @return the sum of their remaining bytes
+     */
+    static int remaining(ByteBuffer... buffers) {
+        int total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the amount of frames waiting to be sent.
+     *
+     * @return the amount of frames in the batch
+     */
+    int size() {
+        return messages;
+    }
+
+    /**
+     * Takes the batch and starts a new one.
+     * A batch holding a single frame is returned as that frame, without the batch header.
+     *
+     * @return the frame to write, or null if nothing was added
+     */
+    ByteBuffer drain() {
+        if (messages == 0) {
+            return null;
+        }
+        ByteBuffer frame = Frame.finish(buffer);
+        if (messages == 1) {
+            frame.position(Frame.LENGTH_SIZE + 1);
+        }
+        buffer = null;
+        messages = 0;
+        return frame;
+    }
+}
@@ -6,15 +6,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
 
 /**
  * A packet class that is used to send data between clients and servers in a network.
  * This class is used to wrap the data being sent and add additional information such as the
- * client ID and the remote ID
+ * client ID and the remote ID. Packets are encoded by {@link Frame} using the codec registered for the remote.
  * @author haotian
  */
 public class Packet implements Serializable {
@@ -93,39 +89,6 @@ public class Packet implements Serializable {
         return new Packet(Payload, remoteId,null);
     }
 
-    
-    private void writeObject(ObjectOutputStream out) throws IOException {
-        out.writeShort(clientID);
-        out.writeByte(RemoteID);
-
-       // out.writeLong(ID);
-        try {
-            out.writeObject(Payload);
-        }catch (java.io.NotSerializableException e){
-            System.out.println("Not serializable");
-            System.out.println(Payload);
-            System.out.println(Payload.toString());
-            System.out.println(e);
-        }
-
-
-    }
-
-    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        clientID = in.readShort();
-        RemoteID = in.readByte();
-
-       // ID = in.readLong();
-
-        try {
-            Payload = (Serializable)in.readObject();
-        } catch (Exception e) {
-            Payload = null;
-            e.printStackTrace();
-        }
-
-    }
-
     /**
      * Get a string representation of the packet
      * @return a string representation of the packet
@@ -0,0 +1,31 @@
+package Networking;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes the payload of a {@link Packet} for a single remote.
+ * Codecs are registered per remote in the {@link CodecRegistry} so both ends agree on the layout.
+ * @author haotian
+ *
+ * @param <T> the type of payload
+ */
+public interface PayloadCodec<T> {
+
+    /**
+     * Writes the payload to the buffer.
+     *
+     * @param out the buffer to write to
+     * @param value the payload to write
+     * @throws IOException if the payload can not be encoded
+     */
+    public void write(WireBuffer out, T value) throws IOException;
+
+    /**
+     * Reads a payload from the buffer.
+     *
+     * @param in the buffer to read from
+     * @return the payload
+     * @throws IOException if the payload can not be decoded
+     */
+    public T read(WireBuffer in) throws IOException;
+}
@@ -0,0 +1,352 @@
+package Networking;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The reliable ordered channels between this side and one peer over UDP.
+ * Packets are split into fragments that each get the next sequence number of their channel.
+ * The receiver acknowledges every fragment with the first sequence number it is still missing and a bitfield
+ * of the 64 before the fragment, so a lost acknowledgement is covered by the next ones and the sender only
+ * resends what was really lost. Fragments are resent when they are not
+ * acknowledged within a timeout that follows the measured round trip time, the same way TCP computes it,
+ * or right away once {@link #FAST_RESEND} later fragments were acknowledged while it was not.
+ * Each channel is ordered on its own, so a lost fragment only holds back the packets behind it on its channel.
+ * <p>
+ * A channel stays on the transport it first used: if the peer had not registered for UDP yet when the first
+ * packet of a channel was sent, the channel is sent over TCP for the rest of the connection so packets are never
+ * reordered by switching transports.
+ * @author haotian
+ */
+final class ReliableEndpoint {
+
+    /**
+     * Sends a datagram to the peer.
+     */
+    interface Sink {
+        void send(ByteBuffer datagram) throws IOException;
+    }
+
+    /** The most fragments of a channel that may be unacknowledged, and how far ahead the receiver buffers. */
+    static final int WINDOW = 256;
+
+    /** The resend timeout before a round trip was measured, in milliseconds. */
+    static final int INITIAL_TIMEOUT = 200;
+
+    /** The shortest resend timeout, in milliseconds. */
+    static final int MIN_TIMEOUT = 20;
+
+    /** The longest resend timeout, in milliseconds. */
+    static final int MAX_TIMEOUT = 1000;
+
+    /**
+     * How many times the timeout of a fragment that keeps getting lost is doubled at most. Kept low because a game
+     * would rather resend a few datagrams too many than hold back a channel for seconds.
+     */
+    static final int MAX_BACKOFF = 2;
+
+    /** How many later fragments have to be acknowledged before a fragment is resent without waiting for its timeout. */
+    static final int FAST_RESEND = 3;
+
+    private static final byte UNDECIDED = 0;
+    private static final byte UDP = 1;
+    private static final byte TCP = 2;
+
+    /**
+     * A sent fragment that was not acknowledged yet.
+     */
+    private static final class Fragment {
+        final int sequence;
+        final ByteBuffer datagram;
+        long sentAt;
+        long deadline;
+        int sends = 0;
+
+        Fragment(int sequence, ByteBuffer datagram) {
+            this.sequence = sequence;
+            this.datagram = datagram;
+        }
+    }
+
+    /**
+     * A received fragment that can not be delivered until the fragments before it arrive.
+     */
+    private static final class Received {
+        final byte remoteId;
+        final int index;
+        final int count;
+        final byte[] bytes;
+
+        Received(byte remoteId, int index, int count, byte[] bytes) {
+            this.remoteId = remoteId;
+            this.index = index;
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Both directions of one channel.
+     */
+    private static final class Channel {
+        byte route = UNDECIDED;
+
+        int nextSequence = 0;
+        final LinkedHashMap<Integer, Fragment> unacknowledged = new LinkedHashMap<>();
+        final ArrayDeque<Fragment> waiting = new ArrayDeque<>();
+
+        int expected = 0;
+        final HashMap<Integer, Received> early = new HashMap<>();
+        final ArrayList<byte[]> parts = new ArrayList<>();
+        int size = 0;
+    }
+
+    private final short clientId;
+    private final Channel[] channels = new Channel[256];
+    private Sink sink;
+
+    private long smoothed = -1;
+    private long variance = 0;
+    private long timeout = INITIAL_TIMEOUT * 1_000_000L;
+
+    /**
+     * @param clientId the client ID written in every datagram, the peer's ID on the server and the local ID on a client
+     */
+    ReliableEndpoint(short clientId) {
+        this.clientId = clientId;
+    }
+
+    private Channel channel(byte channel) {
+        Channel state = channels[channel & 0xFF];
+        if (state == null) {
+            state = new Channel();
+            channels[channel & 0xFF] = state;
+        }
+        return state;
+    }
+
+    /**
+     * Sets where datagrams are sent, once the peer has registered for UDP.
+     *
+     * @param sink the peer's UDP address
+     */
+    synchronized void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Decides whether a channel is sent over UDP. The first call for a channel fixes the answer.
+     *
+     * @param channel the channel
+     * @return true if the channel is sent with {@link #send(byte, byte, ByteBuffer)}, false if it is sent over TCP
+     */
+    synchronized boolean route(byte channel) {
+        Channel state = channel(channel);
+        if (state.route == UNDECIDED) {
+            state.route = sink == null ? TCP : UDP;
+        }
+        return state.route == UDP;
+    }
+
+    /**
+     * Sends a payload on a channel. Fragments beyond the {@link #WINDOW} wait until earlier ones are acknowledged.
+     *
+     * @param remoteId the remote the payload is sent with
+     * @param channel the channel, it must be routed over UDP
+     * @param payload the encoded payload, its position is not changed
+     * @return the bytes of the fragments
+     * @throws IOException if the payload needs more than {@link Datagram#MAX_RELIABLE_FRAGMENTS}
+     */
+    synchronized int send(byte remoteId, byte channel, ByteBuffer payload) throws IOException {
+        Channel state = channel(channel);
+        ByteBuffer[] fragments = Datagram.reliable(clientId, remoteId, channel, state.nextSequence, payload);
+        if (fragments == null) {
+            throw new IOException("Payload of " + payload.remaining() + " bytes is too large for a reliable channel");
+        }
+        for (ByteBuffer fragment : fragments) {
+            state.waiting.add(new Fragment(state.nextSequence++, fragment));
+        }
+        pump(state);
+        return OutboundBatch.remaining(fragments);
+    }
+
+    /**
+     * Sends the waiting fragments that fit into the window.
+     */
+    private void pump(Channel state) {
+        while (!state.waiting.isEmpty()) {
+            Fragment fragment = state.waiting.peek();
+            int oldest = state.unacknowledged.isEmpty() ? fragment.sequence : state.unacknowledged.keySet().iterator().next();
+            if (fragment.sequence - oldest >= WINDOW) {
+                return;
+            }
+            state.waiting.poll();
+            state.unacknowledged.put(fragment.sequence, fragment);
+            transmit(fragment, System.nanoTime());
+        }
+    }
+
+    /**
+     * Sends a fragment and sets when it is resent. A fragment that fails to send is resent like a lost one.
+     */
+    private void transmit(Fragment fragment, long now) {
+        fragment.sends++;
+        fragment.sentAt = now;
+        fragment.deadline = now + Math.min(timeout << Math.min(fragment.sends - 1, MAX_BACKOFF), MAX_TIMEOUT * 1_000_000L);
+        try {
+            sink.send(fragment.datagram.duplicate());
+        } catch (IOException e) {
+            //e.printStackTrace();
+        }
+    }
+
+    /**
+     * Resends every fragment whose timeout passed.
+     *
+     * @return the amount of fragments resent
+     */
+    synchronized int resend() {
+        if (sink == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        int resent = 0;
+        for (Channel state : channels) {
+            if (state == null) continue;
+            for (Fragment fragment : state.unacknowledged.values()) {
+                if (now - fragment.deadline >= 0) {
+                    transmit(fragment, now);
+                    resent++;
+                }
+            }
+        }
+        return resent;
+    }
+
+    /**
+     * Handles an acknowledgement whose type and client ID have already been read.
+     *
+     * @param in the rest of the datagram
+     * @return the amount of fragments resent because later ones were acknowledged
+     */
+    synchronized int acknowledge(WireBuffer in) {
+        Channel state = channel(in.readByte());
+        int next = in.readInt();
+        int latest = in.readInt();
+        long received = in.readLong();
+        long now = System.nanoTime();
+        int resent = 0;
+
+        Iterator<Fragment> it = state.unacknowledged.values().iterator();
+        while (it.hasNext()) {
+            Fragment fragment = it.next();
+            int offset = latest - 1 - fragment.sequence;
+            boolean acknowledged = fragment.sequence - next < 0 || fragment.sequence == latest
+                    || (offset >= 0 && offset < 64 && (received & (1L << offset)) != 0);
+            if (!acknowledged) {
+                // later fragments arrived without it, resend it unless its last send could still be acknowledged
+                if (latest - fragment.sequence > FAST_RESEND && smoothed > 0 && now - fragment.sentAt > smoothed + 2 * variance) {
+                    transmit(fragment, now);
+                    resent++;
+                }
+                continue;
+            }
+            // Only fragments sent once give a round trip, a resent one could be acknowledged for any of its sends
+            if (fragment.sends == 1) {
+                sample(now - fragment.sentAt);
+            }
+            it.remove();
+        }
+        pump(state);
+        return resent;
+    }
+
+    private void sample(long rtt) {
+        if (smoothed < 0) {
+            smoothed = rtt;
+            variance = rtt / 2;
+        } else {
+            variance = (3 * variance + Math.abs(smoothed - rtt)) / 4;
+            smoothed = (7 * smoothed + rtt) / 8;
+        }
+        timeout = Math.max(MIN_TIMEOUT * 1_000_000L, Math.min(smoothed + 4 * variance, MAX_TIMEOUT * 1_000_000L));
+    }
+
+    /**
+     * Handles a fragment whose type and client ID have already been read, and acknowledges it.
+     *
+     * @param packetClientId the client ID the delivered packets get
+     * @param in the rest of the datagram
+     * @param codecs the codec registry
+     * @return the packets that can now be delivered in order, often none
+     * @throws IOException if the fragment is invalid or the acknowledgement can not be sent
+     */
+    synchronized List<Packet> receive(short packetClientId, WireBuffer in, CodecRegistry codecs) throws IOException {
+        byte remoteId = in.readByte();
+        byte channel = in.readByte();
+        int sequence = in.readInt();
+        int index = in.readUnsignedShort();
+        int count = in.readUnsignedShort();
+        if (count < 1 || count > Datagram.MAX_RELIABLE_FRAGMENTS || index >= count) {
+            throw new StreamCorruptedException("Invalid fragment " + index + "/" + count);
+        }
+
+        Channel state = channel(channel);
+        int ahead = sequence - state.expected;
+        if (ahead >= 0 && ahead < WINDOW && !state.early.containsKey(sequence)) {
+            state.early.put(sequence, new Received(remoteId, index, count, in.readBytes(in.remaining())));
+        }
+
+        List<Packet> delivered = new ArrayList<>();
+        Received next;
+        while ((next = state.early.remove(state.expected)) != null) {
+            state.expected++;
+            if (next.index != state.parts.size()) {
+                throw new StreamCorruptedException("Fragment " + next.index + " out of order on channel " + (channel & 0xFF));
+            }
+            state.parts.add(next.bytes);
+            state.size += next.bytes.length;
+            if (next.index < next.count - 1) {
+                continue;
+            }
+            ByteBuffer whole = ByteBuffer.allocate(state.size);
+            for (byte[] part : state.parts) {
+                whole.put(part);
+            }
+            whole.flip();
+            state.parts.clear();
+            state.size = 0;
+            Packet packet = new Packet(packetClientId);
+            packet.RemoteID = next.remoteId;
+            delivered.add(Frame.readPayload(packet, WireBuffer.wrap(whole), codecs));
+        }
+
+        long received = 0;
+        for (int i = 0; i < 64; i++) {
+            int before = sequence - 1 - i;
+            if (before - state.expected < 0 || state.early.containsKey(before)) {
+                received |= 1L << i;
+            }
+        }
+        if (sink != null) {
+            sink.send(Datagram.reliableAck(clientId, channel, state.expected, sequence, received));
+        }
+        return delivered;
+    }
+
+    /**
+     * Gets the current resend timeout.
+     *
+     * @return the timeout in milliseconds
+     */
+    synchronized double getTimeout() {
+        return timeout / 1e6;
+    }
+}
@@ -3,6 +3,7 @@ package Networking;
 
 import java.io.IOError;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.function.Function;
 
 import Signal.*;
@@ -62,6 +63,13 @@ public abstract class Remote {
      */
     public abstract void fireAllClientsExcept(NetworkUser exclude,Packet data);
 
+    /**
+     * Sends a message to the given Clients, the payload is only encoded once
+     * @param clients the clients to send to
+     * @param data the packet to send
+     */
+    public abstract void fireClients(Collection<NetworkUser> clients, Packet data);
+
     /**
      * Returns the name of the remote in a string format
      * @return the name of the remote
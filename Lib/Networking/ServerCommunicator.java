@@ -0,0 +1,34 @@
+package Networking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The server side of a transport, which accepts clients and sends them frames.
+ */
+interface ServerCommunicator extends Communicator {
+    /**
+     * Sends a payload that was encoded once for every recipient.
+     *
+     * @param client the client to send to
+     * @param remoteId the remote the payload is sent with
+     * @param payload the encoded payload, shared between recipients and never changed
+     */
+    public void SendPayload(NetworkUser client, byte remoteId, ByteBuffer payload);
+
+    /**
+     * Kicks a client and closes its connection.
+     *
+     * @param client the client to remove
+     */
+    public void removeClient(NetworkUser client);
+
+    /**
+     * Allows new clients to join.
+     */
+    public void AllowJoining();
+
+    /**
+     * Refuses new clients.
+     */
+    public void DenyJoining();
+}
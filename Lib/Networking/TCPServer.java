@@ -0,0 +1,401 @@
+package Networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+
+import Engine.Enums.ServerCloseReason;
+
+/**
+ * The TCPServer class implements the Communicator interface and represents a TCP server.
+ * It handles incoming client connections, pinging clients, and sending/receiving packets.
+ * Every connection is served by a single selector loop thread with non-blocking channels,
+ * so the amount of threads does not grow with the amount of clients.
+ * A server running as a match on a {@link MatchRouter} has no port or thread of its own, the router accepts
+ * its clients and runs the selector loop of every match it serves.
+ * @author haotian
+ */
+class TCPServer implements ServerCommunicator{
+   
+    /**
+     * The handler for managing network operations.
+     */
+    private NetworkHandler handler;
+
+    /**
+     * The server channel for accepting client connections, null on a {@link MatchRouter}.
+     */
+    private ServerSocketChannel server;
+
+    /**
+     * The selector that watches the server channel and every client channel.
+     */
+    private Selector selector;
+
+    /**
+     * The thread running the selector loop, null on a {@link MatchRouter}.
+     */
+    private Thread loop;
+
+    /**
+     * Indicates whether joining is allowed.
+     */
+    private volatile boolean allowJoining;
+
+    /**
+     * Indicates whether the connection is closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The heartbeat running on the shared scheduler.
+     */
+    private ScheduledFuture<?> heartbeat;
+
+    /**
+     * Constructs a TCPServer object with the specified NetworkHandler.
+     * 
+     * @param handler the NetworkHandler object to be associated with the server
+     * @throws IOException if an I/O error occurs when opening the server channel
+     * @throws IllegalArgumentException if the port parameter is outside the specified range of valid port values
+     */
+    public TCPServer(NetworkHandler handler) throws IOException, IllegalArgumentException{
+        this.handler = handler;
+        allowJoining = true;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(handler.getPort()));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }   
+
+    /**
+     * Constructs a TCPServer for a match on a {@link MatchRouter}, whose clients are registered with the router's selector.
+     *
+     * @param handler the NetworkHandler object to be associated with the server
+     * @param selector the router's selector
+     */
+    TCPServer(NetworkHandler handler, Selector selector) {
+        this.handler = handler;
+        this.selector = selector;
+        allowJoining = true;
+    }
+
+    /**
+     * Starts the selector loop, which accepts clients and reads and writes their frames,
+     * and the heartbeat on the shared scheduler, which pings them.
+     */
+    public void Start(){
+        if (server != null) {
+            loop = new Thread(this::run, "TCPServer");
+            loop.setDaemon(true);
+            loop.start();
+        }
+        heartbeat = NetworkHandler.scheduleHeartbeat(this::pingClients);
+    }
+
+    /**
+     * Returns whether joining is allowed.
+     * 
+     * @return true if joining is allowed, false otherwise
+     */
+    public boolean isAllowJoining() {
+        return allowJoining;
+    }
+
+    /**
+     * Returns whether the connection is closed.
+     * 
+     * @return true if the connection is closed, false otherwise
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * The selector loop, runs until the server is stopped.
+     */
+    private void run(){
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            if (closed) {
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptClient();
+                        continue;
+                    }
+                    handle(key, (NetworkUser) key.attachment());
+                } catch (IOException | CancelledKeyException e) {
+                    if (key.attachment() instanceof NetworkUser) {
+                        handler.removeClient((NetworkUser) key.attachment());
+                    }
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Pings the connected clients that did not get a PING with their regular traffic, to check their availability.
+     * If a client does not respond within the specified timeout period,
+     * it will be removed from the list of clients. Runs on the shared scheduler.
+     */
+    private void pingClients(){
+        for (NetworkUser client : handler.getClients()) {
+            if (client.isLocal) continue;
+            if (System.currentTimeMillis() - client.lastPing > NetworkHandler.TIMEOUT) {
+
+                handler.removeClient(client);
+                continue;
+            }
+
+            try {
+                client.pingClient();
+            } catch (IOException e) {
+               // e.printStackTrace();
+               System.out.println( "Failed to ping client |" + client.toString() );
+               handler.removeClient(client);
+            }
+        }
+    }
+
+    /**
+     * Writes what is waiting for a client and reads what it sent, whichever its key is ready for.
+     * Runs on the selector loop.
+     *
+     * @param key the client's selected key
+     * @param client the client
+     * @throws IOException if the client disconnected or sent an invalid frame
+     */
+    void handle(SelectionKey key, NetworkUser client) throws IOException {
+        if (key.isWritable()) {
+            client.getConnection().writePending();
+        }
+        if (key.isValid() && key.isReadable()) {
+            readClient(client);
+        }
+    }
+
+    /**
+     * Accepts a waiting client.
+     *
+     * @throws IOException if the client can not be set up
+     */
+    private void acceptClient() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        accept(channel);
+    }
+
+    /**
+     * Sends the handshake to a connected client and starts reading from it, or refuses it if joining is not allowed.
+     * Runs on the selector loop.
+     *
+     * @param channel the client's non-blocking channel
+     * @throws IOException if the client can not be set up
+     */
+    void accept(SocketChannel channel) throws IOException {
+        NetworkUser clientObj = new NetworkUser(channel,handler);
+        if(!allowJoining){
+            try {
+                clientObj.send(Frame.control(Frame.FAIL));
+            } catch (IOException e) {
+            }
+            clientObj.getConnection().close();
+            return; 
+        }
+        String Name = handler.generateClientName();
+        clientObj.setName(Name);
+
+        clientObj.send(Frame.handshake(clientObj, handler.getClients()));
+        clientObj.getConnection().register(selector, clientObj);
+        handler.addClient(clientObj);
+        Remote remote = handler.getRemote("ClientAdded");
+        Packet data = new Packet();
+        data.addToPayLoad(clientObj);
+        remote.fireAllClients(data);
+    }
+
+    /**
+     * Reads what a client has sent and handles every complete frame.
+     *
+     * @param client the client to read from
+     * @throws IOException if the client disconnected or sent an invalid frame
+     */
+    private void readClient(NetworkUser client) throws IOException {
+        ChannelConnection connection = client.getConnection();
+        int read = connection.decoder.read(connection.channel);
+        if (read < 0) {
+            throw new EOFException("Client closed the connection");
+        }
+        client.lastPing = System.currentTimeMillis();
+        ByteBuffer frame;
+        while ((frame = connection.decoder.next()) != null) {
+            try {
+                if (!handler.handleClientFrame(this, client, WireBuffer.wrap(frame))) {
+                    return;
+                }
+            } catch (StreamCorruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+/**
+ * Removes a client from the network.
+ * If the client is local, the method returns without performing any action.
+ * Otherwise, it sends a "KICKED" message to the client and closes the connection.
+ * 
+ * @param client The client to be removed from the network.
+ */
+   public void removeClient(NetworkUser client){
+        if (client.isLocal) return;
+        try{
+            client.send(Frame.control(Frame.KICKED));
+        }catch (IOException e){
+
+        }
+        client.getConnection().close();
+        
+        handler.removeClient(client,true);
+    }
+
+
+    /**
+     * Sends a packet to the specified client, or queues it until the end of the tick while batching.
+     * 
+     * @param packet the packet to be sent
+     */
+    @Override
+    public void SendPacket(Packet packet) {
+        NetworkUser client = packet.getClientID() == null ? null : handler.getClient(packet.getClientID());
+        //System.out.println(client);
+        if (client == null){
+            return;
+        }
+        try {
+            //System.out.println("Sent Packet" + packet.toString());
+            long start = System.nanoTime();
+            ByteBuffer frame = Frame.data(packet, handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            handler.getMetrics().recordSent(packet.RemoteID, client.getId(), 1, frame.remaining());
+            Byte key = handler.getCoalescingKey(packet.RemoteID);
+            if (handler.isBatching()) {
+                client.queue(key, frame);
+            } else {
+                client.send(key, frame);
+            }
+        } catch (IOException e) {
+            if (e instanceof SocketException && e.getMessage().equals("Socket is closed")) {
+            return;
+            }
+          System.out.println("Failed to send packet");
+            e.printStackTrace();
+        }
+        
+    }
+    /**
+     * Sends a payload that was encoded once for every recipient, only the frame header is written per client.
+     *
+     * @param client the client to send to
+     * @param remoteId the remote the payload is sent with
+     * @param payload the encoded payload, shared between recipients and never changed
+     */
+    public void SendPayload(NetworkUser client, byte remoteId, ByteBuffer payload) {
+        ByteBuffer header = Frame.dataHeader(client.getId(), remoteId, payload.remaining());
+        handler.getMetrics().recordSent(remoteId, client.getId(), 1, header.remaining() + payload.remaining());
+        try {
+            Byte key = handler.getCoalescingKey(remoteId);
+            if (handler.isBatching()) {
+                client.queue(key, header, payload);
+            } else {
+                client.send(key, header, payload);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to send packet");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the network handler and closes all client connections.
+     * This method sets the 'closed' flag to true, sends a "SERVER_CLOSE" message to all clients,
+     * and closes their connections. Finally, it closes the server channel and stops the selector loop.
+     */
+    @Override
+    synchronized public void Stop() {
+        closed = true;
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        for (NetworkUser client : handler.getClients()) {
+            if (client.isLocal) continue;
+            try{
+                client.send(Frame.control(Frame.SERVER_CLOSE));
+            }catch (IOException e){
+                //e.printStackTrace();
+            }
+            client.getConnection().close();
+            
+            handler.removeClient(client);
+        }
+        if (server != null) {
+            try {
+                server.close();
+            } catch (Exception e) {
+                //e.printStackTrace();
+            }
+            selector.wakeup();
+        }
+        handler.handleServerClose(ServerCloseReason.closed);
+        
+    }
+
+    /**
+     * Allows joining of new connections.
+     */
+    public void AllowJoining(){
+        allowJoining = true;
+    }
+
+    /**
+     * Sets the allowJoining flag to false, denying any further joining requests.
+     */
+    public void DenyJoining(){
+        allowJoining = false;
+    }
+
+}
@@ -0,0 +1,278 @@
+package Networking;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+
+import Networking.NetworkHandler.NetworkRemote;
+
+/**
+ * The UDPServer class implements the Communicator interface and represents a UDP server for network communication.
+ * Clients register by sending a HELLO with the token they got in the TCP handshake, after that
+ * UDP remotes are sent to them as datagrams. Clients that never register keep getting UDP remotes over TCP.
+ * Reliable channels are acknowledged and resent through each client's {@link ReliableEndpoint}.
+ * @author haotian
+ */
+class UDPServer implements Communicator{
+
+    private DatagramSocket socket;
+    private NetworkHandler handler;
+    private ScheduledFuture<?> resender;
+    private final boolean shared;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a UDPServer bound to the handler's UDP port.
+     *
+     * @param handler the NetworkHandler object to be associated with the server
+     * @throws IOException if the port can not be bound
+     */
+    public UDPServer(NetworkHandler handler) throws IOException{
+        this.handler = handler;
+        socket = new DatagramSocket(handler.getUdpPort());
+        shared = false;
+    }
+
+    /**
+     * Constructs a UDPServer for a match on a {@link MatchRouter}, which receives on the shared socket and
+     * passes the datagrams of the match's clients to {@link #handlePacket}.
+     *
+     * @param handler the NetworkHandler object to be associated with the server
+     * @param socket the router's socket
+     */
+    UDPServer(NetworkHandler handler, DatagramSocket socket){
+        this.handler = handler;
+        this.socket = socket;
+        shared = true;
+    }
+
+    /**
+     * Starts listening for datagrams.
+     */
+    public void Start(){
+        if (!shared){
+            Thread listener = new Thread(this::listenForClients, "UDPServer");
+            listener.setDaemon(true);
+            listener.start();
+        }
+        resender = NetworkHandler.schedule(this::resend, NetworkHandler.RESEND_CHECK);
+    }
+
+    /**
+     * Resends the datagrams of every client's reliable channels that were not acknowledged in time.
+     */
+    private void resend(){
+        for (NetworkUser client : handler.getClients()) {
+            ReliableEndpoint reliable = client.getReliableIfUsed();
+            if (reliable != null){
+                handler.getMetrics().recordResent(client.getId(), reliable.resend());
+            }
+        }
+    }
+
+
+    private void listenForClients(){
+        byte[] buffer = new byte[1 << 16];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        
+        while(!closed){
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                handlePacket(packet);
+            } catch (IOException e) {
+                //e.printStackTrace();
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Sends a packet to a registered client.
+     *
+     * @param client the client to send to
+     * @param packet the packet with the remote and client ID attached
+     * @return false if the packet has to be sent over TCP instead
+     */
+    public boolean trySend(NetworkUser client, Packet packet) {
+        if (client.udpAddress == null || closed){
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            ByteBuffer payload = Frame.payload(packet.RemoteID, packet.getPayLoad(), handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            return trySend(client, packet.RemoteID, handler.getNetworkRemote(packet.RemoteID).nextSequence(), payload);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends a payload that was encoded once for every recipient to a registered client.
+     *
+     * @param client the client to send to
+     * @param remoteId the remote the payload is sent with
+     * @param sequence the sequence number shared by every recipient of the payload
+     * @param payload the encoded payload
+     * @return false if the payload has to be sent over TCP instead
+     */
+    public boolean trySend(NetworkUser client, byte remoteId, int sequence, ByteBuffer payload) {
+        SocketAddress address = client.udpAddress;
+        if (address == null || closed){
+            return false;
+        }
+        ByteBuffer[] fragments = Datagram.encode(client.getId(), remoteId, sequence, payload);
+        if (fragments == null){
+            return false;
+        }
+        try {
+            for (ByteBuffer fragment : fragments) {
+                socket.send(new DatagramPacket(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining(), address));
+            }
+            handler.getMetrics().recordSent(remoteId, client.getId(), 1, OutboundBatch.remaining(fragments));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends a packet to a client on a reliable channel.
+     *
+     * @param client the client to send to
+     * @param packet the packet with the remote and client ID attached
+     * @param channel the reliable channel
+     * @return false if the channel is sent over TCP to this client
+     */
+    public boolean trySendReliable(NetworkUser client, Packet packet, byte channel) {
+        if (closed || !client.getReliable().route(channel)){
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            ByteBuffer payload = Frame.payload(packet.RemoteID, packet.getPayLoad(), handler.getCodecs());
+            handler.getMetrics().recordEncode(packet.RemoteID, System.nanoTime() - start);
+            return trySendReliable(client, packet.RemoteID, channel, payload);
+        } catch (IOException e) {
+            System.out.println("[UDPServer] Failed to encode packet for remote " + packet.RemoteID);
+            return true;
+        }
+    }
+
+    /**
+     * Sends a payload that was encoded once for every recipient to a client on a reliable channel.
+     * Once a channel is sent over UDP to a client it never falls back to TCP, so a payload that can not be sent is dropped.
+     *
+     * @param client the client to send to
+     * @param remoteId the remote the payload is sent with
+     * @param channel the reliable channel
+     * @param payload the encoded payload
+     * @return false if the channel is sent over TCP to this client
+     */
+    public boolean trySendReliable(NetworkUser client, byte remoteId, byte channel, ByteBuffer payload) {
+        ReliableEndpoint reliable = client.getReliable();
+        if (closed || !reliable.route(channel)){
+            return false;
+        }
+        try {
+            handler.getMetrics().recordSent(remoteId, client.getId(), 1, reliable.send(remoteId, channel, payload));
+        } catch (IOException e) {
+            System.out.println("[UDPServer] " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Sends a packet to the client in the packet's client ID, if it is registered.
+     *
+     * @param packet the packet to be sent
+     */
+    public void SendPacket(Packet packet) {
+        NetworkUser client = packet.getClientID() == null ? null : handler.getClient(packet.getClientID());
+        if (client == null){
+            return;
+        }
+        trySend(client, packet);
+    }
+
+    /**
+     * Handles a datagram from a client.
+     *
+     * @param packet the datagram
+     * @return the client that registered with the datagram, null if it was not a valid registration
+     */
+    NetworkUser handlePacket(DatagramPacket packet){
+        try {
+            WireBuffer in = WireBuffer.wrap(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+            byte type = in.readByte();
+            short clientId = in.readShort();
+            NetworkUser client = handler.getClient(clientId);
+            if (client == null || client.isLocal){
+                return null;
+            }
+            if (type == Datagram.HELLO){
+                if (in.readInt() != client.udpToken){
+                    return null;
+                }
+                client.udpAddress = packet.getSocketAddress();
+                client.getReliable().setSink(datagram -> send(client, datagram));
+                ByteBuffer ack = Datagram.ack();
+                socket.send(new DatagramPacket(ack.array(), ack.remaining(), packet.getSocketAddress()));
+                return client;
+            } else if (type == Datagram.DATA){
+                if (!packet.getSocketAddress().equals(client.udpAddress)){
+                    return null;
+                }
+                byte remoteId = in.readByte();
+                NetworkRemote remote = handler.getNetworkRemote(remoteId);
+                if (remote == null){
+                    return null;
+                }
+                long start = System.nanoTime();
+                Packet received = client.getReassembler().accept(clientId, remoteId, in, handler.getCodecs());
+                handler.getMetrics().recordDecode(remoteId, System.nanoTime() - start);
+                handler.getMetrics().recordReceived(remoteId, clientId, received == null ? 0 : 1, packet.getLength());
+                if (received != null){
+                    remote.onRetrieve(received);
+                }
+            } else if (type == Datagram.RELIABLE){
+                if (!packet.getSocketAddress().equals(client.udpAddress)){
+                    return null;
+                }
+                handler.receiveReliable(client.getReliable(), clientId, in, packet);
+            } else if (type == Datagram.RELIABLE_ACK){
+                if (!packet.getSocketAddress().equals(client.udpAddress)){
+                    return null;
+                }
+                handler.getMetrics().recordResent(clientId, client.getReliable().acknowledge(in));
+            }
+        } catch (IOException | RuntimeException e) {
+            //e.printStackTrace();
+        }
+        return null;
+    }
+
+    private void send(NetworkUser client, ByteBuffer datagram) throws IOException {
+        SocketAddress address = client.udpAddress;
+        if (address != null && !closed){
+            socket.send(new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(), datagram.remaining(), address));
+        }
+    }
+
+    /**
+     * Stops listening and closes the socket.
+     */
+    public void Stop(){
+        closed = true;
+        if (resender != null){
+            resender.cancel(false);
+        }
+        if (!shared){
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package Networking;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import MathLib.Vector2;
+
+/**
+ * A growable byte buffer used to encode and decode the binary wire protocol.
+ * Writes grow the underlying {@link ByteBuffer} as needed, reads consume it from the current position.
+ * All multi-byte values are big endian.
+ * @author haotian
+ */
+public class WireBuffer {
+
+    /** The largest string that can be written, in bytes. */
+    public static final int MAX_STRING = Short.MAX_VALUE;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Creates an empty WireBuffer for writing.
+     */
+    public WireBuffer() {
+        this(64);
+    }
+
+    /**
+     * Creates an empty WireBuffer for writing with the given starting capacity.
+     *
+     * @param capacity the starting capacity in bytes
+     */
+    public WireBuffer(int capacity) {
+        buffer = ByteBuffer.allocate(Math.max(capacity, 16));
+    }
+
+    private WireBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Wraps a buffer for reading. The WireBuffer reads from the buffer's position up to its limit.
+     *
+     * @param buffer the buffer to read from
+     * @return a WireBuffer reading the given buffer
+     */
+    public static WireBuffer wrap(ByteBuffer buffer) {
+        return new WireBuffer(buffer);
+    }
+
+    /**
+     * Makes sure there is room for the given amount of bytes, growing the buffer if needed.
+     *
+     * @param bytes the amount of bytes that are about to be written
+     */
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        int needed = buffer.position() + bytes;
+        int capacity = buffer.capacity();
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    /**
+     * Gets the amount of bytes written so far, or the read position when reading.
+     *
+     * @return the current position
+     */
+    public int position() {
+        return buffer.position();
+    }
+
+    /**
+     * Gets the amount of bytes left to read.
+     *
+     * @return the amount of bytes left to read
+     */
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Writes a value at an absolute position without moving the write position.
+     * Used to patch length prefixes after the body is written.
+     *
+     * @param index the absolute index
+     * @param value the value to write
+     */
+    public void putInt(int index, int value) {
+        buffer.putInt(index, value);
+    }
+
+    /**
+     * Writes a value at an absolute position without moving the write position.
+     *
+     * @param index the absolute index
+     * @param value the value to write
+     */
+    public void putShort(int index, short value) {
+        buffer.putShort(index, value);
+    }
+
+    /**
+     * Returns the written bytes as a buffer that is ready to be sent.
+     * The WireBuffer should not be written to after this is called.
+     *
+     * @return a flipped buffer containing the written bytes
+     */
+    public ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Copies the written bytes into a new array.
+     *
+     * @return the written bytes
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.position()];
+        ByteBuffer copy = buffer.duplicate();
+        copy.flip();
+        copy.get(bytes);
+        return bytes;
+    }
+
+    public void writeByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+    }
+
+    public void writeChar(char value) {
+        ensure(2);
+        buffer.putChar(value);
+    }
+
+    public void writeInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void writeFloat(float value) {
+        ensure(4);
+        buffer.putFloat(value);
+    }
+
+    public void writeDouble(double value) {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte.
+     *
+     * @param value the value to write, must not be negative
+     */
+    public void writeVarInt(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("[WireBuffer] VarInt must not be negative but was " + value);
+        }
+        while ((value & ~0x7F) != 0) {
+            writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    public void writeBytes(byte[] bytes) {
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer without changing its position.
+     *
+     * @param bytes the buffer to copy
+     */
+    public void writeBytes(ByteBuffer bytes) {
+        ensure(bytes.remaining());
+        buffer.put(bytes.duplicate());
+    }
+
+    /**
+     * Writes a UTF-8 string prefixed with its length.
+     *
+     * @param value the string to write
+     */
+    public void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            throw new IllegalArgumentException("[WireBuffer] String is too long to encode: " + bytes.length);
+        }
+        writeVarInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    public void writeUUID(UUID value) {
+        writeLong(value.getMostSignificantBits());
+        writeLong(value.getLeastSignificantBits());
+    }
+
+    public void writeVector2(Vector2 value) {
+        writeFloat(value.X);
+        writeFloat(value.Y);
+    }
+
+    /**
+     * Writes a rectangular char grid as its dimensions followed by every cell.
+     *
+     * @param grid the grid to write
+     */
+    public void writeCharGrid(char[][] grid) {
+        int rows = grid.length;
+        int cols = rows == 0 ? 0 : grid[0].length;
+        writeVarInt(rows);
+        writeVarInt(cols);
+        ensure(rows * cols * 2);
+        for (char[] row : grid) {
+            for (int i = 0; i < cols; i++) {
+                buffer.putChar(row[i]);
+            }
+        }
+    }
+
+    public byte readByte() {
+        return buffer.get();
+    }
+
+    public int readUnsignedByte() {
+        return buffer.get() & 0xFF;
+    }
+
+    public boolean readBoolean() {
+        return buffer.get() != 0;
+    }
+
+    public short readShort() {
+        return buffer.getShort();
+    }
+
+    public int readUnsignedShort() {
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    public char readChar() {
+        return buffer.getChar();
+    }
+
+    public int readInt() {
+        return buffer.getInt();
+    }
+
+    public long readLong() {
+        return buffer.getLong();
+    }
+
+    public float readFloat() {
+        return buffer.getFloat();
+    }
+
+    public double readDouble() {
+        return buffer.getDouble();
+    }
+
+    /**
+     * Reads an unsigned variable length integer written by {@link #writeVarInt(int)}.
+     *
+     * @return the value
+     */
+    public int readVarInt() {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new BufferUnderflowException();
+            }
+        }
+    }
+
+    public byte[] readBytes(int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a read only view of the next bytes and skips over them.
+     *
+     * @param length the amount of bytes
+     * @return a buffer holding exactly the next length bytes
+     */
+    public ByteBuffer readSlice(int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice.asReadOnlyBuffer();
+    }
+
+    public String readString() {
+        int length = readVarInt();
+        return new String(readBytes(length), StandardCharsets.UTF_8);
+    }
+
+    public UUID readUUID() {
+        return new UUID(readLong(), readLong());
+    }
+
+    public Vector2 readVector2() {
+        return new Vector2(readFloat(), readFloat());
+    }
+
+    public char[][] readCharGrid() {
+        int rows = readVarInt();
+        int cols = readVarInt();
+        if ((long) rows * cols * 2 > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        char[][] grid = new char[rows][cols];
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                grid[y][x] = buffer.getChar();
+            }
+        }
+        return grid;
+    }
+}